@@ -0,0 +1,184 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import walletbench.WalletFixture;
+
+/**
+ * The wallet the benchmarks in walletbench run against. It is in the default package so
+ * it can use the wallet classes, see WalletFixture.
+ *
+ * It works in a temporary directory so it never touches the real user file or uses up
+ * the real ids.
+ */
+public class WalletBenchmarkFixture implements WalletFixture {
+
+	// the id counters are shared by everything in the process, so they are only set up
+	// once, in a directory of their own
+	private static File counters;
+
+	private File dir;
+	private User user;
+	private WalletService service;
+	private String[] cardIds;
+	private Vendor vendor;
+	private byte[] javaSerialized;
+	private byte[] encoded;
+
+	@Override
+	public void setUp(int cards, int history, boolean mapped) throws IOException {
+		initializeIdCounters();
+		dir = Files.createTempDirectory("wallet-benchmark").toFile();
+		CreditCard.keepHistoryIn(mapped ? new File(dir, "history").getPath() : null);
+
+		user = new User("Benchmark", "Bank", "123");
+		service = new WalletService(user, new InMemoryPersistence());
+		vendor = new Vendor("Grocer", new Address("1 Main St", "Springfield", USState.IL, "62701"));
+		cardIds = new String[cards];
+		for (int c = 0; c < cards; c++) {
+			// a limit so high the purchases made while measuring are never declined
+			CreditCard card = new CreditCard(Long.toString(c + 1), LocalDate.now().minusYears(1),
+					LocalDate.now().plusYears(5), CreditCardType.VISA, CreditCardStatus.ACTIVE, Long.MAX_VALUE / 4);
+			cardIds[c] = card.getCreditCardId();
+			user.addCard(card);
+			// every fourth transaction is a payment. a purchase adds two rows (with its fee)
+			for (int t = 0; t < history; t += 2) {
+				if (t % 8 == 6) {
+					card.addPayment(new Payment(100 + t % 1000, PaymentType.CHECK, user.getBankAccount()));
+				} else {
+					card.restorePurchase(new Purchase(100 + t % 1000, PurchaseType.values()[t % 8], vendor,
+							new Fee(1, FeeType.interest)));
+				}
+			}
+		}
+
+		// the same user in the old format and in the new one. cards that keep their
+		// transactions on disk can't be written the old way
+		if (!mapped) {
+			ByteArrayOutputStream javaBytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream objectOut = new ObjectOutputStream(javaBytes)) {
+				objectOut.writeObject(user);
+			}
+			javaSerialized = javaBytes.toByteArray();
+		}
+		ByteArrayOutputStream codecBytes = new ByteArrayOutputStream();
+		try (DataOutputStream dataOut = new DataOutputStream(codecBytes)) {
+			WalletCodec.write(user, dataOut);
+		}
+		encoded = codecBytes.toByteArray();
+	}
+
+	@Override
+	public long addPurchase(int i) throws IOException {
+		Purchase p = new Purchase(100, PurchaseType.FOOD, vendor, new Fee(1, FeeType.interest));
+		return user.addPurchase(cardIds[i % cardIds.length], p) ? 1 : 0;
+	}
+
+	@Override
+	public long authorize(int i) throws IOException {
+		return service.authorize(cardIds[i % cardIds.length], 100, PurchaseType.FOOD, vendor) == null ? 0 : 1;
+	}
+
+	@Override
+	public long addPayment(int i) throws IOException {
+		Payment p = new Payment(100, PaymentType.ONLINE, user.getBankAccount());
+		user.addPayment(cardIds[i % cardIds.length], p);
+		return p.getAmount();
+	}
+
+	@Override
+	public long newTransaction() throws IOException {
+		return new Fee(1, FeeType.interest).getTransactionID();
+	}
+
+	@Override
+	public long largestPurchase() {
+		return user.getLargestPurchase().getAmount();
+	}
+
+	@Override
+	public long totalSpent(int purchaseType) {
+		return user.getTotalSpentOnCertainCategoryOfExpense(PurchaseType.values()[purchaseType % 8]);
+	}
+
+	@Override
+	public long mostRecentPayment() {
+		return user.getMostRecentPayment().getTransactionID();
+	}
+
+	@Override
+	public long totalBalance() {
+		return user.totalBalance();
+	}
+
+	@Override
+	public long transactionsToString(int i) {
+		return user.transactionsOnCardToString(cardIds[i % cardIds.length]).length();
+	}
+
+	@Override
+	public long exportTransactions(int i) throws IOException {
+		return user.exportTransactionsOnCard(cardIds[i % cardIds.length],
+				new TransactionExporter(Writer.nullWriter(), TransactionExporter.Format.CONSOLE), 0, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public long saveAndLoad() throws Exception {
+		File snapshot = new File(dir, "UserInfo.bin");
+		File journal = new File(dir, "UserJournal.log");
+		TransactionJournal out = new TransactionJournal(snapshot.getPath(), journal.getPath(), 500);
+		out.save(user);
+		out.close();
+		TransactionJournal in = new TransactionJournal(snapshot.getPath(), journal.getPath(), 500);
+		User loaded = in.load();
+		in.close();
+		return loaded.numberOfCards() + snapshot.length();
+	}
+
+	@Override
+	public long loadJavaSerialized() throws Exception {
+		if (javaSerialized == null) {
+			throw new IllegalStateException("Cards that keep their transactions on disk can't be serialized");
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(javaSerialized))) {
+			return ((User) in.readObject()).numberOfCards();
+		}
+	}
+
+	@Override
+	public long loadWalletCodec() throws Exception {
+		return WalletCodec.read(new DataInputStream(new ByteArrayInputStream(encoded))).numberOfCards();
+	}
+
+	@Override
+	public void tearDown() throws IOException {
+		for (CreditCard card : user.getCards()) {
+			card.close();
+		}
+		try (Stream<Path> files = Files.walk(dir.toPath())) {
+			for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(p);
+			}
+		}
+	}
+
+	private static synchronized void initializeIdCounters() throws IOException {
+		if (counters != null) {
+			return;
+		}
+		counters = Files.createTempDirectory("wallet-benchmark-ids").toFile();
+		Transaction.initializeIdCounter(WalletServer.counterFile(counters, "TransactionIdCounter.txt"));
+		CreditCard.initializeIdCounter(WalletServer.counterFile(counters, "CreditCardIdCounter.txt"));
+	}
+}
@@ -0,0 +1,65 @@
+package walletbench;
+
+import java.io.IOException;
+
+/**
+ * A wallet set up for the benchmarks, with the operations they measure. Every operation
+ * returns something worked out from its result, so the benchmarks can hand it to JMH
+ * and the JIT can't skip the work.
+ *
+ * The wallet classes are in the default package, and JMH won't generate benchmarks for
+ * a class in it (nor can a class in a package name them), so the benchmarks only see
+ * this interface. WalletBenchmarkFixture, in the default package next to the wallet,
+ * implements it.
+ */
+public interface WalletFixture {
+
+	/**
+	 * a wallet with this many cards, each with this many rows of history (purchases and
+	 * their fees, and payments), kept in memory or in mapped files
+	 */
+	static WalletFixture create(int cards, int history, String store) throws Exception {
+		WalletFixture fixture = (WalletFixture) Class.forName("WalletBenchmarkFixture").getDeclaredConstructor()
+				.newInstance();
+		fixture.setUp(cards, history, store.equals("mapped"));
+		return fixture;
+	}
+
+	void setUp(int cards, int history, boolean mapped) throws IOException;
+
+	// User.addPurchase on the i-th card (wrapping around)
+	long addPurchase(int i) throws IOException;
+
+	// WalletService.authorize on the i-th card, which also records the purchase
+	long authorize(int i) throws IOException;
+
+	// CreditCard.addPayment on the i-th card
+	long addPayment(int i) throws IOException;
+
+	// the Transaction constructor, which takes an id from the counter
+	long newTransaction() throws IOException;
+
+	long largestPurchase();
+
+	long totalSpent(int purchaseType);
+
+	long mostRecentPayment();
+
+	long totalBalance();
+
+	// the transactions of the i-th card as one string, and streamed to a writer
+	long transactionsToString(int i);
+
+	long exportTransactions(int i) throws IOException;
+
+	// saves the wallet to a snapshot and loads it back
+	long saveAndLoad() throws Exception;
+
+	// loads the wallet from bytes in the old format (java serialization) and the new one
+	long loadJavaSerialized() throws Exception;
+
+	long loadWalletCodec() throws Exception;
+
+	// closes the cards and deletes the files the wallet was kept in
+	void tearDown() throws IOException;
+}
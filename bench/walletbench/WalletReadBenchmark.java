@@ -0,0 +1,108 @@
+package walletbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The reports and the save and load of a wallet, for wallets with different numbers of
+ * cards and different amounts of history on each card. None of them change the wallet,
+ * so it is only built once for each combination.
+ *
+ * Build and run with: mvn -P benchmarks package && java -jar target/benchmarks.jar
+ * (add -p cards=1,100 -p history=1000 -p store=mapped and so on to pick others)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletReadBenchmark {
+
+	@Param({ "1", "100" })
+	public int cards;
+
+	@Param({ "1000", "100000" })
+	public int history;
+
+	// memory or mapped (the transactions in files, see CreditCard.keepHistoryIn). cards
+	// with mapped transactions can't be java serialized, so loadJavaSerialized fails
+	@Param({ "memory" })
+	public String store;
+
+	private WalletFixture wallet;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		wallet = WalletFixture.create(cards, history, store);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		wallet.tearDown();
+	}
+
+	@Benchmark
+	public long getLargestPurchase() {
+		return wallet.largestPurchase();
+	}
+
+	@Benchmark
+	public long getTotalSpentOnCertainCategoryOfExpense() {
+		return wallet.totalSpent(next++);
+	}
+
+	@Benchmark
+	public long getMostRecentPayment() {
+		return wallet.mostRecentPayment();
+	}
+
+	@Benchmark
+	public long totalBalance() {
+		return wallet.totalBalance();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long transactionsToString() {
+		return wallet.transactionsToString(next++);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long exportTransactions() throws Exception {
+		return wallet.exportTransactions(next++);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long saveAndLoad() throws Exception {
+		return wallet.saveAndLoad();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long loadWalletCodec() throws Exception {
+		return wallet.loadWalletCodec();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long loadJavaSerialized() throws Exception {
+		return wallet.loadJavaSerialized();
+	}
+}
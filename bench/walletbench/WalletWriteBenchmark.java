@@ -0,0 +1,77 @@
+package walletbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Purchases, payments and taking transaction ids, for wallets with different numbers of
+ * cards and different amounts of history on each card. These add to the history, so
+ * the wallet is built again before every iteration to keep it the size that was asked
+ * for.
+ *
+ * Build and run with: mvn -P benchmarks package && java -jar target/benchmarks.jar Write
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletWriteBenchmark {
+
+	@Param({ "1", "100" })
+	public int cards;
+
+	@Param({ "1000", "100000" })
+	public int history;
+
+	// memory or mapped (the transactions in files, see CreditCard.keepHistoryIn)
+	@Param({ "memory" })
+	public String store;
+
+	private WalletFixture wallet;
+	private int next;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws Exception {
+		wallet = WalletFixture.create(cards, history, store);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		wallet.tearDown();
+	}
+
+	@Benchmark
+	public long addPurchase() throws Exception {
+		return wallet.addPurchase(next++);
+	}
+
+	@Benchmark
+	public long authorize() throws Exception {
+		return wallet.authorize(next++);
+	}
+
+	@Benchmark
+	public long addPayment() throws Exception {
+		return wallet.addPayment(next++);
+	}
+
+	@Benchmark
+	public long newTransaction() throws Exception {
+		return wallet.newTransaction();
+	}
+}
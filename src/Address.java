@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.Objects;
 
 public class Address  implements Serializable{
 	
@@ -29,5 +30,21 @@ public class Address  implements Serializable{
 	public String getZipcode() {
 		return zipcode;
 	}
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Address)) {
+			return false;
+		}
+		Address other = (Address) o;
+		return Objects.equals(street, other.street) && Objects.equals(city, other.city) && state == other.state
+				&& Objects.equals(zipcode, other.zipcode);
+	}
+	@Override
+	public int hashCode() {
+		return Objects.hash(street, city, state, zipcode);
+	}
 
 }
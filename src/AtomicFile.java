@@ -0,0 +1,322 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * A file that is replaced as a whole, so a crash in the middle of saving it never
+ * leaves it cut off or empty. The new contents are written to a temporary file with a
+ * checksum at the end and forced to the disk. Then the file they replace is kept as the
+ * previous generation (name.prev), and the temporary file is renamed over it in one
+ * step. Whoever reads it sees the old contents or the new ones, never a mix.
+ *
+ * Reading checks the checksum, and refuses a file that doesn't match it. Going back to
+ * the previous generation instead is only for callers that can make up for what it is
+ * missing (readOrPrevious), since an older id counter or snapshot isn't the same as the
+ * newer one. Files written before there were checksums (the counter files and snapshots
+ * of older versions) have no trailer at all and are read as they are. So that a file
+ * whose trailer was cut off isn't taken for one of those, every file starts with a
+ * header that says it has a trailer. Files written with a trailer but before the header
+ * was added are still checked when their trailer is there.
+ *
+ * The save only does one extra thing over writing the file in place: the rename (and
+ * the hard link that keeps the previous generation). The checksum is worked out as the
+ * bytes go by, and the force was needed anyway to make the save durable.
+ */
+public final class AtomicFile {
+
+	// the last 16 bytes of a file written by this: how long the contents are, their
+	// checksum and this number, which says the file has a checksum
+	private static final int TRAILER_MAGIC = 0x57434B31;
+	private static final int TRAILER_BYTES = 16;
+	// the first 4 bytes of a file written by this, before the contents. the first byte
+	// isn't ascii, so it can't be the start of a counter file, and it isn't the start of
+	// a java serialized or WalletCodec snapshot
+	private static final int HEADER_MAGIC = 0x89574346;
+	private static final int HEADER_BYTES = 4;
+
+	private final File file;
+	private final File previous;
+	private final File temporary;
+	// whether readOrPrevious() found the file damaged and went back to the previous
+	// generation
+	private boolean damaged;
+
+	public AtomicFile(String path) {
+		this.file = new File(path);
+		this.previous = new File(path + ".prev");
+		this.temporary = new File(path + ".tmp");
+	}
+
+	public interface Contents {
+		void writeTo(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * @return whether anything was ever saved in it
+	 */
+	public boolean exists() {
+		return file.exists() || previous.exists();
+	}
+
+	/**
+	 * replaces the contents of the file. when this returns they are on the disk
+	 *
+	 * @return how many bytes of contents were written
+	 */
+	public synchronized long write(Contents contents) throws IOException {
+		long size;
+		try (FileOutputStream fileOut = new FileOutputStream(temporary)) {
+			// the header isn't part of what is checked either, it is checked by being there
+			DataOutputStream header = new DataOutputStream(fileOut);
+			header.writeInt(HEADER_MAGIC);
+			header.flush();
+			CheckedOutputStream checked = new CheckedOutputStream(fileOut, new CRC32C());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked));
+			contents.writeTo(out);
+			out.flush();
+			size = out.size();
+			// the trailer isn't part of what is checked
+			DataOutputStream trailer = new DataOutputStream(new BufferedOutputStream(fileOut, TRAILER_BYTES));
+			trailer.writeLong(size);
+			trailer.writeInt((int) checked.getChecksum().getValue());
+			trailer.writeInt(TRAILER_MAGIC);
+			trailer.flush();
+			fileOut.getFD().sync();
+		}
+		if (!damaged) {
+			keepAsPrevious();
+		}
+		Path target = file.toPath();
+		try {
+			Files.move(temporary.toPath(), target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporary.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		if (damaged) {
+			// the caller went back a generation and made up for what it was missing. that
+			// generation doesn't lead to the new contents (the damaged one was between
+			// them), so it can't stand in for them anymore
+			keepAsPrevious();
+			damaged = false;
+		}
+		syncDirectory(file);
+		return size;
+	}
+
+	/**
+	 * opens the contents of the file
+	 *
+	 * @return null if nothing was ever saved in it
+	 * @throws IOException if the file doesn't match its checksum
+	 */
+	public synchronized InputStream read() throws IOException {
+		if (!exists()) {
+			return null;
+		}
+		InputStream in = open(file);
+		if (in == null) {
+			throw new IOException(file + " is damaged (it doesn't match its checksum). " + previous
+					+ " has the contents before the last save, but they can't simply be used instead");
+		}
+		return in;
+	}
+
+	/**
+	 * opens the contents of the file, or of the previous generation if the file is
+	 * damaged. wentBack() says which one it was, and the caller has to make up for
+	 * whatever the last save added. the next write replaces both generations
+	 *
+	 * @return null if nothing was ever saved in it
+	 * @throws IOException if there is a file but none of its generations are whole
+	 */
+	public synchronized InputStream readOrPrevious() throws IOException {
+		if (!exists()) {
+			return null;
+		}
+		InputStream in = open(file);
+		if (in == null) {
+			in = open(previous);
+			if (in == null) {
+				throw new IOException(file + " is damaged (it doesn't match its checksum) and there is no "
+						+ "earlier copy of it to go back to");
+			}
+			damaged = true;
+		}
+		return in;
+	}
+
+	/**
+	 * @return whether the last readOrPrevious() went back to the previous generation
+	 */
+	public synchronized boolean wentBack() {
+		return damaged;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+
+	// the contents of one generation, or null if it is missing or doesn't match its
+	// checksum
+	private static InputStream open(File generation) throws IOException {
+		long length = generation.length();
+		if (length == 0) {
+			// missing, or left empty by a crash of a version that wrote it in place
+			return null;
+		}
+		long start;
+		long size;
+		try (RandomAccessFile in = new RandomAccessFile(generation, "r")) {
+			start = length >= HEADER_BYTES && in.readInt() == HEADER_MAGIC ? HEADER_BYTES : 0;
+			size = checkedSize(in, start, length);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		if (size == -2) {
+			return null;
+		}
+		FileInputStream in;
+		try {
+			in = new FileInputStream(generation);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		in.getChannel().position(start);
+		// a file from before there were checksums is all contents
+		return new BufferedInputStream(new Limited(in, size < 0 ? length : size));
+	}
+
+	// how long the contents of a file with a checksum are, starting after the header if
+	// it has one. -1 if the file has no header or trailer (it was written before there
+	// were checksums), or -2 if it has a header or a trailer and doesn't match its
+	// trailer. a file with a header always has a trailer, so one without a trailer was
+	// cut off
+	private static long checkedSize(RandomAccessFile in, long start, long length) throws IOException {
+		long notChecked = start > 0 ? -2 : -1;
+		if (length - start < TRAILER_BYTES) {
+			return notChecked;
+		}
+		in.seek(length - TRAILER_BYTES);
+		long size = in.readLong();
+		int checksum = in.readInt();
+		if (in.readInt() != TRAILER_MAGIC) {
+			return notChecked;
+		}
+		if (size != length - start - TRAILER_BYTES) {
+			// cut off or grown, so the trailer isn't where it was written
+			return -2;
+		}
+		Checksum crc = new CRC32C();
+		byte[] buffer = new byte[64 * 1024];
+		in.seek(start);
+		long left = size;
+		while (left > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (n < 0) {
+				return -2;
+			}
+			crc.update(buffer, 0, n);
+			left -= n;
+		}
+		return (int) crc.getValue() == checksum ? size : -2;
+	}
+
+	// the file becomes the previous generation. it is linked rather than renamed so there
+	// is never a moment without the file. it was checked when it was written or read, so
+	// it isn't read again here. a damaged file never gets here, it would only push out a
+	// good previous one
+	private void keepAsPrevious() throws IOException {
+		if (file.length() == 0) {
+			return;
+		}
+		Files.deleteIfExists(previous.toPath());
+		try {
+			Files.createLink(previous.toPath(), file.toPath());
+		} catch (UnsupportedOperationException | IOException e) {
+			// a file system without hard links
+			Files.copy(file.toPath(), previous.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * makes a rename (or a new file) in the directory of this file durable
+	 */
+	static void syncDirectory(File file) {
+		File directory = file.getAbsoluteFile().getParentFile();
+		try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// some systems (windows) can't open a directory. the rename is still atomic,
+			// it just might not survive the machine losing power right after it
+		}
+	}
+
+	// stops at the end of the contents, before the trailer
+	private static final class Limited extends FilterInputStream {
+		private long left;
+
+		Limited(InputStream in, long left) {
+			super(in);
+			this.left = left;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (left <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (b >= 0) {
+				left--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (left <= 0) {
+				return -1;
+			}
+			int n = super.read(b, off, (int) Math.min(len, left));
+			if (n > 0) {
+				left -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, left));
+			left -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), left);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
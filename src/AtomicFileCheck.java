@@ -0,0 +1,146 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32C;
+
+/**
+ * Checks that AtomicFile hands back what was written to it, and refuses what it can't
+ * vouch for:
+ *
+ * - what was written is read back as it was
+ * - a file that doesn't match its checksum can't be read, but readOrPrevious() goes back
+ *   to the previous generation and says so, and the next write replaces both
+ * - a file whose trailer was cut off, in part or as a whole, can't be read
+ * - a file with a trailer but no header (written before there was a header) is still
+ *   checked, and a plain file from before there were checksums is read as it is
+ *
+ * Run it with: java AtomicFileCheck
+ *
+ * It exits with 1 if any check fails, and the build runs it in the test phase. It works
+ * in a temporary directory.
+ */
+public class AtomicFileCheck {
+
+	private static File dir;
+	private static int failed;
+
+	public static void main(String[] args) throws Exception {
+		dir = Files.createTempDirectory("atomic-file-check").toFile();
+
+		checkGenerations();
+		checkCutOff();
+		checkOlderFiles();
+
+		if (failed > 0) {
+			System.out.println(failed + " CHECKS FAILED");
+			System.exit(1);
+		}
+		System.out.println("every check passed");
+	}
+
+	private static void checkGenerations() throws Exception {
+		File path = new File(dir, "generations");
+		AtomicFile file = new AtomicFile(path.getPath());
+		check("a file that was never written reads as nothing", !file.exists() && file.read() == null);
+		write(file, "first");
+		check("what was written is read back", "first".equals(contents(file.read())));
+		write(file, "second");
+		check("what was written last is read back", "second".equals(contents(file.read())));
+
+		flipByte(path, 6);
+		check("a damaged file can't be read", !readable(file));
+		check("going back from a damaged file gives the one before it",
+				"first".equals(contents(file.readOrPrevious())) && file.wentBack());
+
+		write(file, "third");
+		check("the write after going back replaces both generations",
+				"third".equals(contents(file.read())) && !file.wentBack()
+						&& "third".equals(contents(new AtomicFile(path.getPath() + ".prev").read())));
+		write(file, "fourth");
+		check("the write after that keeps the one before it", "fourth".equals(contents(file.readOrPrevious()))
+				&& !file.wentBack() && "third".equals(contents(new AtomicFile(path.getPath() + ".prev").read())));
+	}
+
+	private static void checkCutOff() throws Exception {
+		// cut into the trailer, the whole trailer, and into the contents as well
+		for (int cut : new int[] { 3, 16, 18 }) {
+			File path = new File(dir, "cut-" + cut);
+			AtomicFile file = new AtomicFile(path.getPath());
+			write(file, "a little more than a trailer");
+			try (RandomAccessFile f = new RandomAccessFile(path, "rw")) {
+				f.setLength(f.length() - cut);
+			}
+			check("a file cut short by " + cut + " bytes can't be read", !readable(file));
+		}
+	}
+
+	private static void checkOlderFiles() throws Exception {
+		// the contents and the trailer, as they were written before there was a header
+		byte[] text = "written before the header".getBytes(StandardCharsets.UTF_8);
+		CRC32C crc = new CRC32C();
+		crc.update(text);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(text);
+		out.writeLong(text.length);
+		out.writeInt((int) crc.getValue());
+		out.writeInt(0x57434B31);
+		out.flush();
+		File path = new File(dir, "trailer-only");
+		Files.write(path.toPath(), bytes.toByteArray());
+		AtomicFile file = new AtomicFile(path.getPath());
+		check("a file with a trailer but no header is read",
+				"written before the header".equals(contents(file.read())));
+		flipByte(path, 3);
+		check("a damaged file with a trailer but no header can't be read", !readable(file));
+
+		// an id counter from before there were checksums
+		File counter = new File(dir, "plain");
+		Files.write(counter.toPath(), "42\n".getBytes(StandardCharsets.UTF_8));
+		check("a file from before there were checksums is read as it is",
+				"42\n".equals(contents(new AtomicFile(counter.getPath()).read())));
+	}
+
+	private static void write(AtomicFile file, String text) throws IOException {
+		file.write(out -> out.write(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String contents(InputStream in) throws IOException {
+		if (in == null) {
+			return null;
+		}
+		try (InputStream opened = in) {
+			return new String(opened.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static boolean readable(AtomicFile file) {
+		try {
+			contents(file.read());
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static void flipByte(File path, long at) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(path, "rw")) {
+			f.seek(at);
+			int b = f.read();
+			f.seek(at);
+			f.write(b ^ 0x55);
+		}
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok      " : "FAILED  ") + what);
+		if (!ok) {
+			failed++;
+		}
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads purchases from a settlement file and makes them in batches, instead of one at a
+ * time like the app does. For every batch the ids are taken from the counter in one go,
+ * the purchases are checked and added card by card, and the user is saved once at the
+ * end, so a file with millions of purchases doesn't write a journal record (or touch
+ * the counter file) for every one of them.
+ *
+ * The file has one purchase per line, with the fields separated by commas:
+ *
+ * card,amount,type,vendor,street,city,state,zip[,date_time]
+ *
+ * for example 12,19.99,food,"Joe's, Inc",1 Main St,Chicago,IL,60601,2024-03-09T14:05:59
+ *
+ * A field with a comma in it goes in quotes, with any quotes in it doubled. The date
+ * and time are optional, without them the purchase is made now. A first line that
+ * starts with "card" is taken as a header and skipped.
+ *
+ * Run it with: java BatchIngestion file [rejected=file] [batch=50000]
+ */
+public class BatchIngestion {
+
+	public static final int DEFAULT_BATCH_SIZE = 50_000;
+
+	// the first few rejected lines are kept in the report as examples
+	private static final int SAMPLE_REJECTIONS = 20;
+
+	public enum Rejection {
+		MALFORMED_LINE, UNKNOWN_CARD, CARD_NOT_ACTIVE, OVER_AVAILABLE_CREDIT
+	}
+
+	/**
+	 * how many purchases were accepted and rejected, and how fast it went
+	 */
+	public static class Report {
+		private long lines;
+		private long accepted;
+		private long acceptedCents;
+		private final EnumMap<Rejection, Long> rejected = new EnumMap<>(Rejection.class);
+		private final List<String> sampleRejections = new ArrayList<>();
+		private int batches;
+		private long nanos;
+
+		public long getLines() {
+			return lines;
+		}
+
+		public long getAccepted() {
+			return accepted;
+		}
+
+		// the amount of all the accepted purchases, without their fees
+		public long getAcceptedCents() {
+			return acceptedCents;
+		}
+
+		public long getRejected() {
+			long total = 0;
+			for (long count : rejected.values()) {
+				total += count;
+			}
+			return total;
+		}
+
+		public long getRejected(Rejection reason) {
+			return rejected.getOrDefault(reason, 0L);
+		}
+
+		public int getBatches() {
+			return batches;
+		}
+
+		public double getSeconds() {
+			return nanos / 1e9;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append("Purchases read: " + lines + " in " + batches + " batches\n");
+			str.append("Accepted: " + accepted + " for a total of " + Money.format(acceptedCents) + "\n");
+			str.append("Rejected: " + getRejected() + "\n");
+			for (Map.Entry<Rejection, Long> reason : rejected.entrySet()) {
+				str.append("\t" + reason.getKey() + ": " + reason.getValue() + "\n");
+			}
+			for (String sample : sampleRejections) {
+				str.append("\t" + sample + "\n");
+			}
+			str.append(String.format("Took %.2f seconds, %.0f purchases per second%n", getSeconds(),
+					lines / Math.max(getSeconds(), 1e-9)));
+			return str.toString();
+		}
+
+		private void reject(long lineNumber, String line, Rejection reason, Writer rejectedOut) throws IOException {
+			rejected.merge(reason, 1L, Long::sum);
+			if (sampleRejections.size() < SAMPLE_REJECTIONS) {
+				sampleRejections.add("line " + lineNumber + " " + reason + ": " + line);
+			}
+			if (rejectedOut != null) {
+				rejectedOut.write(lineNumber + "," + reason + "," + line + "\n");
+			}
+		}
+	}
+
+	// a line that was read and made sense, waiting for its batch to be made
+	private static class Row {
+		final long lineNumber;
+		final String line;
+		final String cardId;
+		final long amountCents;
+		final PurchaseType type;
+		final Vendor vendor;
+		// null to make it now
+		final LocalDateTime dateAndTime;
+		Purchase purchase;
+
+		Row(long lineNumber, String line, String cardId, long amountCents, PurchaseType type, Vendor vendor,
+				LocalDateTime dateAndTime) {
+			this.lineNumber = lineNumber;
+			this.line = line;
+			this.cardId = cardId;
+			this.amountCents = amountCents;
+			this.type = type;
+			this.vendor = vendor;
+			this.dateAndTime = dateAndTime;
+		}
+	}
+
+	private final WalletService wallet;
+	private final int batchSize;
+
+	public BatchIngestion(WalletService wallet) {
+		this(wallet, DEFAULT_BATCH_SIZE);
+	}
+
+	public BatchIngestion(WalletService wallet, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("A batch has to have at least one purchase in it");
+		}
+		this.wallet = wallet;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * makes all the purchases in a file
+	 *
+	 * @param rejectedOut every rejected line is written here with its line number and
+	 *                    the reason, or null to only count them
+	 */
+	public Report ingest(Reader in, Writer rejectedOut) throws IOException {
+		Report report = new Report();
+		long start = System.nanoTime();
+		BufferedReader lines = new BufferedReader(in, 1 << 16);
+		ArrayList<Row> batch = new ArrayList<>();
+		long lineNumber = 0;
+		String line;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			if (line.isEmpty() || (lineNumber == 1 && line.startsWith("card"))) {
+				continue;
+			}
+			report.lines++;
+			Row row = parse(lineNumber, line);
+			if (row == null) {
+				report.reject(lineNumber, line, Rejection.MALFORMED_LINE, rejectedOut);
+			} else {
+				batch.add(row);
+				if (batch.size() == batchSize) {
+					apply(batch, report, rejectedOut);
+					batch.clear();
+				}
+			}
+		}
+		if (!batch.isEmpty()) {
+			apply(batch, report, rejectedOut);
+		}
+		if (rejectedOut != null) {
+			rejectedOut.flush();
+		}
+		report.nanos = System.nanoTime() - start;
+		return report;
+	}
+
+	private void apply(List<Row> batch, Report report, Writer rejectedOut) throws IOException {
+		// every purchase has an interest fee, and in the app the fee is made first, so
+		// the fee of row i gets id first+2i and the purchase first+2i+1
+		long firstId = Transaction.reserveIds(batch.size() * 2);
+		LocalDateTime now = LocalDateTime.now();
+		LinkedHashMap<String, List<Purchase>> byCard = new LinkedHashMap<>();
+		LinkedHashMap<String, List<Row>> rowsByCard = new LinkedHashMap<>();
+		for (int i = 0; i < batch.size(); i++) {
+			Row row = batch.get(i);
+			LocalDateTime dateAndTime = row.dateAndTime != null ? row.dateAndTime : now;
+			Fee fee = new Fee(firstId + 2 * i, dateAndTime,
+					Money.percentOf(row.amountCents, WalletService.INTEREST_BASIS_POINTS, RoundingMode.HALF_EVEN),
+					FeeType.interest);
+			row.purchase = new Purchase(firstId + 2 * i + 1, dateAndTime, row.amountCents, row.type, row.vendor, fee);
+			byCard.computeIfAbsent(row.cardId, id -> new ArrayList<>()).add(row.purchase);
+			rowsByCard.computeIfAbsent(row.cardId, id -> new ArrayList<>()).add(row);
+		}
+
+		Map<String, boolean[]> results = wallet.authorizeBatch(byCard);
+		report.batches++;
+
+		for (Map.Entry<String, List<Row>> card : rowsByCard.entrySet()) {
+			boolean[] accepted = results.get(card.getKey());
+			List<Row> rows = card.getValue();
+			// the status can't have changed since the batch was made, the card still only
+			// takes purchases when it is active
+			Rejection declined = accepted == null ? Rejection.UNKNOWN_CARD
+					: wallet.status(card.getKey()) != CreditCardStatus.ACTIVE ? Rejection.CARD_NOT_ACTIVE
+							: Rejection.OVER_AVAILABLE_CREDIT;
+			for (int i = 0; i < rows.size(); i++) {
+				Row row = rows.get(i);
+				if (accepted != null && accepted[i]) {
+					report.accepted++;
+					report.acceptedCents += row.amountCents;
+				} else {
+					report.reject(row.lineNumber, row.line, declined, rejectedOut);
+				}
+			}
+		}
+	}
+
+	// null if the line doesn't make sense
+	private static Row parse(long lineNumber, String line) {
+		List<String> fields = splitFields(line);
+		if (fields == null || fields.size() < 8 || fields.size() > 9) {
+			return null;
+		}
+		long amountCents = Money.parse(fields.get(1).trim(), RoundingMode.HALF_EVEN);
+		PurchaseType type = parseEnum(PurchaseType.class, fields.get(2));
+		USState state = parseEnum(USState.class, fields.get(6));
+		if (fields.get(0).isEmpty() || amountCents <= 0 || type == null || state == null) {
+			return null;
+		}
+		LocalDateTime dateAndTime = null;
+		if (fields.size() == 9 && !fields.get(8).isEmpty()) {
+			try {
+				dateAndTime = LocalDateTime.parse(fields.get(8).trim());
+			} catch (DateTimeParseException e) {
+				return null;
+			}
+		}
+		// a settlement file has the same few vendors over and over, so they are shared
+		Vendor vendor = VendorRegistry.shared().vendor(fields.get(3), fields.get(4), fields.get(5), state, fields.get(7));
+		return new Row(lineNumber, line, fields.get(0).trim(), amountCents, type, vendor, dateAndTime);
+	}
+
+	// splits a line at its commas, except for commas in quotes. null if a quote isn't
+	// closed
+	private static List<String> splitFields(String line) {
+		ArrayList<String> fields = new ArrayList<>(9);
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted) {
+			return null;
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	// matches the name of one of the values, ignoring case. null if none of them match
+	private static <E extends Enum<E>> E parseEnum(Class<E> type, String name) {
+		String trimmed = name.trim();
+		for (E e : type.getEnumConstants()) {
+			if (e.name().equalsIgnoreCase(trimmed)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * makes the purchases in a file on the cards of the app's user
+	 */
+	public static void main(String[] args) throws IOException, ClassNotFoundException {
+		if (args.length < 1) {
+			System.out.println("Usage: java BatchIngestion file [rejected=file] [batch=50000]");
+			return;
+		}
+		String rejectedFile = null;
+		int batchSize = DEFAULT_BATCH_SIZE;
+		for (int i = 1; i < args.length; i++) {
+			String[] parts = args[i].split("=", 2);
+			switch (parts[0]) {
+			case "rejected":
+				rejectedFile = parts[1];
+				break;
+			case "batch":
+				batchSize = Integer.parseInt(parts[1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		// the same files the app uses
+		CreditCard.initializeIdCounter();
+		Transaction.initializeIdCounter();
+		CreditCard.keepHistoryIn(System.getProperty("wallet.historyDir"));
+		TransactionJournal persistence = new TransactionJournal("UserInfo.bin", "UserInfo.txt", "UserJournal.log", 500);
+		User user = persistence.load();
+		if (user == null) {
+			System.out.println("There is no user yet. Run the app first to set one up.");
+			return;
+		}
+		WalletService wallet = new WalletService(user, persistence);
+		wallet.expireCards();
+
+		Writer rejectedOut = rejectedFile == null ? null : new BufferedWriter(new FileWriter(rejectedFile));
+		try (Reader in = new FileReader(new File(args[0]))) {
+			Report report = new BatchIngestion(wallet, batchSize).ingest(in, rejectedOut);
+			System.out.print(report);
+		} finally {
+			if (rejectedOut != null) {
+				rejectedOut.close();
+			}
+			wallet.close();
+		}
+	}
+}
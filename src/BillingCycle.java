@@ -0,0 +1,88 @@
+import java.io.Serializable;
+import java.time.LocalDate;
+
+/**
+ * Where a card is in its billing: the cycle that is open right now, and what the last
+ * statement said was owed. The StatementEngine closes a cycle by going through only the
+ * transactions that were added since the last one closed (starting at firstRow) and
+ * then replaces this with the state of the next cycle, so it never has to go through
+ * the whole history of a card again.
+ *
+ * Cycles are a month long and close on the day of the month the card was issued on
+ * (or the last day of a shorter month). It never changes once it is made, so it can be
+ * read without holding the lock on the card.
+ */
+public final class BillingCycle implements Serializable {
+	// need this field for the serialization
+	private static final long serialVersionUID = 1L;
+
+	// the open cycle closes at the start of issueDate.plusMonths(cycleNumber). counting
+	// from the issue date every time keeps a card issued on the 31st closing on the last
+	// day of every month instead of drifting to the 28th after February
+	private final int cycleNumber;
+	private final LocalDate openedOn;
+	// every row before this one is in a closed cycle already
+	private final int firstRow;
+	// how many rows the card had when the last cycle was closed. rows from firstRow up to
+	// here that are dated before openedOn were in the last cycle, the ones after it
+	// weren't looked at yet
+	private final int scannedTo;
+	// all in cents
+	private final long openingBalance;
+	private final long statementBalance;
+	private final long minimumDue;
+	// when the minimum of the last statement has to be paid by, or null if there is no
+	// statement yet
+	private final LocalDate dueDate;
+
+	public BillingCycle(int cycleNumber, LocalDate openedOn, int firstRow, int scannedTo, long openingBalance,
+			long statementBalance, long minimumDue, LocalDate dueDate) {
+		this.cycleNumber = cycleNumber;
+		this.openedOn = openedOn;
+		this.firstRow = firstRow;
+		this.scannedTo = scannedTo;
+		this.openingBalance = openingBalance;
+		this.statementBalance = statementBalance;
+		this.minimumDue = minimumDue;
+		this.dueDate = dueDate;
+	}
+
+	public int getCycleNumber() {
+		return cycleNumber;
+	}
+
+	public LocalDate getOpenedOn() {
+		return openedOn;
+	}
+
+	/**
+	 * the day the open cycle closes on. it ends at the very start of that day
+	 */
+	public LocalDate closesOn(LocalDate issueDate) {
+		return issueDate.plusMonths(cycleNumber);
+	}
+
+	public int getFirstRow() {
+		return firstRow;
+	}
+
+	public int getScannedTo() {
+		return scannedTo;
+	}
+
+	public long getOpeningBalance() {
+		return openingBalance;
+	}
+
+	public long getStatementBalance() {
+		return statementBalance;
+	}
+
+	public long getMinimumDue() {
+		return minimumDue;
+	}
+
+	public LocalDate getDueDate() {
+		return dueDate;
+	}
+}
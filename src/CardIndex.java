@@ -0,0 +1,203 @@
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Hash index of credit cards keyed on the numeric value of their id, so looking up,
+ * adding and removing a card doesn't have to walk through all the cards. The keys are
+ * kept as primitive longs so a lookup never boxes anything. The cards are also linked
+ * together in the order they were added so iterating over them keeps that order.
+ */
+public class CardIndex implements Iterable<CreditCard> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static class Entry {
+		final long key;
+		CreditCard card;
+		// next entry in the same bucket
+		Entry nextInBucket;
+		// the entries before and after this one in the order they were added
+		Entry before;
+		Entry after;
+
+		Entry(long key, CreditCard card) {
+			this.key = key;
+			this.card = card;
+		}
+	}
+
+	private Entry[] buckets = new Entry[INITIAL_CAPACITY];
+	private Entry first;
+	private Entry last;
+	private int size;
+	// changes every time a card is added or removed so iterators can tell
+	private int modCount;
+
+	/**
+	 * turns a card id into its key
+	 *
+	 * @return the numeric value of the id, or -1 if the id isn't a number
+	 */
+	public static long keyOf(String id) {
+		// anything longer than 18 digits could overflow a long
+		if (id == null || id.isEmpty() || id.length() > 18) {
+			return -1;
+		}
+		long key = 0;
+		for (int i = 0; i < id.length(); i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			key = key * 10 + (c - '0');
+		}
+		return key;
+	}
+
+	public void add(CreditCard card) {
+		long key = keyOf(card.getCreditCardId());
+		if (key < 0) {
+			throw new IllegalArgumentException("Credit card id must be a number: " + card.getCreditCardId());
+		}
+		Entry existing = find(key);
+		if (existing != null) {
+			existing.card = card;
+			return;
+		}
+		if (size >= buckets.length * 3 / 4) {
+			resize();
+		}
+		Entry e = new Entry(key, card);
+		int b = bucketOf(key, buckets.length);
+		e.nextInBucket = buckets[b];
+		buckets[b] = e;
+
+		if (last == null) {
+			first = e;
+		} else {
+			last.after = e;
+			e.before = last;
+		}
+		last = e;
+		size++;
+		modCount++;
+	}
+
+	/**
+	 * @return the card with this id, or null if there isn't one
+	 */
+	public CreditCard get(String id) {
+		long key = keyOf(id);
+		if (key < 0) {
+			return null;
+		}
+		Entry e = find(key);
+		return e == null ? null : e.card;
+	}
+
+	/**
+	 * @return the card that was removed, or null if there was no card with this id
+	 */
+	public CreditCard remove(String id) {
+		long key = keyOf(id);
+		if (key < 0) {
+			return null;
+		}
+		int b = bucketOf(key, buckets.length);
+		Entry prev = null;
+		for (Entry e = buckets[b]; e != null; prev = e, e = e.nextInBucket) {
+			if (e.key == key) {
+				// unlink it from its bucket
+				if (prev == null) {
+					buckets[b] = e.nextInBucket;
+				} else {
+					prev.nextInBucket = e.nextInBucket;
+				}
+				// unlink it from the order the cards were added in
+				if (e.before == null) {
+					first = e.after;
+				} else {
+					e.before.after = e.after;
+				}
+				if (e.after == null) {
+					last = e.before;
+				} else {
+					e.after.before = e.before;
+				}
+				size--;
+				modCount++;
+				return e.card;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the cards in the order they were added
+	 */
+	public CreditCard[] toArray() {
+		CreditCard[] array = new CreditCard[size];
+		int i = 0;
+		for (Entry e = first; e != null; e = e.after) {
+			array[i++] = e.card;
+		}
+		return array;
+	}
+
+	@Override
+	public Iterator<CreditCard> iterator() {
+		return new Iterator<CreditCard>() {
+			private Entry next = first;
+			private final int expectedModCount = modCount;
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public CreditCard next() {
+				if (modCount != expectedModCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				CreditCard card = next.card;
+				next = next.after;
+				return card;
+			}
+		};
+	}
+
+	private Entry find(long key) {
+		for (Entry e = buckets[bucketOf(key, buckets.length)]; e != null; e = e.nextInBucket) {
+			if (e.key == key) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private void resize() {
+		Entry[] newBuckets = new Entry[buckets.length * 2];
+		// walking the cards in order visits every entry exactly once
+		for (Entry e = first; e != null; e = e.after) {
+			int b = bucketOf(e.key, newBuckets.length);
+			e.nextInBucket = newBuckets[b];
+			newBuckets[b] = e;
+		}
+		buckets = newBuckets;
+	}
+
+	// card ids are handed out one after another, so spread the bits before masking
+	private static int bucketOf(long key, int length) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & (length - 1);
+	}
+}
@@ -0,0 +1,160 @@
+import java.time.LocalDate;
+
+/**
+ * A card as it was right after one change to it: its status, balance, running totals
+ * and transactions. A card makes a new one every time it changes, while it still holds
+ * its lock, and hands it out without taking the lock, so reading a snapshot never makes
+ * a purchase or a payment wait and everything in it always goes together.
+ *
+ * The transactions aren't copied. The snapshot has a frozen view of the card's columns,
+ * which only reads the rows there were when it was made, while the card keeps adding
+ * rows after them. Nothing holds on to an old snapshot except whoever is reading it, so
+ * the garbage collector takes it (and any columns only it still used) once they're done.
+ */
+public final class CardSnapshot {
+
+	private final String creditCardId;
+	private final LocalDate issueDate;
+	private final LocalDate expirationDate;
+	private final CreditCardType issueCompany;
+	private final CreditCardStatus status;
+	// all the amounts are in cents
+	private final long creditLimit;
+	private final long currBalance;
+	private final long availCredit;
+	private final long totalFees;
+	// never changed after the snapshot is made. snapshots share it until a purchase
+	// changes it
+	private final long[] spentPerPurchaseType;
+	// rows in the history, or -1 if there is no such transaction
+	private final int largestPurchaseRow;
+	private final int mostRecentPurchaseRow;
+	private final int mostRecentPaymentRow;
+	private final TransactionStore history;
+	// when the card was added to its wallet, counting from 0. -1 if it isn't in one
+	private final long addedOrder;
+
+	CardSnapshot(String creditCardId, LocalDate issueDate, LocalDate expirationDate, CreditCardType issueCompany,
+			CreditCardStatus status, long creditLimit, long currBalance, long availCredit, long totalFees,
+			long[] spentPerPurchaseType, int largestPurchaseRow, int mostRecentPurchaseRow, int mostRecentPaymentRow,
+			TransactionStore history, long addedOrder) {
+		this.creditCardId = creditCardId;
+		this.issueDate = issueDate;
+		this.expirationDate = expirationDate;
+		this.issueCompany = issueCompany;
+		this.status = status;
+		this.creditLimit = creditLimit;
+		this.currBalance = currBalance;
+		this.availCredit = availCredit;
+		this.totalFees = totalFees;
+		this.spentPerPurchaseType = spentPerPurchaseType;
+		this.largestPurchaseRow = largestPurchaseRow;
+		this.mostRecentPurchaseRow = mostRecentPurchaseRow;
+		this.mostRecentPaymentRow = mostRecentPaymentRow;
+		this.history = history;
+		this.addedOrder = addedOrder;
+	}
+
+	// the same snapshot, for a card that was just added to a wallet
+	CardSnapshot withAddedOrder(long order) {
+		return new CardSnapshot(creditCardId, issueDate, expirationDate, issueCompany, status, creditLimit,
+				currBalance, availCredit, totalFees, spentPerPurchaseType, largestPurchaseRow, mostRecentPurchaseRow,
+				mostRecentPaymentRow, history, order);
+	}
+
+	public String getCreditCardId() {
+		return creditCardId;
+	}
+
+	public LocalDate getIssuanceDate() {
+		return issueDate;
+	}
+
+	public LocalDate getExpirationDate() {
+		return expirationDate;
+	}
+
+	public CreditCardType getIssueCompany() {
+		return issueCompany;
+	}
+
+	public CreditCardStatus getStatus() {
+		return status;
+	}
+
+	public long getCreditLimit() {
+		return creditLimit;
+	}
+
+	public long getCurrBalance() {
+		return currBalance;
+	}
+
+	public long getAvailCredit() {
+		return availCredit;
+	}
+
+	public long getTotalFees() {
+		return totalFees;
+	}
+
+	public long getTotalSpentOnCertainCategoryOfExpense(PurchaseType p) {
+		return spentPerPurchaseType[p.ordinal()];
+	}
+
+	public int numOfTransactions() {
+		return history.size();
+	}
+
+	/**
+	 * the first purchase of the largest amount, or null if there are no purchases
+	 */
+	public Purchase getLargestPurchaseOnThisCard() {
+		return largestPurchaseRow < 0 ? null : (Purchase) history.get(largestPurchaseRow);
+	}
+
+	public Purchase mostRecentPurchase() {
+		return mostRecentPurchaseRow < 0 ? null : (Purchase) history.get(mostRecentPurchaseRow);
+	}
+
+	public Payment mostRecentPayment() {
+		return mostRecentPaymentRow < 0 ? null : (Payment) history.get(mostRecentPaymentRow);
+	}
+
+	/**
+	 * the transactions of the card when the snapshot was made
+	 */
+	public TransactionStore history() {
+		return history;
+	}
+
+	// for putting together the totals of a wallet without making transaction objects.
+	// -1 if there are no purchases or payments
+
+	long largestPurchaseAmount() {
+		return largestPurchaseRow < 0 ? -1 : history.amount(largestPurchaseRow);
+	}
+
+	long mostRecentPaymentMicros() {
+		return mostRecentPaymentRow < 0 ? Long.MIN_VALUE : history.micros(mostRecentPaymentRow);
+	}
+
+	// shared with the next snapshot if it didn't change
+	long[] spentPerPurchaseType() {
+		return spentPerPurchaseType;
+	}
+
+	// when two cards are just as good for a total over the wallet, the one added first wins
+	long addedOrder() {
+		return addedOrder;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		str.append("Credit Card Id: " + creditCardId);
+		str.append("\tCredit Card Status: " + status);
+		str.append("\tCredit Card Type: " + issueCompany);
+		return str.toString();
+	}
+}
@@ -1,55 +1,133 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.time.*;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 public class CreditCard implements Serializable {
 	// need this field for the serialization
 	private static final long serialVersionUID = 1L;
 
-	// static integer that all credit cards will share and will be incremented for
-	// each card
-	private static int idCounter;
+	// all credit cards share this allocator. cards are created rarely, so it reserves
+	// small blocks of ids to keep the ids close together
+	private static IdAllocator ids;
 
-	// we need to set the id counter to what it was last time we ran the program
-	// it is therefore saved in a file. main will call this method to initialize it
+	// we need to start the ids after the last one given out the last time we ran the
+	// program. it is therefore saved in a file. main will call this method to initialize it
 	public static void initializeIdCounter() throws IOException {
+		initializeIdCounter("CreditCardIdCounter.txt");
+	}
+
+	// the same, but with the counter kept in a different file (benchmarks use this so
+	// they don't use up the real ids)
+	public static void initializeIdCounter(String counterFile) throws IOException {
+		ids = new IdAllocator(counterFile, 100);
+	}
+
+	// where the transactions of every card are kept on disk, or null to keep them in
+	// memory (and save them with the rest of the user)
+	private static volatile String historyDirectory;
 
-		BufferedReader input = new BufferedReader(new FileReader("CreditCardIdCounter.txt"));
-		idCounter = Integer.parseInt(input.readLine());
-		input.close();
+	/**
+	 * keeps the transactions of every card in memory mapped files in this directory
+	 * instead of in memory, so a card with years of history doesn't have to be read in
+	 * when the app starts. cards that were saved with their transactions are moved
+	 * over when they are loaded. null goes back to keeping them in memory
+	 */
+	public static void keepHistoryIn(String directory) {
+		historyDirectory = directory;
+	}
 
+	// opens the transactions of a card that are kept on disk, with as many rows as it had
+	// when the card was saved
+	static TransactionStore openHistory(String creditCardId, int rows) throws IOException {
+		String directory = historyDirectory;
+		if (directory == null) {
+			throw new IOException("Card " + creditCardId + " keeps its transactions on disk, but no directory was given");
+		}
+		return MappedTransactionLog.open(new File(directory, creditCardId), rows);
 	}
 
-	// every time a new credit card is created, besides for updating the idcounter,
-	// we need to update it in the file
-	private static void updateLastUsedIdInFile() throws IOException {
-		FileWriter output  = new FileWriter("CreditCardIdCounter.txt");
-			output.write(idCounter + "");
-			output.close();
-		
+	// checks purchases against the ones just made on the same card before they are
+	// accepted, or null to not check them
+	private static volatile VelocityScorer velocityScorer;
+
+	/**
+	 * checks every purchase that is authorized against the purchases that were just made
+	 * on the same card. null stops checking them
+	 */
+	public static void scorePurchasesWith(VelocityScorer scorer) {
+		velocityScorer = scorer;
+	}
+
+	private static TransactionStore newHistory(String creditCardId) throws IOException {
+		return historyDirectory == null ? new TransactionColumns() : openHistory(creditCardId, 0);
 	}
 
 	private String creditCardId;
 	private LocalDate issueDate;
 	private LocalDate expirationDate;
 	private CreditCardType issueCompany;
-	private CreditCardStatus status;
-	private double creditCardLimit;
-	private double currBalance;
-	private double availCredit;
-	private ArrayList<Transaction> transactions;
+	// the status is read without taking the lock on the card (to show it, for example),
+	// so it is volatile to make sure the latest one is seen
+	private volatile CreditCardStatus status;
+	// all the amounts on the card are kept in cents
+	private long creditLimitCents;
+	private long currBalanceCents;
+	private long availCreditCents;
+	// the transactions are kept column by column in primitive arrays instead of as a
+	// list of objects, either in memory or in files on disk
+	private TransactionStore history;
+	// the billing cycle that is open and what the last statement said, or null if the
+	// card was never billed
+	private BillingCycle billingCycle;
+
+	// running totals that are updated every time a transaction is added, so the methods
+	// that report on them don't have to go through all the transactions. they aren't
+	// saved in the file, they are worked out again once when the card is read back in
+	private transient long totalFees;
+	// how much was spent on each type of purchase, indexed by the ordinal of the type
+	private transient long[] spentPerPurchaseType;
+	// rows in the history, or -1 if there is no such transaction yet
+	private transient int largestPurchaseRow;
+	private transient int mostRecentPurchaseRow;
+	private transient int mostRecentPaymentRow;
+	// the rows sorted by time, for looking up the transactions in a period. it is only
+	// made the first time someone asks for one
+	private transient TimeIndex timeIndex;
+	// the last few purchases, for the velocity scorer. made with the first purchase that
+	// is scored
+	private transient VelocityScorer.Window recentPurchases;
+	// the card as it was after the last change, for reading it without the lock. a new
+	// one is made (still holding the lock) every time the card changes
+	private transient volatile CardSnapshot snapshot;
+	// whether a purchase changed spentPerPurchaseType since the last snapshot. if not, the
+	// next snapshot shares the array of the last one
+	private transient boolean spentChanged;
+	// the user whose wallet this card is in, told about every new snapshot, and where in
+	// that wallet it is (only a hint, the wallet looks for the card if it moved)
+	private transient User owner;
+	private transient volatile int position;
+	// when the card was added to that wallet, for breaking ties the way they were broken
+	// when the cards were gone through in the order they were added. -1 if it isn't in one
+	private transient long addedOrder = -1;
+
+	// everything that reads or changes the balance or the transactions of a card holds
+	// the lock on that card, so different cards can be used at the same time
 
 	// constructor
 	public CreditCard(LocalDate issueDate, LocalDate expirationDate, CreditCardType company) throws IOException {
-		// increments the id and converts it to a string at sets it to the credit card
+		// takes the next id and converts it to a string and sets it to the credit card
 		// id of this card
-		this.creditCardId = ((Integer) (++idCounter)).toString();
-		//now that we changed the value of id counter, we need to save it in the file as well
-		updateLastUsedIdInFile();
+		this.creditCardId = Long.toString(ids.nextId());
 
 		this.issueDate = issueDate;
 		this.expirationDate = expirationDate;
@@ -58,45 +136,152 @@ public class CreditCard implements Serializable {
 		// active
 		this.status = ((expirationDate.compareTo(LocalDate.now()) < 0) ? CreditCardStatus.EXPIRED
 				: CreditCardStatus.ACTIVE);
-		this.creditCardLimit = 2000;
-		this.currBalance = 0;
-		this.availCredit = creditCardLimit;
-		this.transactions = new ArrayList<>();
+		this.creditLimitCents = 2000 * Money.CENTS_PER_DOLLAR;
+		this.currBalanceCents = 0;
+		this.availCreditCents = creditLimitCents;
+		this.history = newHistory(creditCardId);
+		resetTotals();
+		publish();
 	}
-	public void addFee(Fee f) {
-		this.transactions.add(f);
-		this.currBalance += f.getAmount();
-		availCredit = creditCardLimit - currBalance;
+
+	// rebuilds a card that was already issued (for example when replaying the journal),
+	// so it keeps its original id and status and doesn't take a new id from the counter
+	public CreditCard(String creditCardId, LocalDate issueDate, LocalDate expirationDate, CreditCardType company,
+			CreditCardStatus status, long creditLimitCents) throws IOException {
+		this(creditCardId, issueDate, expirationDate, company, status, creditLimitCents, 0,
+				newHistory(creditCardId), null);
 	}
-	public void addPayment(Payment p) {
-		//if they pay more than their balance, it only pays upto their balance
-		double amount = p.getAmount();
-		this.transactions.add(p);
-		this.currBalance -= amount;
-		availCredit += amount;
 
+	// puts back a card that was read from a file, with its balance and its transactions.
+	// the running totals are worked out again from the transactions if they're null
+	CreditCard(String creditCardId, LocalDate issueDate, LocalDate expirationDate, CreditCardType company,
+			CreditCardStatus status, long creditLimitCents, long currBalanceCents, TransactionStore history,
+			long[] totals) throws IOException {
+		this.creditCardId = creditCardId;
+		this.issueDate = issueDate;
+		this.expirationDate = expirationDate;
+		this.issueCompany = company;
+		this.status = status;
+		this.creditLimitCents = creditLimitCents;
+		this.currBalanceCents = currBalanceCents;
+		this.availCreditCents = creditLimitCents - currBalanceCents;
+		this.history = adoptHistory(history);
+		if (totals == null || this.history != history) {
+			rebuildTotals();
+		} else {
+			restoreTotals(totals);
+		}
+		publish();
+	}
+	// the public methods that change the card each make one new snapshot when they are
+	// done, the appendX methods below don't make any
+	public synchronized void addFee(Fee f) {
+		appendFee(f);
+		publish();
+	}
+	public synchronized void addPayment(Payment p) {
+		//if they pay more than their balance, it only pays upto their balance
+		long amount = p.getAmount();
+		this.history.add(p);
+		updateTotals(history.size() - 1);
+		this.currBalanceCents -= amount;
+		availCreditCents += amount;
+		publish();
+	}
+	public synchronized void addPurchase(Purchase p) {
+		appendPurchase(p);
+		publish();
+	}
+	// adds a purchase that was already accepted before (for example when replaying the
+	// journal) without checking the card can take it
+	public synchronized void restorePurchase(Purchase p) {
+		appendRestoredPurchase(p);
+		publish();
 	}
-	public void addPurchase(Purchase p) {
+	private void appendFee(Fee f) {
+		this.history.add(f);
+		updateTotals(history.size() - 1);
+		this.currBalanceCents += f.getAmount();
+		availCreditCents = creditLimitCents - currBalanceCents;
+	}
+	private void appendPurchase(Purchase p) {
 		if(!status.equals(CreditCardStatus.ACTIVE)) {
 			throw new RuntimeException("Card is not active");
 		}
-		this.transactions.add(p);
+		appendRestoredPurchase(p);
+	}
+	private void appendRestoredPurchase(Purchase p) {
+		this.history.add(p);
+		updateTotals(history.size() - 1);
 		//every purchase has an interest fee, so add it as a fee
-		this.addFee(p.getInterestFee());
-		this.currBalance += p.getAmount();
-		availCredit = creditCardLimit - currBalance;
+		this.appendFee(p.getInterestFee());
+		this.currBalanceCents += p.getAmount();
+		availCreditCents = creditLimitCents - currBalanceCents;
 	}
-	public double getAvailCredit() {
-		return this.availCredit;
+	// checks the card can take this purchase and adds it, all while holding the lock on
+	// this card. that way two purchases at the same time can't both pass the check and
+	// go over the limit, while purchases on other cards don't have to wait for this one
+	// if there is a velocity scorer, the purchase is also checked against the ones that
+	// were just made on this card
+	public synchronized boolean authorize(Purchase p) {
+		boolean accepted = authorize(p, velocityScorer);
+		if (accepted) {
+			publish();
+		}
+		return accepted;
+	}
+	// authorizes a batch of purchases, in order, holding the lock once for all of them
+	// instead of once for each. returns which of them were accepted. they are settled
+	// purchases that were already approved somewhere else, so they aren't scored
+	public synchronized boolean[] authorizeAll(List<Purchase> purchases) {
+		boolean[] accepted = new boolean[purchases.size()];
+		for (int i = 0; i < accepted.length; i++) {
+			accepted[i] = authorize(purchases.get(i), null);
+		}
+		// readers see the whole batch at once
+		publish();
+		return accepted;
+	}
+	private boolean authorize(Purchase p, VelocityScorer scorer) {
+		if (status != CreditCardStatus.ACTIVE) {
+			WalletMetrics.shared().declined(WalletMetrics.Decline.CARD_NOT_ACTIVE);
+			return false;
+		}
+		if (p.getAmount() > availCreditCents) {
+			WalletMetrics.shared().declined(WalletMetrics.Decline.INSUFFICIENT_CREDIT);
+			return false;
+		}
+		long now = 0;
+		if (scorer != null) {
+			if (recentPurchases == null) {
+				recentPurchases = scorer.newWindow();
+			}
+			now = System.nanoTime();
+			WalletMetrics.Decline risk = scorer.score(recentPurchases, p, now);
+			if (risk != null) {
+				WalletMetrics.shared().declined(risk);
+				return false;
+			}
+		}
+		appendPurchase(p);
+		if (scorer != null) {
+			scorer.record(recentPurchases, p, now);
+		}
+		WalletMetrics.shared().approved();
+		return true;
+	}
+	// the amounts the card reports are all in cents
+	public synchronized long getAvailCredit() {
+		return this.availCreditCents;
 	}
 	public String getCreditCardId() {
 		return this.creditCardId;
 	}
-	public double getCreditLimit() {
-		return this.creditCardLimit;
+	public long getCreditLimit() {
+		return this.creditLimitCents;
 	}
-	public double getCurrBalance() {
-		return this.currBalance;
+	public synchronized long getCurrBalance() {
+		return this.currBalanceCents;
 
 	}
 	public LocalDate getExpirationDate() {
@@ -105,94 +290,206 @@ public class CreditCard implements Serializable {
 	public LocalDate getIssuanceDate() {
 		return this.issueDate;
 	}
+	public CreditCardType getIssueCompany() {
+		return this.issueCompany;
+	}
 
-	public Purchase getLargestPurchaseOnThisCard(){
+	public synchronized Purchase getLargestPurchaseOnThisCard(){
+		// null if there are no purchases on this card
+		return largestPurchaseRow < 0 ? null : (Purchase) history.get(largestPurchaseRow);
+	}
+	public CreditCardStatus getStatus() {
+		return status;
+	}
 
-		Purchase largestPurchase = null;
-		double largestPurchaseAmount = 0;
+	public synchronized BillingCycle getBillingCycle() {
+		return billingCycle;
+	}
 
-		// loop thru all the transactions and see if any purchases have an amount
-		// greater than the highest so far
-		for (Transaction t : transactions) {
-			// if this transaction is a purchase and its amount is higher than the highiest
-			// purchase amount,
-			if (t instanceof Purchase && t.getAmount() > largestPurchaseAmount) {
-				// make this the largest purchase
-				largestPurchase = (Purchase) t;
-				// make this the largest purchase amount
-				largestPurchaseAmount = t.getAmount();
-			}
-		}
+	// the StatementEngine sets it when it closes a cycle, and it is set when a saved card
+	// is read back in
+	synchronized void setBillingCycle(BillingCycle cycle) {
+		this.billingCycle = cycle;
+	}
 
-		// if largest purchase is still null cuz there are no purchase, return null.
-		// else return thisp purhcase
-		return largestPurchase == null ? null : largestPurchase;
+	public synchronized long getTotalFees() {
+		return totalFees;
 	}
-	public CreditCardStatus getStatus() {
-		return status;
+	public synchronized long getTotalSpentOnCertainCategoryOfExpense(PurchaseType p) {
+		return spentPerPurchaseType[p.ordinal()];
+	}
+	public synchronized void markCancelled() {
+		this.status = CreditCardStatus.CANCELLED;
+		publish();
 	}
 
-	public double getTotalFees() {
-		double total = 0;
-		for (Transaction t : transactions) {
-			if (t instanceof Fee) {
-				total += t.getAmount();
-			}
+	public synchronized void markLost() {
+		this.status = CreditCardStatus.LOST;
+		publish();
+	}
+
+	public synchronized Payment mostRecentPayment() {
+		return mostRecentPaymentRow < 0 ? null : (Payment) history.get(mostRecentPaymentRow);
+	}
+
+	public synchronized Purchase mostRecentPurchase() {
+		return mostRecentPurchaseRow < 0 ? null : (Purchase) history.get(mostRecentPurchaseRow);
+	}
+
+	// the transactions themselves, for writing the card out. whoever uses it has to
+	// hold the lock on the card
+	TransactionStore history() {
+		return history;
+	}
+
+	// the running totals, for saving a card whose transactions aren't saved with it. the
+	// constructor that reads a card back takes them in the same order
+	synchronized long[] totals() {
+		long[] totals = new long[4 + spentPerPurchaseType.length];
+		totals[0] = totalFees;
+		totals[1] = largestPurchaseRow;
+		totals[2] = mostRecentPurchaseRow;
+		totals[3] = mostRecentPaymentRow;
+		System.arraycopy(spentPerPurchaseType, 0, totals, 4, spentPerPurchaseType.length);
+		return totals;
+	}
 
+	/**
+	 * goes through the transactions from one time (included) up to another (not
+	 * included), earliest first. they are read a few at a time as they are needed
+	 */
+	public Iterator<Transaction> transactionsBetween(LocalDateTime from, LocalDateTime to) {
+		synchronized (this) {
+			timeIndex();
 		}
-		return total;
+		return timeIndex.between(this, from, to);
 	}
-	public double getTotalSpentOnCertainCategoryOfExpense(PurchaseType p) {
-		double total = 0;
-		// loop thru all the transactions of the card
-		for (Transaction t : transactions) {
-			// if this transaction is a purchase..
-			if (t instanceof Purchase) {
-				// if the purchase type is the type that we are looking for..
-				if (((Purchase) t).getPurchaseType().equals(p)) {
-					// then add this amount to the total;
-					total += t.getAmount();
-				}
+
+	/**
+	 * how much was spent on purchases in each month from one time (included) up to
+	 * another (not included). months without any purchases are left out
+	 */
+	public synchronized SortedMap<YearMonth, Long> spendPerMonth(LocalDateTime from, LocalDateTime to) {
+		TimeIndex index = timeIndex();
+		long toMicros = TransactionColumns.toMicros(to);
+		TreeMap<YearMonth, Long> spend = new TreeMap<>();
+		for (int position = index.firstAtOrAfter(TransactionColumns.toMicros(from)); position < index.size(); position++) {
+			int row = index.row(position);
+			long micros = history.micros(row);
+			if (micros >= toMicros) {
+				break;
+			}
+			if (history.type(row) == TransactionType.PURCHASE) {
+				spend.merge(YearMonth.from(TransactionColumns.toDateAndTime(micros)), history.amount(row), Long::sum);
 			}
 		}
-		return total;
+		return spend;
 	}
-	public void markCancelled() {
-		this.status = CreditCardStatus.CANCELLED;
+
+	/**
+	 * the payments from one time (included) up to another (not included), for example
+	 * the ones in a billing cycle, earliest first
+	 */
+	public synchronized List<Payment> paymentsBetween(LocalDateTime from, LocalDateTime to) {
+		TimeIndex index = timeIndex();
+		long toMicros = TransactionColumns.toMicros(to);
+		ArrayList<Payment> payments = new ArrayList<>();
+		for (int position = index.firstAtOrAfter(TransactionColumns.toMicros(from)); position < index.size(); position++) {
+			int row = index.row(position);
+			if (history.micros(row) >= toMicros) {
+				break;
+			}
+			if (history.type(row) == TransactionType.PAYMENT) {
+				payments.add((Payment) history.get(row));
+			}
+		}
+		return payments;
 	}
 
-	public void markLost() {
-		this.status = CreditCardStatus.LOST;
+	// has to be called holding the lock on the card
+	private TimeIndex timeIndex() {
+		if (timeIndex == null) {
+			timeIndex = new TimeIndex(history);
+		}
+		timeIndex.catchUp();
+		return timeIndex;
 	}
 
-	public Payment mostRecentPayment() {
-		for(int i=transactions.size()-1; i>0; i--) {
-			if(transactions.get(i) instanceof Payment) {
-				return (Payment)transactions.get(i);
-			}
+	public synchronized int numOfTransactions() {
+		return history.size();
+	}
+
+	public synchronized void setStatus(CreditCardStatus status) {
+		this.status = status;
+		publish();
+	}
+	// marks the card expired, unless it was already lost, cancelled or expired. returns
+	// whether it did
+	synchronized boolean expireIfActive() {
+		if (status != CreditCardStatus.ACTIVE) {
+			return false;
 		}
-		return null;
+		status = CreditCardStatus.EXPIRED;
+		publish();
+		return true;
 	}
 
+	/**
+	 * the card as it was after the last change to it. it never changes and reading it
+	 * never waits for the lock on the card, so a report can read it while purchases are
+	 * being added
+	 */
+	public CardSnapshot snapshot() {
+		return snapshot;
+	}
 
+	/**
+	 * closes the files the transactions are kept in, if they are kept on disk. the card
+	 * can still be read after this, but nothing can be added to it
+	 */
+	public synchronized void close() throws IOException {
+		if (history instanceof MappedTransactionLog) {
+			((MappedTransactionLog) history).close();
+		}
+	}
 
-	public Purchase mostRecentPurchase() {
-		for(int i=transactions.size()-1; i>=0; i--) {
-			if(transactions.get(i) instanceof Purchase) {
-				return (Purchase)transactions.get(i);
-		
-			}
+	// the user calls these holding the lock on this card, so the card can't make a new
+	// snapshot in between. the user gets told about every change made after it is set
+	void setOwner(User owner, int position, long addedOrder) {
+		this.owner = owner;
+		this.position = position;
+		if (addedOrder != this.addedOrder) {
+			this.addedOrder = addedOrder;
+			snapshot = snapshot.withAddedOrder(addedOrder);
 		}
+	}
 
-		return null;
+	// when the card is moved into the place of one that was removed from the wallet
+	void moveTo(int position) {
+		this.position = position;
 	}
 
-	public int numOfTransactions() {
-		return transactions.size();
+	// where the card is in its wallet. only changed holding the lock on the user's cards
+	int position() {
+		return position;
 	}
 
-	public void setStatus(CreditCardStatus status) {
-		this.status = status;
+	long addedOrder() {
+		return addedOrder;
+	}
+
+	// makes the snapshot of the card as it is now. has to be called holding the lock
+	private void publish() {
+		CardSnapshot last = snapshot;
+		long[] spent = last != null && !spentChanged ? last.spentPerPurchaseType() : spentPerPurchaseType.clone();
+		spentChanged = false;
+		CardSnapshot next = new CardSnapshot(creditCardId, issueDate, expirationDate, issueCompany, status,
+				creditLimitCents, currBalanceCents, availCreditCents, totalFees, spent, largestPurchaseRow,
+				mostRecentPurchaseRow, mostRecentPaymentRow, history.frozen(), addedOrder);
+		snapshot = next;
+		if (owner != null) {
+			owner.cardChanged(this);
+		}
 	}
 	@Override
 	public String toString() {
@@ -203,13 +500,152 @@ public class CreditCard implements Serializable {
 		return str.toString();
 	}
 	
-	public String transactions() {
-		StringBuilder str = new StringBuilder();
-		for(Transaction t: transactions) {
-			str.append(t);
-			str.append(" \n");
+	public synchronized String transactions() {
+		return transactions(0, history.size());
+	}
+
+	// only the transactions from this row on, and at most this many of them. that way a
+	// long history can be shown a page at a time without reading all of it
+	public String transactions(int firstRow, int maxRows) {
+		StringWriter str = new StringWriter();
+		try {
+			new TransactionExporter(str, TransactionExporter.Format.CONSOLE).export(this, firstRow, maxRows);
+		} catch (IOException e) {
+			// a StringWriter never throws
+			throw new UncheckedIOException(e);
 		}
 		return str.toString();
 	}
 
+	// has the exporter format the transactions from this row on (at most this many of
+	// them) and returns how many it formatted
+	synchronized int formatTransactions(TransactionExporter exporter, int firstRow, int maxRows) {
+		int end = (int) Math.min(history.size(), (long) firstRow + maxRows);
+		for (int row = firstRow; row < end; row++) {
+			exporter.append(history, row);
+		}
+		return Math.max(end - firstRow, 0);
+	}
+
+	private void resetTotals() {
+		totalFees = 0;
+		spentPerPurchaseType = new long[PurchaseType.values().length];
+		spentChanged = true;
+		largestPurchaseRow = -1;
+		mostRecentPurchaseRow = -1;
+		mostRecentPaymentRow = -1;
+	}
+
+	private void restoreTotals(long[] totals) throws IOException {
+		if (totals.length != 4 + PurchaseType.values().length) {
+			throw new IOException("Saved totals of card " + creditCardId + " don't match the purchase types");
+		}
+		setTotals(totals);
+	}
+
+	// takes the totals in the order totals() has them
+	private void setTotals(long[] totals) {
+		resetTotals();
+		totalFees = totals[0];
+		largestPurchaseRow = (int) totals[1];
+		mostRecentPurchaseRow = (int) totals[2];
+		mostRecentPaymentRow = (int) totals[3];
+		System.arraycopy(totals, 4, spentPerPurchaseType, 0, spentPerPurchaseType.length);
+	}
+
+	// if the transactions are supposed to be kept on disk but these were saved along
+	// with the card, copies them over to the disk
+	private TransactionStore adoptHistory(TransactionStore loaded) throws IOException {
+		if (historyDirectory == null || loaded instanceof MappedTransactionLog) {
+			return loaded;
+		}
+		TransactionStore onDisk = newHistory(creditCardId);
+		for (int row = 0; row < loaded.size(); row++) {
+			onDisk.add(loaded.get(row));
+		}
+		return onDisk;
+	}
+
+	// a card with a long history has its rows gone through on several threads
+	private void rebuildTotals() {
+		setTotals(ParallelTotals.historyTotals(history));
+	}
+
+	// keeps the running totals up to date with the transaction that was just added in
+	// this row. it only reads the primitive columns, it never makes a transaction object
+	private void updateTotals(int row) {
+		switch (history.type(row)) {
+		case FEE:
+			totalFees += history.amount(row);
+			break;
+		case PURCHASE:
+			spentPerPurchaseType[history.purchaseType(row).ordinal()] += history.amount(row);
+			spentChanged = true;
+			// only replace the largest purchase if this one is bigger, so if two purchases
+			// are the same amount the first one stays the largest
+			if (history.amount(row) > (largestPurchaseRow < 0 ? 0 : history.amount(largestPurchaseRow))) {
+				largestPurchaseRow = row;
+			}
+			mostRecentPurchaseRow = row;
+			break;
+		case PAYMENT:
+			mostRecentPaymentRow = row;
+			break;
+		}
+	}
+
+	// don't let the card change while it is being written out
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		creditCardId = (String) fields.get("creditCardId", null);
+		issueDate = (LocalDate) fields.get("issueDate", null);
+		expirationDate = (LocalDate) fields.get("expirationDate", null);
+		issueCompany = (CreditCardType) fields.get("issueCompany", null);
+		status = (CreditCardStatus) fields.get("status", null);
+		boolean savedAsDoubles = fields.defaulted("currBalanceCents");
+		if (savedAsDoubles) {
+			// cards saved before amounts were kept in cents have double amounts. the
+			// balance is worked out again below from the transactions (which are now in
+			// whole cents) so it matches them exactly
+			creditLimitCents = Money.ofDollars(fields.get("creditCardLimit", 0.0));
+		} else {
+			creditLimitCents = fields.get("creditLimitCents", 0L);
+			currBalanceCents = fields.get("currBalanceCents", 0L);
+			availCreditCents = fields.get("availCreditCents", 0L);
+		}
+
+		if (fields.defaulted("history")) {
+			// cards saved before the columns were added have a list of transaction objects
+			history = new TransactionColumns();
+			for (Transaction t : (ArrayList<Transaction>) fields.get("transactions", null)) {
+				history.add(t);
+			}
+		} else {
+			history = (TransactionStore) fields.get("history", null);
+		}
+		history = adoptHistory(history);
+		// cards saved before there were billing cycles were never billed
+		billingCycle = (BillingCycle) fields.get("billingCycle", null);
+
+		// the running totals aren't saved, so go through the columns once to work them out
+		rebuildTotals();
+
+		if (savedAsDoubles) {
+			currBalanceCents = 0;
+			for (int row = 0; row < history.size(); row++) {
+				currBalanceCents += history.type(row) == TransactionType.PAYMENT ? -history.amount(row)
+						: history.amount(row);
+			}
+			availCreditCents = creditLimitCents - currBalanceCents;
+		}
+		// transient fields don't get their initial values when a card is read back
+		addedOrder = -1;
+		publish();
+	}
+
 }
@@ -1,15 +1,23 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.RoundingMode;
 import java.time.LocalDate;
 import java.util.Scanner;
 
 public class CreditCardApp {
 	private Scanner input = new Scanner(System.in);
-	private User currentUser;
+	// the console only reads what the user types and shows the results. everything
+	// that actually happens to the wallet goes through the wallet service
+	private WalletService wallet;
+	// marks cards expired at midnight if the app is still open then
+	private ExpirySweeper expirySweeper;
+	// changes to the user are appended to the journal instead of rewriting the whole
+	// user file every time. every 500 changes it takes a full snapshot again. the user
+	// used to be saved in UserInfo.txt, that file is read once and then moved aside
+	private WalletPersistence persistence = new TransactionJournal("UserInfo.bin", "UserInfo.txt",
+			"UserJournal.log", 500);
 
 	private void addCreditCard() throws IOException {
 		Integer issuanceMonth = null, issuanceYear = null, expirationMonth = null, expirationYear = null;
@@ -96,28 +104,32 @@ public class CreditCardApp {
 			}
 		} while (type == null);// loop until they entered a valid card type
 
-		CreditCard newCard = new CreditCard(issuanceDate, expirationDate, type);
+		CreditCard newCard = wallet.issueCard(issuanceDate, expirationDate, type);
 		System.out.println("The id of your new credit card is " + newCard.getCreditCardId() + "\n");
-		currentUser.addCard(newCard);
 	}
 
-	private void displayCardTransactions(String idOfCard) {
-		if (currentUser.numOfTransactionsOnCard(idOfCard) == 0) {
+	private void displayCardTransactions(String idOfCard) throws IOException {
+		if (wallet.numOfTransactions(idOfCard) == 0) {
 			System.out.println("No transactions on this card\n");
 			return;
 		}
-		System.out.println("Transactions on card " + idOfCard + ":\n" + currentUser.transactionsOnCardToString(idOfCard));
+		// they are written out as they are formatted instead of building one string with
+		// all of them. the writer isn't closed since that would close System.out
+		System.out.println("Transactions on card " + idOfCard + ":");
+		Writer console = new BufferedWriter(new OutputStreamWriter(System.out));
+		wallet.exportTransactions(idOfCard, console, TransactionExporter.Format.CONSOLE, 0, Integer.MAX_VALUE);
+		System.out.println();
 		System.out.println();
 	}
 
 	private void displayCreditLimitOfCreditCard(String idOfCard) {
-		System.out.printf("The current credit limit on card with id %s  is $%,.2f%n%n", idOfCard,
-				currentUser.getAvailCredit(idOfCard));
+		System.out.printf("The current credit limit on card with id %s  is %s%n%n", idOfCard,
+				Money.format(wallet.availableCredit(idOfCard)));
 	}
 
 	private void displayCurrentBalanceOfCreditCard(String idOfCard) {
-		System.out.printf("The current balance on card with id %s  is $%,.2f%n%n", idOfCard,
-				currentUser.getCardBalance(idOfCard));
+		System.out.printf("The current balance on card with id %s  is %s%n%n", idOfCard,
+				Money.format(wallet.balance(idOfCard)));
 	}
 
 	/**
@@ -128,7 +140,7 @@ public class CreditCardApp {
 	private void displayLargestPurchase() {
 		// get the largest purchase. purchases are immutable so its okay that it's not
 		// returning a deep copy of it
-		Purchase p = currentUser.getLargestPurchase();
+		Purchase p = wallet.largestPurchase();
 		// if the method returned null, it means there are no purchase
 		if (p == null) {
 			System.out.println("You have not made any purchases\n");
@@ -136,8 +148,8 @@ public class CreditCardApp {
 		}
 
 		// Display this purchase
-		System.out.printf("Your largest purchase was for %s, paid to %s for the amount of $%,.2f%n",
-				p.getPurchaseType(), p.getVendorName(), p.getAmount());
+		System.out.printf("Your largest purchase was for %s, paid to %s for the amount of %s%n",
+				p.getPurchaseType(), p.getVendorName(), Money.format(p.getAmount()));
 	}
 
 	private void displayMainMenu() {
@@ -149,15 +161,15 @@ public class CreditCardApp {
 	}
 
 	private void displayMostRecentPayment() {
-		Payment p = currentUser.getMostRecentPayment();
+		Payment p = wallet.mostRecentPayment();
 		if (p == null) {
 			System.out.println("You have not made any payments");
 			return;
 		}
 
-		System.out.printf("Youre last payment was on %s at %02d:%02d, paid via %s in the amount of $%,.2f%n%n",
+		System.out.printf("Youre last payment was on %s at %02d:%02d, paid via %s in the amount of %s%n%n",
 				p.getTransactionDateAndTime().toLocalDate(), p.getTransactionDateAndTime().toLocalTime().getHour(),
-				p.getTransactionDateAndTime().toLocalTime().getMinute(), p.getPaymentType(), p.getAmount());
+				p.getTransactionDateAndTime().toLocalTime().getMinute(), p.getPaymentType(), Money.format(p.getAmount()));
 
 	}
 
@@ -166,15 +178,15 @@ public class CreditCardApp {
 		// purchases
 		// are immutable so
 		// its okay that it's returning a purchase object
-		Purchase p = currentUser.mostRecentPurchaseOnCard(idOfCard);
+		Purchase p = wallet.mostRecentPurchase(idOfCard);
 		// if there is no purchases, just return
 		if (p == null) {
 			System.out.println("You have no purchases on this card\n");
 			return;
 		}
 		// display the details of the most recent purchase
-		System.out.printf("Your most recent purchase was in the amount of $%,.2f from %s for %s on %s%n%n",
-				p.getAmount(), p.getVendorName(), p.getPurchaseType().toString().toLowerCase(),
+		System.out.printf("Your most recent purchase was in the amount of %s from %s for %s on %s%n%n",
+				Money.format(p.getAmount()), p.getVendorName(), p.getPurchaseType().toString().toLowerCase(),
 				p.transactionDateAndTime.toLocalDate());
 	}
 
@@ -217,8 +229,8 @@ public class CreditCardApp {
 			typeLookingUp = null;
 
 		}
-		double totalSpent = currentUser.getTotalSpentOnCertainCategoryOfExpense(typeLookingUp);
-		System.out.printf("You've spent a toal of $%,.2f on %s%n%n", totalSpent,
+		long totalSpent = wallet.totalSpentOn(typeLookingUp);
+		System.out.printf("You've spent a toal of %s on %s%n%n", Money.format(totalSpent),
 				typeLookingUp.toString().toLowerCase());
 	}
 
@@ -292,18 +304,12 @@ public class CreditCardApp {
 		} while (!zip.matches("[0-9]{5}"));// make sure they enter a 5 digit number
 
 		// return a new vendor object with this name an address with this infor
-		return new Vendor(name, new Address(street, city, state, zip));
+		// the same vendor as an earlier purchase gets the same object back, instead of a
+		// new copy for every purchase
+		return VendorRegistry.shared().vendor(name, street, city, state, zip);
 
 	}
 
-	private User loadUserFromFile() throws IOException, ClassNotFoundException {
-
-		try (// read in the user from the file and return it
-				ObjectInputStream objectIn = new ObjectInputStream(new FileInputStream("UserInfo.txt"))) {
-			return (User) objectIn.readObject();
-		}
-	}
-
 	private int mainMenuChoice() {
 		String choice;
 		// its in a loop for input validation. will loop until they enter a number
@@ -319,32 +325,25 @@ public class CreditCardApp {
 	}
 
 	private void makePayment(String idOfCard) throws IOException {
-		//check if the balance is less than one penny. dont simply check if it eqyals zero becuase doubles
-		//can get messed up with the decimal places
-		if (currentUser.getCardBalance(idOfCard) < .01) {
+		//amounts are kept in whole cents so a zero balance is exactly zero
+		if (wallet.balance(idOfCard) <= 0) {
 			System.out.println("You don't have a balance\n");
 			return;
 		}
 
-		double amount;
-		// double input validation. the inner loop is ensuring that they enter a format
-		// that can be parsed to a double
-		// so that no exceptions are thrown
+		long amount;
+		// double input validation. the inner loop is ensuring that they enter an amount
+		// of money, the outer loop that it is an amount they can pay
 		do {
-			String entry;
-
 			do {
 				System.out.printf(
 						"Enter how much you are paying.\n Please note you cannot pay more than your balance.\n"
-						+ "Your balance is $%,.2f     $",currentUser.getCardBalance(idOfCard));
-				entry = input.nextLine();
-			} while (!(entry.matches("[0-9]*.[0-9]*")));// make sure they enter a value that can be parsed to a double..
-														// we dont want exceptions being thrown if they enter anything
-														// else
-			amount = Double.parseDouble(entry);
-			//cannot pay 0 or less and cannot pay more than balance. leeway tho in case
-			//there are issues with the double
-		} while (amount <= 0 || amount >currentUser.getCardBalance(idOfCard)+.0001);
+						+ "Your balance is %s     $", Money.format(wallet.balance(idOfCard)));
+				// parse returns -1 if they didn't enter an amount of money
+				amount = Money.parse(input.nextLine(), RoundingMode.HALF_EVEN);
+			} while (amount < 0);
+			//cannot pay 0 or less and cannot pay more than balance
+		} while (amount <= 0 || amount > wallet.balance(idOfCard));
 
 		PaymentType type;
 		String paymentTypeAsString;
@@ -355,35 +354,29 @@ public class CreditCardApp {
 
 		type = PaymentType.valueOf(paymentTypeAsString);
 
-		currentUser.payBill(idOfCard, amount, type);
+		wallet.pay(idOfCard, amount, type);
 		System.out.println("Payment sucessful!\n");
 	}
 
 	private void makePurchase(String idOfCard) throws IOException {
-		double amount;
-		double interestFee;
-		// double input validation. the inner loop is ensuring that they enter a format
-		// that can be parsed to a double
-		// so that no exceptions are thrown
+		long amount;
+		// double input validation. the inner loop is ensuring that they enter an amount
+		// of money, the outer loop that it is at least the minimum
 		do {
-			String entry;
-
 			do {
 				System.out.println(
 						"Enter how much you are paying them (must be less than or equal to ur credit limit): \n"
 						+ "Please note the minimum purchase you can make is $1.00");
 
-				entry = input.nextLine();
-			} while (!(entry.matches("[0-9]*.[0-9]*")));
-			amount = Double.parseDouble(entry);
-		} while (amount < 1);
+				// parse returns -1 if they didn't enter an amount of money
+				amount = Money.parse(input.nextLine(), RoundingMode.HALF_EVEN);
+			} while (amount < 0);
+		} while (amount < Money.CENTS_PER_DOLLAR);
 
-		interestFee = amount * .01;
-		Fee newInterestFee = new Fee(interestFee, FeeType.interest);
-		Purchase newPurchase = new Purchase(amount, getPurchaseType(), getVendor(), newInterestFee);
-		boolean success = currentUser.addPurchase(idOfCard, newPurchase);
+		// the wallet adds the interest fee. it returns null if the purchase was declined
+		Purchase newPurchase = wallet.authorize(idOfCard, amount, getPurchaseType(), getVendor());
 
-		if (!success) {
+		if (newPurchase == null) {
 			System.out.println("Purchase wasn't successful\n");
 		} else {
 			System.out.println("Purchase was successful! Transaction id is " + newPurchase.getTransactionID() + "\n");
@@ -395,19 +388,19 @@ public class CreditCardApp {
 
 		// if they have no cards in the system, there are no cards to manage so just
 		// return
-		if (currentUser.numberOfCards() == 0) {
+		if (wallet.numberOfCards() == 0) {
 			System.out.println("You have no cards in our system\n\n");
 			return;
 		}
 
 		// display all the credit cards in the system
-		System.out.println("These are your current Credit Cards: \n " + currentUser.creditCardsToString());
+		System.out.println("These are your current Credit Cards: \n " + wallet.cardsToString());
 
 		// get the id of the card they want to manage
 		System.out.println("Enter the id of the card you want to manage:");
 		String idOfCard = input.nextLine();
 		// loop until they enter an id of a card that they have
-		while (!currentUser.containsCard(idOfCard)) {
+		while (!wallet.containsCard(idOfCard)) {
 			System.out.println("You do not have a card with this id. reenter id");
 			idOfCard = input.nextLine();
 		}
@@ -440,11 +433,9 @@ public class CreditCardApp {
 				break;
 			case 3:
 				makePurchase(idOfCard);
-				saveUserToFile();
 				break;
 			case 4:
 				makePayment(idOfCard);
-				saveUserToFile();
 				break;
 			case 5:
 				displayMostRecentPurchase(idOfCard);
@@ -453,17 +444,13 @@ public class CreditCardApp {
 				displayCardTransactions(idOfCard);
 				break;
 			case 7:
-				currentUser.markCardAsLost(idOfCard);
+				wallet.reportLost(idOfCard);
 				System.out.println("Marked as lost. You cannot use this card until further notice\n");
-				saveUserToFile();
 				break;
 			case 8:
-				currentUser.markCardAsCancelled(idOfCard);
+				// the wallet saves the change to the card for us
+				wallet.cancelCard(idOfCard);
 				System.out.println("Success. You can no longer use this card\n");
-				// when they makr a card cancelled, they are changing something about the user
-				// object,
-				// so we must save the current status of the user object to the file
-				saveUserToFile();
 				break;
 			case 9:
 				stayInManaginingSpecificCardMenu = false;
@@ -473,23 +460,23 @@ public class CreditCardApp {
 		}
 	}
 
-	private void removeCreditCard() {
+	private void removeCreditCard() throws IOException {
 		// cant remove cards if there are none
-		if (currentUser.numberOfCards() == 0) {
+		if (wallet.numberOfCards() == 0) {
 			System.out.println("There are no cards to remove\n");
 			return;
 		}
 		// show them which cards they can remove
-		System.out.println("These are your current Credit Cards: \n" + currentUser.creditCardsToString());
+		System.out.println("These are your current Credit Cards: \n" + wallet.cardsToString());
 
 		System.out.println("Enter id of the card you'd like to remove.");
 		String idOfCard = input.nextLine();
 		// if they entered a card that doesn't exist, just leave the method
-		if (!currentUser.containsCard(idOfCard)) {
+		if (!wallet.containsCard(idOfCard)) {
 			System.out.println("No card exists with this id\n");
 			return;
 		}
-		currentUser.removeCard(idOfCard);
+		wallet.removeCard(idOfCard);
 
 		System.out.println("Sucessfully removed card " + idOfCard);
 		System.out.println("\n");
@@ -503,28 +490,22 @@ public class CreditCardApp {
 			displayMainMenu();
 			switch (mainMenuChoice()) {
 			case 1:
+				// the wallet saves the new card, so it's saved in case they decide to close
+				// the program
 				addCreditCard();
-				// when we add a credit card to this user, we are adding something to the user
-				// object
-				// so we need to save that to the file in case they decide to close the program,
-				// its saved
-				saveUserToFile();
 				break;
 			case 2:
+				// the wallet saves that the card was removed, so it's saved in case they
+				// decide to close the program
 				removeCreditCard();
-				// when we remove a credit card to this user, we are removing something to the
-				// user object
-				// so we need to save that to the file in case they decide to close the program,
-				// its saved
-				saveUserToFile();
 				break;
 			case 3:
-				System.out.printf("$%,.2f", this.currentUser.totalBalance());
+				System.out.print(Money.format(wallet.totalBalance()));
 				System.out.println();
 				break;
 			case 4:
-				System.out.printf("The total availalbe credit for all credit cards you have is $%,.2f" + "	%n%n",
-						currentUser.totalAvailCredit());
+				System.out.printf("The total availalbe credit for all credit cards you have is %s" + "	%n%n",
+						Money.format(wallet.totalAvailableCredit()));
 				break;
 			case 5:
 				displayLargestPurchase();
@@ -540,31 +521,39 @@ public class CreditCardApp {
 				break;
 			case 9:
 				System.out.println("\nThanks for using our app!");
+				expirySweeper.close();
+				// take a fresh snapshot so the next startup doesn't have to replay the journal
+				wallet.close();
 				continueRunning = false;
 			}
 		}
 	}
 
-	private void saveUserToFile() throws IOException {
-
-		try (// write this user to the file
-				ObjectOutputStream objectOut = new ObjectOutputStream(new FileOutputStream("UserInfo.txt"))) {
-			objectOut.writeObject(currentUser);
-		}
-
-	}
-
 	public void startupApp() throws IOException, ClassNotFoundException {
 		// when starting up the program, we need to initialize the static id counter in
 		// the credit card and transaction classes based on the last given out id which
 		// is saved in the file
 		CreditCard.initializeIdCounter();
 		Transaction.initializeIdCounter();
+		// running with -Dwallet.historyDir=<directory> keeps the transactions of every card
+		// in files in that directory, and only reads them when they are needed
+		CreditCard.keepHistoryIn(System.getProperty("wallet.historyDir"));
+		// running with -Dwallet.velocity=on declines purchases that come too fast or from
+		// too many states. it is off unless asked for, so purchases that were fine before
+		// aren't declined without anyone choosing that
+		if ("on".equals(System.getProperty("wallet.velocity"))) {
+			CreditCard.scorePurchasesWith(VelocityScorer.defaults());
+		}
+		// every change is forced to the disk before it returns. -Dwallet.durability=50ms
+		// (or =100records) forces less often, and a change waits for the next force
+		TransactionJournal.forceRecords(GroupCommitWriter.Durability.parse(System.getProperty("wallet.durability")));
 
+		// rebuild the user from the last snapshot plus whatever changes are in the journal
+		User currentUser = persistence.load();
 
-		// if the user file is empty, it's the first time they are using the program
+		// if there was nothing saved, it's the first time they are using the program
 		// so get their info and set it to current user
-		if (new File("UserInfo.txt").length() == 0) {
+		if (currentUser == null) {
 			System.out.println("Welcome to our app! Enter your name: ");
 			String name = input.nextLine();
 			System.out.println("What Bank do you use? ");
@@ -572,21 +561,25 @@ public class CreditCardApp {
 			System.out.println("What is your bank account number? ");
 			String acctNumber = input.nextLine();
 
-			this.currentUser = new User(name, bankName, acctNumber);
-			saveUserToFile();
+			currentUser = new User(name, bankName, acctNumber);
+			persistence.save(currentUser);
 
 			// this is not their first time using the app so load the user information from
 			// the file
 		} else {
-			this.currentUser = loadUserFromFile();
 			System.out.println(
 					"Welcome back to our app " + currentUser.getName() + "! We picked up from where you left off.\n");
 
 		}
 
+		this.wallet = new WalletService(currentUser, persistence);
+
 		// before we begin the program, check if any cards expired since last time we
-		// ran it and if yes, make sure to indicate its expired
-		this.currentUser.checkIfAnyCardsExpired();
+		// ran it and if yes, make sure to indicate its expired. after that it is checked
+		// again every midnight
+		wallet.expireCards();
+		expirySweeper = new ExpirySweeper(wallet::expireCards);
+		expirySweeper.start();
 
 	}
 }
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks cards as expired while the program keeps running, instead of only when it
+ * starts. A card expires at the start of the day after its expiration date, so the
+ * sweep runs right after every midnight (and once when it is started). Each wallet
+ * keeps its active cards ordered by expiration date, so a sweep only looks at the
+ * cards that are due, and authorizing a purchase only ever has to read the status.
+ *
+ * The sweep runs on a background thread of its own. It works out the next midnight
+ * again every time, so days that are longer or shorter because of daylight saving time
+ * don't throw it off.
+ */
+public class ExpirySweeper implements AutoCloseable {
+
+	/**
+	 * what a sweep does, like WalletService.expireCards
+	 */
+	public interface Sweep {
+		int run() throws IOException;
+	}
+
+	private final Sweep sweep;
+	private final ScheduledExecutorService scheduler;
+
+	public ExpirySweeper(Sweep sweep) {
+		this.sweep = sweep;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "card-expiry-sweeper");
+			// it shouldn't keep the program running after everything else is done
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * sweeps once now, and then after every midnight until it is closed
+	 */
+	public void start() {
+		scheduler.execute(this::sweepAndReschedule);
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	private void sweepAndReschedule() {
+		try {
+			sweep.run();
+		} catch (IOException | RuntimeException e) {
+			// try again at the next midnight, the cards that are due will still be due then
+			System.err.println("Could not mark the expired cards: " + e);
+		}
+		try {
+			scheduler.schedule(this::sweepAndReschedule, millisUntilNextMidnight(), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// it was closed while sweeping
+		}
+	}
+
+	private long millisUntilNextMidnight() {
+		// the same time zone LocalDate.now() uses when the cards are checked
+		ZoneId zone = ZoneId.systemDefault();
+		ZonedDateTime now = ZonedDateTime.now(zone);
+		ZonedDateTime midnight = now.toLocalDate().plusDays(1).atStartOfDay(zone);
+		// a moment after, so the clock is surely on the new day when it runs
+		return Duration.between(now, midnight).toMillis() + 1;
+	}
+}
@@ -1,13 +1,19 @@
 import java.io.IOException;
 import java.io.Serializable;
+import java.time.LocalDateTime;
 
 public class Fee extends Transaction implements Serializable{
 	
 	//need this field for the serialization
 	private static final long serialVersionUID = 1L;
 
-	public Fee(double amount, FeeType f) throws IOException {
-		super(amount);
+	public Fee(long amountCents, FeeType f) throws IOException {
+		super(amountCents);
+		this.FeeType=f;
+	}
+	//rebuilds a fee that was already recorded, keeping its original id and time
+	public Fee(long id, LocalDateTime dateAndTime, long amountCents, FeeType f) {
+		super(id, dateAndTime, amountCents);
 		this.FeeType=f;
 	}
 
@@ -0,0 +1,391 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Appends records to a file in the background and pushes them to the disk in groups.
+ * Any number of threads can hand it a record; it is copied into a buffer and the thread
+ * gets back a future right away. A writer thread takes everything that piled up in the
+ * buffer while it was busy, writes it with one call and, as often as the Durability
+ * says, forces it to the disk with FileChannel.force. The futures of all the records in
+ * it are completed once they are forced, so a hundred threads making changes at the
+ * same time share one force instead of waiting for one each.
+ *
+ * The writer threads are shared by every GroupCommitWriter in the program (there is one
+ * for each loaded user's journal), so they only run while there is something to write.
+ * If writing fails, the futures that are waiting fail with the error, and so does every
+ * record handed in after it.
+ */
+public class GroupCommitWriter implements Closeable {
+
+	/**
+	 * How often the records are forced to the disk. Every record is forced within the
+	 * given time or number of records, and the future of a record only completes once it
+	 * is.
+	 */
+	public static final class Durability {
+		// the longest a record waits to be forced, when the number of records isn't reached
+		private static final long MAX_WAIT_MILLIS = 1000;
+
+		private final String name;
+		// force once this many records were written since the last force
+		private final int records;
+		// or once the oldest record that isn't forced yet was written this long ago
+		private final long nanos;
+
+		private Durability(String name, int records, long millis) {
+			this.name = name;
+			this.records = records;
+			this.nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		/**
+		 * forces every group as soon as it is written. under load the group is everything
+		 * that came in while the last one was being forced
+		 */
+		public static Durability everyCommit() {
+			return new Durability("commit", 1, 0);
+		}
+
+		/**
+		 * forces at most once every this many milliseconds, so a record waits up to that
+		 * long to be on the disk
+		 */
+		public static Durability everyMillis(long millis) {
+			if (millis <= 0) {
+				throw new IllegalArgumentException("The time between forces has to be more than 0 ms");
+			}
+			return new Durability(millis + "ms", Integer.MAX_VALUE, millis);
+		}
+
+		/**
+		 * forces once this many records were written, or once the oldest of them waited a
+		 * second, whichever comes first
+		 */
+		public static Durability everyRecords(int records) {
+			if (records <= 0) {
+				throw new IllegalArgumentException("The records between forces have to be more than 0");
+			}
+			return new Durability(records + "records", records, MAX_WAIT_MILLIS);
+		}
+
+		/**
+		 * reads how it is given on the command line: "commit", "<n>ms" or "<n>records".
+		 * null is every commit
+		 */
+		public static Durability parse(String text) {
+			if (text == null || text.equals("commit")) {
+				return everyCommit();
+			}
+			try {
+				if (text.endsWith("ms")) {
+					return everyMillis(Long.parseLong(text.substring(0, text.length() - 2)));
+				}
+				if (text.endsWith("records")) {
+					return everyRecords(Integer.parseInt(text.substring(0, text.length() - 7)));
+				}
+			} catch (NumberFormatException e) {
+				// falls through to the error below
+			}
+			throw new IllegalArgumentException("Durability has to be commit, <n>ms or <n>records: " + text);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	// how much can be waiting to be written before the threads handing in records have to
+	// wait for the writer to catch up
+	private static final int MAX_BUFFERED_BYTES = 4 << 20;
+
+	private static final ScheduledThreadPoolExecutor WRITERS = newWriters();
+
+	private final String file;
+	private final FileChannel channel;
+	private final Durability durability;
+
+	// guarded by this. the records handed in since the writer last took them, and the
+	// future they share
+	private Buffer filling = new Buffer();
+	private int fillingRecords;
+	private CompletableFuture<Void> fillingDone = new CompletableFuture<>();
+	// the buffer the writer writes from, swapped with filling every time it takes a group
+	private Buffer spare = new Buffer();
+	// the future of the last record handed in
+	private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+	// the groups that were written but not forced yet
+	private final ArrayList<CompletableFuture<Void>> unforced = new ArrayList<>();
+	private int unforcedRecords;
+	private long oldestUnforcedNanos;
+	// whether the writer is running (or about to), and whether it is woken up later to
+	// force what it wrote
+	private boolean writing;
+	private boolean wakeUpSet;
+	private boolean forceRequested;
+	private IOException failure;
+	private boolean closed;
+
+	/**
+	 * @param append whether to add to what is in the file already, or start it over
+	 */
+	public GroupCommitWriter(String file, boolean append, Durability durability) throws IOException {
+		this.file = file;
+		this.durability = durability;
+		this.channel = append
+				? FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.APPEND)
+				: FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * adds a record to the end of the file. the bytes are copied, so the stream can be
+	 * used again right away
+	 *
+	 * @return a future that is completed once the record is forced to the disk
+	 */
+	public synchronized CompletableFuture<Void> append(ByteArrayOutputStream record) throws IOException {
+		while (failure == null && !closed && filling.size() >= MAX_BUFFERED_BYTES) {
+			awaitChange();
+		}
+		checkOpen();
+		record.writeTo(filling);
+		fillingRecords++;
+		last = fillingDone;
+		startWriting();
+		return fillingDone;
+	}
+
+	/**
+	 * @return a future that is completed once every record handed in so far is forced to
+	 *         the disk
+	 */
+	public synchronized CompletableFuture<Void> lastRecord() {
+		return last;
+	}
+
+	/**
+	 * writes and forces everything that was handed in so far, and waits for it
+	 */
+	public synchronized void flush() throws IOException {
+		while (failure == null && (writing || filling.size() > 0 || !unforced.isEmpty())) {
+			forceRequested = true;
+			startWriting();
+			awaitChange();
+		}
+		forceRequested = false;
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * writes and forces what was handed in, and closes the file
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			notifyAll();
+			channel.close();
+		}
+	}
+
+	/**
+	 * waits for a future from a GroupCommitWriter
+	 *
+	 * @throws IOException if writing failed
+	 */
+	public static void await(CompletableFuture<Void> done) throws IOException {
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the change to be saved");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	// has to be called holding the lock on this
+	private void startWriting() {
+		if (!writing) {
+			writing = true;
+			WRITERS.execute(this::write);
+		}
+	}
+
+	// runs on a writer thread, until there is nothing left to write or force
+	private void write() {
+		try {
+			while (true) {
+				Buffer group;
+				CompletableFuture<Void> groupDone;
+				int groupRecords;
+				synchronized (this) {
+					if (filling.size() == 0) {
+						if (unforced.isEmpty() || !forceDue()) {
+							writing = false;
+							wakeUpForForce();
+							notifyAll();
+							return;
+						}
+						group = null;
+						groupDone = null;
+						groupRecords = 0;
+					} else {
+						// take what piled up, and let the next records go in the other buffer
+						group = filling;
+						groupDone = fillingDone;
+						groupRecords = fillingRecords;
+						filling = spare;
+						spare = group;
+						fillingDone = new CompletableFuture<>();
+						fillingRecords = 0;
+						// threads waiting for room can go on
+						notifyAll();
+					}
+				}
+				if (group != null) {
+					long start = System.nanoTime();
+					ByteBuffer bytes = group.contents();
+					while (bytes.hasRemaining()) {
+						channel.write(bytes);
+					}
+					WalletMetrics.shared().bytesWritten(WalletMetrics.Output.JOURNAL, group.size());
+					group.reset();
+					synchronized (this) {
+						if (unforced.isEmpty()) {
+							oldestUnforcedNanos = start;
+						}
+						unforced.add(groupDone);
+						unforcedRecords += groupRecords;
+					}
+				}
+				boolean force;
+				synchronized (this) {
+					force = forceDue();
+				}
+				if (force) {
+					force();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			failed(e instanceof IOException ? (IOException) e : new IOException(e));
+		}
+	}
+
+	// has to be called holding the lock on this
+	private boolean forceDue() {
+		return !unforced.isEmpty() && (forceRequested || unforcedRecords >= durability.records
+				|| System.nanoTime() - oldestUnforcedNanos >= durability.nanos);
+	}
+
+	// only the writer adds to unforced, so everything in it was written before this
+	private void force() throws IOException {
+		long start = System.nanoTime();
+		// the data is enough to read the records back, the file's times don't matter
+		channel.force(false);
+		ArrayList<CompletableFuture<Void>> forced;
+		synchronized (this) {
+			forced = new ArrayList<>(unforced);
+			unforced.clear();
+			unforcedRecords = 0;
+		}
+		WalletMetrics.shared().record(WalletMetrics.Operation.JOURNAL_FORCE, start);
+		for (CompletableFuture<Void> done : forced) {
+			done.complete(null);
+		}
+	}
+
+	// has to be called holding the lock on this. when the writer stops with records that
+	// aren't forced yet, it has to come back for them in time
+	private void wakeUpForForce() {
+		if (unforced.isEmpty() || wakeUpSet) {
+			return;
+		}
+		wakeUpSet = true;
+		long delay = Math.max(0, oldestUnforcedNanos + durability.nanos - System.nanoTime());
+		WRITERS.schedule(() -> {
+			synchronized (this) {
+				wakeUpSet = false;
+				startWriting();
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized void failed(IOException e) {
+		failure = new IOException("Couldn't write to " + file, e);
+		for (CompletableFuture<Void> done : unforced) {
+			done.completeExceptionally(failure);
+		}
+		unforced.clear();
+		fillingDone.completeExceptionally(failure);
+		filling.reset();
+		writing = false;
+		notifyAll();
+	}
+
+	private void checkOpen() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException(file + " is closed");
+		}
+	}
+
+	private void awaitChange() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + file + " to be written");
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor newWriters() {
+		AtomicInteger count = new AtomicInteger();
+		// writing and forcing wait on the disk, not the cpu, so a few more threads than
+		// cores keep several journals going at once
+		ScheduledThreadPoolExecutor writers = new ScheduledThreadPoolExecutor(
+				Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+					Thread t = new Thread(r, "group-commit-" + count.incrementAndGet());
+					// the app closes its journal before it exits, so it doesn't have to
+					// wait for these
+					t.setDaemon(true);
+					return t;
+				});
+		writers.setRemoveOnCancelPolicy(true);
+		return writers;
+	}
+
+	// lets the writer write straight out of the buffer without copying it
+	private static final class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(8192);
+		}
+
+		ByteBuffer contents() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out ids that are never reused, even if the program crashes. Instead of
+ * rewriting the counter file for every id, it reserves a whole block of ids at a time
+ * and only writes the end of the block (the high water mark) to the file. Ids inside a
+ * reserved block are handed out with a single atomic increment so many threads can
+ * take ids at the same time.
+ *
+ * The counter file is an AtomicFile, so a crash while it is written leaves the last
+ * high water mark instead of an empty file. If the file is damaged anyway, the mark
+ * before it is used, plus a block: no save moves the mark by more than a block past the
+ * one before it, so that is past every id that might have been handed out.
+ */
+public class IdAllocator {
+
+	private final AtomicFile file;
+	private final long blockSize;
+
+	// the last id that was handed out
+	private final AtomicLong lastId;
+	// every id up to and including this one is reserved in the file
+	private volatile long highWaterMark;
+
+	public IdAllocator(String counterFile, long blockSize) throws IOException {
+		this.blockSize = blockSize;
+		this.file = new AtomicFile(counterFile);
+
+		// the file has the highest id that might have been handed out, so start after it.
+		// if we crashed in the middle of a block, the rest of that block is skipped
+		InputStream in = file.readOrPrevious();
+		if (in == null) {
+			throw new IOException("There is no id counter in " + counterFile);
+		}
+		long saved;
+		try (BufferedReader input = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+			saved = Long.parseLong(input.readLine().trim());
+		}
+		if (file.wentBack()) {
+			// the mark that was lost is at most a block past this one
+			saved += blockSize;
+		}
+
+		this.lastId = new AtomicLong(saved);
+		this.highWaterMark = saved;
+	}
+
+	public long nextId() throws IOException {
+		long id = lastId.incrementAndGet();
+		if (id <= highWaterMark) {
+			return id;
+		}
+		reserveUpTo(id);
+		return id;
+	}
+
+	/**
+	 * takes a run of ids in one go
+	 *
+	 * @return the first id of the run. the run is first, first+1, ... first+count-1
+	 */
+	public long nextIds(int count) throws IOException {
+		long last = lastId.addAndGet(count);
+		if (last > highWaterMark) {
+			reserveUpTo(last);
+		}
+		return last - count + 1;
+	}
+
+	public long lastUsedId() {
+		return lastId.get();
+	}
+
+	// the id was already taken from the counter, but it can't be handed out until the
+	// file says it is reserved
+	private synchronized void reserveUpTo(long id) throws IOException {
+		long newHighWaterMark = highWaterMark;
+		while (newHighWaterMark < id) {
+			newHighWaterMark += blockSize;
+		}
+		if (newHighWaterMark == highWaterMark) {
+			// another thread already reserved the block this id is in
+			return;
+		}
+		long start = System.nanoTime();
+		String text = newHighWaterMark + "";
+		long bytes = 0;
+		if (newHighWaterMark - highWaterMark > blockSize) {
+			// a run of ids longer than a block. it is saved twice so the previous
+			// generation has it too, and going back a generation still only misses a block
+			bytes += file.write(out -> out.writeBytes(text));
+		}
+		bytes += file.write(out -> out.writeBytes(text));
+		WalletMetrics.shared().bytesWritten(WalletMetrics.Output.ID_COUNTER, bytes);
+		WalletMetrics.shared().record(WalletMetrics.Operation.ID_COUNTER_WRITE, start);
+		// only move the mark after it is in the file
+		highWaterMark = newHighWaterMark;
+	}
+}
@@ -0,0 +1,55 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the user in memory and never writes anything to disk. Useful for driving the
+ * wallet from code (for example to load test it) without the cost of saving.
+ */
+public class InMemoryPersistence implements WalletPersistence {
+
+	private volatile User user;
+
+	@Override
+	public User load() {
+		return user;
+	}
+
+	@Override
+	public void save(User user) {
+		this.user = user;
+	}
+
+	@Override
+	public void cardAdded(CreditCard card) {
+	}
+
+	@Override
+	public void cardRemoved(String cardId) {
+	}
+
+	@Override
+	public void statusChanged(String cardId, CreditCardStatus status) {
+	}
+
+	@Override
+	public void purchaseAdded(String cardId, Purchase purchase) {
+	}
+
+	@Override
+	public void paymentAdded(String cardId, Payment payment) {
+	}
+
+	// nothing is ever written, so there's nothing to wait for
+	@Override
+	public CompletableFuture<Void> durable() {
+		return CompletableFuture.completedFuture(null);
+	}
+
+	@Override
+	public boolean saveDue() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+	}
+}
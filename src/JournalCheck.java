@@ -0,0 +1,180 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.time.LocalDate;
+
+/**
+ * Checks that TransactionJournal gets back everything that was recorded, and nothing
+ * else, when its files were left in a bad state:
+ *
+ * - the last record was only partly written (the program stopped in the middle of it).
+ *   the records before it are loaded, and the journal can be written to again
+ * - a record in the middle doesn't match its checksum. the records before it are loaded
+ * - a change that couldn't be recorded, followed by more changes, a save, and a damaged
+ *   snapshot. going back to the snapshot before it needs every record from both
+ *   journals, with no number missing
+ *
+ * Run it with: java JournalCheck
+ *
+ * It exits with 1 if any check fails, and the build runs it in the test phase. It works
+ * in a temporary directory so it never uses up the real ids.
+ */
+public class JournalCheck {
+
+	// what a purchase of $1.00 adds to the balance, with its interest fee
+	private static final long PURCHASE_CENTS = 100
+			+ Money.percentOf(100, WalletService.INTEREST_BASIS_POINTS, RoundingMode.HALF_EVEN);
+	private static final Vendor VENDOR = new Vendor("Grocer",
+			new Address("1 Main St", "Springfield", USState.IL, "62701"));
+
+	private static File dir;
+	private static int failed;
+
+	public static void main(String[] args) throws Exception {
+		dir = Files.createTempDirectory("journal-check").toFile();
+		CreditCard.initializeIdCounter(WalletServer.counterFile(dir, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(WalletServer.counterFile(dir, "TransactionIdCounter.txt"));
+
+		checkTornLastRecord();
+		checkDamagedRecord();
+		checkNoGapAfterFailedRecord();
+
+		if (failed > 0) {
+			System.out.println(failed + " CHECKS FAILED");
+			System.exit(1);
+		}
+		System.out.println("every check passed");
+	}
+
+	private static void checkTornLastRecord() throws Exception {
+		// cut off 1 byte, a few, and all but the first byte of the last record
+		long recordBytes = journalWithPurchases(new File(dir, "whole"), 10);
+		for (long cut : new long[] { 1, 5, recordBytes - 1 }) {
+			File d = new File(dir, "torn-" + cut);
+			journalWithPurchases(d, 10);
+			File journal = new File(d, "UserJournal.log");
+			try (RandomAccessFile f = new RandomAccessFile(journal, "rw")) {
+				f.setLength(f.length() - cut);
+			}
+			long balance;
+			try {
+				TransactionJournal j = journalIn(d);
+				User user = j.load();
+				balance = user.totalBalance();
+				// it has to take new records after the cut off one was thrown away
+				WalletService wallet = new WalletService(user, j);
+				wallet.authorize(user.getCards()[0].getCreditCardId(), 100, PurchaseType.FOOD, VENDOR);
+				wallet.durable().get();
+				j.close();
+			} catch (IOException e) {
+				check("the last record cut short by " + cut + " bytes: " + e, false);
+				continue;
+			}
+			User again = journalIn(d).load();
+			check("the last record cut short by " + cut + " bytes: 9 of 10 purchases loaded, and one more after it",
+					balance == 9 * PURCHASE_CENTS && again.totalBalance() == 10 * PURCHASE_CENTS);
+		}
+	}
+
+	private static void checkDamagedRecord() throws Exception {
+		File d = new File(dir, "damaged");
+		long recordBytes = journalWithPurchases(d, 10);
+		File journal = new File(d, "UserJournal.log");
+		// a byte in the middle of the 6th purchase, the 5th record from the end
+		try (RandomAccessFile f = new RandomAccessFile(journal, "rw")) {
+			long at = f.length() - 4 * recordBytes - recordBytes / 2;
+			f.seek(at);
+			int b = f.read();
+			f.seek(at);
+			f.write(b ^ 0x55);
+		}
+		User user = journalIn(d).load();
+		check("a damaged 6th purchase: the 5 before it are loaded (balance " + user.totalBalance() + ")",
+				user.totalBalance() == 5 * PURCHASE_CENTS);
+	}
+
+	private static void checkNoGapAfterFailedRecord() throws Exception {
+		File d = new File(dir, "gap");
+		d.mkdirs();
+		TransactionJournal j = journalIn(d);
+		User user = new User("Journal", "Bank", "123");
+		j.save(user);
+		WalletService wallet = new WalletService(user, j);
+		String cardId = wallet.issueCard(LocalDate.now().minusYears(1), LocalDate.now().plusYears(5),
+				CreditCardType.VISA).getCreditCardId();
+		// a vendor name too long to be written, so the record can't be made
+		StringBuilder name = new StringBuilder();
+		while (name.length() < 70_000) {
+			name.append("Vendor");
+		}
+		Vendor tooLong = new Vendor(name.toString(), VENDOR.getAddress());
+		boolean threw = false;
+		try {
+			wallet.authorize(cardId, 100, PurchaseType.FOOD, tooLong);
+		} catch (IOException e) {
+			threw = true;
+		}
+		check("a purchase that can't be recorded throws", threw);
+		for (int i = 0; i < 3; i++) {
+			wallet.authorize(cardId, 100, PurchaseType.FOOD, VENDOR);
+		}
+		wallet.save();
+		for (int i = 0; i < 2; i++) {
+			wallet.authorize(cardId, 100, PurchaseType.FOOD, VENDOR);
+		}
+		wallet.durable().get();
+		j.close();
+
+		// damage the last snapshot, so the one before it and both journals are used
+		File snapshot = new File(d, "UserInfo.bin");
+		try (RandomAccessFile f = new RandomAccessFile(snapshot, "rw")) {
+			f.seek(10);
+			int b = f.read();
+			f.seek(10);
+			f.write(b ^ 0x55);
+		}
+		try {
+			User loaded = journalIn(d).load();
+			check("going back a snapshot after a record that couldn't be made: the 5 recorded purchases are "
+					+ "loaded (balance " + loaded.totalBalance() + ")", loaded.totalBalance() == 5 * PURCHASE_CENTS);
+		} catch (IOException e) {
+			check("going back a snapshot after a record that couldn't be made: " + e.getMessage(), false);
+		}
+	}
+
+	// a user with one card and some purchases on it, in a snapshot and a journal in this
+	// directory. returns how long the last record is
+	private static long journalWithPurchases(File d, int purchases) throws Exception {
+		d.mkdirs();
+		TransactionJournal j = journalIn(d);
+		User user = new User("Journal", "Bank", "123");
+		j.save(user);
+		WalletService wallet = new WalletService(user, j);
+		String cardId = wallet.issueCard(LocalDate.now().minusYears(1), LocalDate.now().plusYears(5),
+				CreditCardType.VISA).getCreditCardId();
+		File journal = new File(d, "UserJournal.log");
+		long before = 0;
+		for (int i = 0; i < purchases; i++) {
+			wallet.durable().get();
+			before = journal.length();
+			wallet.authorize(cardId, 100, PurchaseType.FOOD, VENDOR);
+		}
+		wallet.durable().get();
+		j.close();
+		return journal.length() - before;
+	}
+
+	private static TransactionJournal journalIn(File d) {
+		return new TransactionJournal(new File(d, "UserInfo.bin").getPath(), new File(d, "UserJournal.log").getPath(),
+				1000);
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok      " : "FAILED  ") + what);
+		if (!ok) {
+			failed++;
+		}
+	}
+}
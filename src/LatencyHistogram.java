@@ -0,0 +1,119 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how long something took, in nanoseconds, in buckets that get wider as the
+ * times get longer (like an HDR histogram), so it can tell the percentiles without
+ * keeping every time. Below 64ns every nanosecond has its own bucket, and after that
+ * every power of two is split into 32 buckets, so a percentile is never off by more
+ * than about 3%.
+ *
+ * Recording is a few atomic adds and never takes a lock, so it can be called from many
+ * threads on the hot path.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// enough buckets for any positive long
+	private static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * what the histogram looked like at one moment
+	 */
+	public static class Snapshot {
+		private final long count;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long[] counts;
+
+		private Snapshot(long count, long totalNanos, long maxNanos, long[] counts) {
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.counts = counts;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMeanNanos() {
+			return count == 0 ? 0 : totalNanos / count;
+		}
+
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+
+		/**
+		 * @param percent like 99.9
+		 * @return the time that this percent of the times were at or below (rounded up to
+		 *         the end of its bucket), 0 if nothing was recorded
+		 */
+		public long percentile(double percent) {
+			long total = 0;
+			for (long c : counts) {
+				total += c;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+			long seen = 0;
+			for (int bucket = 0; bucket < counts.length; bucket++) {
+				seen += counts[bucket];
+				if (seen >= rank) {
+					return Math.min(highestIn(bucket), maxNanos);
+				}
+			}
+			return maxNanos;
+		}
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			// the clock can't go backwards, but don't let a bad value break the counts
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucketOf(nanos));
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(count.sum(), totalNanos.sum(), maxNanos.get(), copy);
+	}
+
+	// values below 2 * SUB_BUCKETS have a bucket each. above that, the top SUB_BUCKET_BITS
+	// + 1 bits of the value pick the bucket
+	static int bucketOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	// the largest value that goes in this bucket
+	static long highestIn(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		// for the very last bucket this wraps around to exactly Long.MAX_VALUE
+		return ((sub + 1) << shift) - 1;
+	}
+}
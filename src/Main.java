@@ -1,8 +1,25 @@
 import java.io.IOException;
+import java.util.Arrays;
 
 public class Main {
 
-	public static void main(String[] args) throws ClassNotFoundException, IOException {
+	public static void main(String[] args) throws ClassNotFoundException, IOException, InterruptedException {
+		// java Main serve [port] [data directory] runs the HTTP server instead of the app
+		if (args.length > 0 && args[0].equals("serve")) {
+			WalletServer.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		// java Main ingest <file> makes the purchases in a settlement file
+		if (args.length > 0 && args[0].equals("ingest")) {
+			BatchIngestion.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		// java Main statements [data=directory] [date=yyyy-mm-dd] closes the billing cycles
+		// that are due
+		if (args.length > 0 && args[0].equals("statements")) {
+			StatementEngine.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		CreditCardApp app = new CreditCardApp();
 		app.startupApp();
 		app.runApp();
@@ -0,0 +1,518 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps the transactions of a card in files on disk instead of in memory. The rows are
+ * fixed width records in segment files of a fixed size, and the segments are memory
+ * mapped, so a row is only read from disk when someone looks at it. Opening a card's
+ * history takes the same time no matter how many transactions it has.
+ *
+ * Everything for one card is in its own directory:
+ * - segment-000000.dat, segment-000001.dat ... the rows, a fixed number per segment
+ * - vendors.dat and accounts.dat, every vendor and bank account the rows refer to
+ *
+ * The files don't say how many rows there are. Whoever opens the log says how many
+ * rows it had when it was last saved (the snapshot remembers that), and anything after
+ * that is thrown away. The journal adds those rows again when it is replayed.
+ *
+ * A frozen view reads the same mapped files, only up to the rows there were when it was
+ * made. The list of mapped segments and the vendor and account tables are arrays that
+ * are replaced instead of changed, so a view can read them from another thread.
+ */
+public class MappedTransactionLog implements TransactionStore, Closeable {
+
+	// id, date and time, amount (8 bytes each), type and kind (1 byte each), 2 bytes of
+	// padding and where the vendor or account is in its table (4 bytes)
+	public static final int RECORD_BYTES = 32;
+	public static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 14;
+
+	private static final int ID = 0;
+	private static final int MICROS = 8;
+	private static final int CENTS = 16;
+	private static final int TYPE = 24;
+	private static final int KIND = 25;
+	private static final int REF = 28;
+
+	private static final TransactionType[] TRANSACTION_TYPES = TransactionType.values();
+	private static final PurchaseType[] PURCHASE_TYPES = PurchaseType.values();
+	private static final FeeType[] FEE_TYPES = FeeType.values();
+	private static final PaymentType[] PAYMENT_TYPES = PaymentType.values();
+	private static final USState[] STATES = USState.values();
+
+	private final File directory;
+	private final int recordsPerSegment;
+	// mapped the first time a row in them is needed
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private int size;
+
+	// only the card's thread adds to the tables, but frozen views read them too
+	private volatile Vendor[] vendors = new Vendor[4];
+	private int vendorCount;
+	private final HashMap<Vendor, Integer> vendorRefs = new HashMap<>();
+	private volatile BankAccount[] accounts = new BankAccount[4];
+	private int accountCount;
+	private DataOutputStream vendorsOut;
+	private DataOutputStream accountsOut;
+	// the files under vendorsOut and accountsOut, for forcing them to the disk
+	private FileOutputStream vendorsFileOut;
+	private FileOutputStream accountsFileOut;
+
+	private MappedTransactionLog(File directory, int recordsPerSegment) {
+		this.directory = directory;
+		this.recordsPerSegment = recordsPerSegment;
+	}
+
+	public static MappedTransactionLog open(File directory, int rows) throws IOException {
+		return open(directory, rows, DEFAULT_RECORDS_PER_SEGMENT);
+	}
+
+	/**
+	 * opens the log in this directory, or starts a new one if there isn't one
+	 *
+	 * @param rows how many rows the log had when it was last saved. any rows after that
+	 *             are thrown away
+	 * @throws IOException if the log has fewer rows than that
+	 */
+	public static MappedTransactionLog open(File directory, int rows, int recordsPerSegment) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		MappedTransactionLog log = new MappedTransactionLog(directory, recordsPerSegment);
+		log.readTables();
+		log.truncate(rows);
+		return log;
+	}
+
+	@Override
+	public void add(Transaction t) {
+		int ref = -1;
+		byte kind;
+		if (t instanceof Purchase) {
+			Purchase p = (Purchase) t;
+			kind = (byte) p.getPurchaseType().ordinal();
+			ref = vendorRef(p.getVendor());
+		} else if (t instanceof Fee) {
+			kind = (byte) ((Fee) t).getFeeType().ordinal();
+		} else {
+			Payment p = (Payment) t;
+			kind = (byte) p.getPaymentType().ordinal();
+			ref = accountRef(p.getAccount());
+		}
+
+		MappedByteBuffer segment;
+		try {
+			segment = segment(size);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int offset = offset(size);
+		segment.putLong(offset + ID, t.getTransactionID());
+		segment.putLong(offset + MICROS, TransactionColumns.toMicros(t.getTransactionDateAndTime()));
+		segment.putLong(offset + CENTS, t.getAmount());
+		segment.put(offset + KIND, kind);
+		segment.putInt(offset + REF, ref);
+		// the type goes in last. it is stored one higher than the ordinal, so a row that
+		// was never written (all zeros) can be told apart
+		segment.put(offset + TYPE, (byte) (t.getTransactionType().ordinal() + 1));
+		size++;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long id(int row) {
+		return record(row, size).getLong(offset(row) + ID);
+	}
+
+	@Override
+	public long micros(int row) {
+		return record(row, size).getLong(offset(row) + MICROS);
+	}
+
+	@Override
+	public long amount(int row) {
+		return record(row, size).getLong(offset(row) + CENTS);
+	}
+
+	@Override
+	public TransactionType type(int row) {
+		return TRANSACTION_TYPES[record(row, size).get(offset(row) + TYPE) - 1];
+	}
+
+	@Override
+	public PurchaseType purchaseType(int row) {
+		return PURCHASE_TYPES[record(row, size).get(offset(row) + KIND)];
+	}
+
+	@Override
+	public int kindOrdinal(int row) {
+		return record(row, size).get(offset(row) + KIND);
+	}
+
+	@Override
+	public Vendor vendor(int row) {
+		return vendors[record(row, size).getInt(offset(row) + REF)];
+	}
+
+	@Override
+	public Transaction get(int row) {
+		return get(row, size);
+	}
+
+	@Override
+	public TransactionStore frozen() {
+		return new Frozen(size);
+	}
+
+	// the rows before this one, as they are now
+	private class Frozen implements TransactionStore {
+		private final int rows;
+
+		Frozen(int rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public void add(Transaction t) {
+			throw new UnsupportedOperationException("Nothing can be added to a frozen view of the transactions");
+		}
+
+		@Override
+		public int size() {
+			return rows;
+		}
+
+		@Override
+		public long id(int row) {
+			return record(row, rows).getLong(offset(row) + ID);
+		}
+
+		@Override
+		public long micros(int row) {
+			return record(row, rows).getLong(offset(row) + MICROS);
+		}
+
+		@Override
+		public long amount(int row) {
+			return record(row, rows).getLong(offset(row) + CENTS);
+		}
+
+		@Override
+		public TransactionType type(int row) {
+			return TRANSACTION_TYPES[record(row, rows).get(offset(row) + TYPE) - 1];
+		}
+
+		@Override
+		public PurchaseType purchaseType(int row) {
+			return PURCHASE_TYPES[record(row, rows).get(offset(row) + KIND)];
+		}
+
+		@Override
+		public int kindOrdinal(int row) {
+			return record(row, rows).get(offset(row) + KIND);
+		}
+
+		@Override
+		public Vendor vendor(int row) {
+			return vendors[record(row, rows).getInt(offset(row) + REF)];
+		}
+
+		@Override
+		public Transaction get(int row) {
+			return MappedTransactionLog.this.get(row, rows);
+		}
+
+		@Override
+		public TransactionStore frozen() {
+			return this;
+		}
+	}
+
+	private Transaction get(int row, int rows) {
+		MappedByteBuffer segment = record(row, rows);
+		int offset = offset(row);
+		long id = segment.getLong(offset + ID);
+		LocalDateTime dateAndTime = TransactionColumns.toDateAndTime(segment.getLong(offset + MICROS));
+		long cents = segment.getLong(offset + CENTS);
+		byte kind = segment.get(offset + KIND);
+		int ref = segment.getInt(offset + REF);
+		switch (TRANSACTION_TYPES[segment.get(offset + TYPE) - 1]) {
+		case PURCHASE:
+			return new Purchase(id, dateAndTime, cents, PURCHASE_TYPES[kind], vendors[ref], (Fee) get(row + 1, rows));
+		case FEE:
+			return new Fee(id, dateAndTime, cents, FEE_TYPES[kind]);
+		default:
+			return new Payment(id, dateAndTime, cents, PAYMENT_TYPES[kind], accounts[ref]);
+		}
+	}
+
+	/**
+	 * makes sure every row that was added is written to the disk, and not only to the
+	 * memory the files are mapped to
+	 */
+	public void force() throws IOException {
+		// the vendors and accounts first, the rows refer to them
+		vendorsFileOut.getFD().sync();
+		accountsFileOut.getFD().sync();
+		for (MappedByteBuffer segment : segments) {
+			if (segment != null) {
+				segment.force();
+			}
+		}
+	}
+
+	/**
+	 * closes the vendor and account files. the rows stay mapped until the log (and every
+	 * frozen view of it) is garbage collected, but nothing can be added any more
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			vendorsOut.close();
+		} finally {
+			accountsOut.close();
+		}
+	}
+
+	// throws away every row from this one on
+	private void truncate(int rows) throws IOException {
+		if (rows > 0 && (!segmentExists((rows - 1) / recordsPerSegment)
+				|| segment(rows - 1).get(offset(rows - 1) + TYPE) == 0)) {
+			throw new IOException("The transaction log in " + directory + " is missing rows, it should have " + rows);
+		}
+		// rows are always added one after another, so the first empty one is the end
+		int row = rows;
+		while (segmentExists(row / recordsPerSegment)) {
+			MappedByteBuffer segment = segment(row);
+			if (segment.get(offset(row) + TYPE) == 0) {
+				break;
+			}
+			segment.put(offset(row) + TYPE, (byte) 0);
+			row++;
+		}
+		size = rows;
+	}
+
+	// the segment of a row, if it is one of the first rows rows
+	private MappedByteBuffer record(int row, int rows) {
+		if (row < 0 || row >= rows) {
+			throw new IndexOutOfBoundsException("No transaction at row " + row);
+		}
+		try {
+			return segment(row);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private int offset(int row) {
+		return (row % recordsPerSegment) * RECORD_BYTES;
+	}
+
+	private MappedByteBuffer segment(int row) throws IOException {
+		int number = row / recordsPerSegment;
+		MappedByteBuffer[] mapped = segments;
+		if (number < mapped.length && mapped[number] != null) {
+			return mapped[number];
+		}
+		return map(number);
+	}
+
+	// a frozen view can need a segment mapped at the same time as the card adds a row, so
+	// mapping one takes the lock on the log
+	private synchronized MappedByteBuffer map(int number) throws IOException {
+		MappedByteBuffer[] mapped = segments;
+		if (number < mapped.length && mapped[number] != null) {
+			return mapped[number];
+		}
+		// a new segment file is made as big as it will ever get, the space it doesn't
+		// use yet reads as zeros
+		MappedByteBuffer segment;
+		try (FileChannel channel = FileChannel.open(segmentFile(number).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_BYTES);
+		}
+		MappedByteBuffer[] more = Arrays.copyOf(mapped, Math.max(mapped.length, number + 1));
+		more[number] = segment;
+		segments = more;
+		return segment;
+	}
+
+	private boolean segmentExists(int number) {
+		MappedByteBuffer[] mapped = segments;
+		return (number < mapped.length && mapped[number] != null) || segmentFile(number).exists();
+	}
+
+	private File segmentFile(int number) {
+		return new File(directory, String.format("segment-%06d.dat", number));
+	}
+
+	private int vendorRef(Vendor v) {
+		Integer ref = vendorRefs.get(v);
+		if (ref == null) {
+			try {
+				writeString(vendorsOut, v.getName());
+				writeString(vendorsOut, v.getStreetAddress());
+				writeString(vendorsOut, v.city());
+				vendorsOut.writeByte(v.getState() == null ? 0 : v.getState().ordinal() + 1);
+				writeString(vendorsOut, v.zip());
+				// the vendor has to be in the file before any row refers to it
+				vendorsOut.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			ref = addToTable(v);
+			vendorRefs.put(v, ref);
+		}
+		return ref;
+	}
+
+	private int accountRef(BankAccount account) {
+		// there's only ever a few accounts so a simple search is fine. the accounts read
+		// back from the file are different objects, so compare what's in them
+		BankAccount[] table = accounts;
+		for (int i = 0; i < accountCount; i++) {
+			BankAccount a = table[i];
+			if (a == account || (equal(a.getBankName(), account.getBankName())
+					&& equal(a.getAccountID(), account.getAccountID()))) {
+				return i;
+			}
+		}
+		try {
+			writeString(accountsOut, account.getBankName());
+			writeString(accountsOut, account.getAccountID());
+			accountsOut.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return addToTable(account);
+	}
+
+	// the tables are copied into bigger arrays when they are full, and the new array is
+	// only handed out once everything in it is there
+	private int addToTable(Vendor v) {
+		Vendor[] table = vendors;
+		if (vendorCount == table.length) {
+			table = Arrays.copyOf(table, table.length * 2);
+		}
+		table[vendorCount] = v;
+		vendors = table;
+		return vendorCount++;
+	}
+
+	private int addToTable(BankAccount account) {
+		BankAccount[] table = accounts;
+		if (accountCount == table.length) {
+			table = Arrays.copyOf(table, table.length * 2);
+		}
+		table[accountCount] = account;
+		accounts = table;
+		return accountCount++;
+	}
+
+	// reads the vendor and account tables, and opens them to add more
+	private void readTables() throws IOException {
+		File vendorsFile = new File(directory, "vendors.dat");
+		long vendorsLength = 0;
+		if (vendorsFile.exists()) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(vendorsFile)))) {
+				while (true) {
+					try {
+						String name = readString(in);
+						String street = readString(in);
+						String city = readString(in);
+						int state = in.readUnsignedByte();
+						String zip = readString(in);
+						Vendor v = VendorRegistry.shared().vendor(name, street, city,
+								state == 0 ? null : STATES[state - 1], zip);
+						vendorRefs.put(v, addToTable(v));
+						vendorsLength = vendorsLength + stringLength(name) + stringLength(street)
+								+ stringLength(city) + 1 + stringLength(zip);
+					} catch (EOFException e) {
+						break;
+					}
+				}
+			}
+		}
+		vendorsFileOut = openForAppend(vendorsFile, vendorsLength);
+		vendorsOut = new DataOutputStream(new BufferedOutputStream(vendorsFileOut));
+
+		File accountsFile = new File(directory, "accounts.dat");
+		long accountsLength = 0;
+		if (accountsFile.exists()) {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(accountsFile)))) {
+				while (true) {
+					try {
+						String bankName = readString(in);
+						String accountId = readString(in);
+						addToTable(new BankAccount(bankName, accountId));
+						accountsLength = accountsLength + stringLength(bankName) + stringLength(accountId);
+					} catch (EOFException e) {
+						break;
+					}
+				}
+			}
+		}
+		accountsFileOut = openForAppend(accountsFile, accountsLength);
+		accountsOut = new DataOutputStream(new BufferedOutputStream(accountsFileOut));
+	}
+
+	// cuts off a half written entry at the end (if the program stopped while writing it)
+	// so the next one is written right after the last whole one
+	private static FileOutputStream openForAppend(File file, long length) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		}
+		return new FileOutputStream(file, true);
+	}
+
+	// a flag for null, then the string
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	// how many bytes writeString wrote for this string
+	private static long stringLength(String s) {
+		if (s == null) {
+			return 1;
+		}
+		long length = 1 + 2;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+		}
+		return length;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
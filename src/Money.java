@@ -0,0 +1,232 @@
+import java.math.RoundingMode;
+
+/**
+ * Helpers for amounts of money kept as a long number of cents. Keeping whole cents
+ * instead of doubles means balances are always exact, so there is no need for the
+ * "less than a penny" checks that doubles need. None of these methods create any
+ * objects (besides format, which makes the string), so they are cheap to call on
+ * every purchase.
+ */
+public final class Money {
+
+	public static final long CENTS_PER_DOLLAR = 100;
+	// percentages are given in basis points, one hundredth of a percent
+	public static final long BASIS_POINTS_PER_WHOLE = 10_000;
+
+	private Money() {
+	}
+
+	/**
+	 * reads an amount the user typed in, like "12", "12.5" or "12.345", into cents
+	 *
+	 * @param mode how to round when more than two decimal places were typed in
+	 * @return the amount in cents, or -1 if the text isn't an amount of money
+	 */
+	public static long parse(String text, RoundingMode mode) {
+		if (text == null) {
+			return -1;
+		}
+		int i = 0;
+		int length = text.length();
+		long dollars = 0;
+		boolean anyDigits = false;
+		for (; i < length && text.charAt(i) != '.'; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9' || dollars > Long.MAX_VALUE / 1000) {
+				return -1;
+			}
+			dollars = dollars * 10 + (c - '0');
+			anyDigits = true;
+		}
+
+		// read the cents, and then up to 18 more digits that only matter for rounding
+		long cents = 0;
+		long rest = 0;
+		long restScale = 1;
+		int fractionDigits = 0;
+		for (i++; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			anyDigits = true;
+			if (fractionDigits < 2) {
+				cents = cents * 10 + (c - '0');
+			} else if (restScale < 1_000_000_000_000_000_000L) {
+				rest = rest * 10 + (c - '0');
+				restScale *= 10;
+			} else if (c != '0' && rest % 10 == 0) {
+				// too many digits to keep. all that matters is that it isn't exactly even
+				rest++;
+			}
+			fractionDigits++;
+		}
+		if (!anyDigits) {
+			return -1;
+		}
+		if (fractionDigits == 1) {
+			cents *= 10;
+		}
+		long total = dollars * CENTS_PER_DOLLAR + cents;
+		return total + roundingAdjustment(total, rest, restScale, mode);
+	}
+
+	/**
+	 * converts an amount that was kept as a double (from before amounts were kept in
+	 * cents) to cents
+	 */
+	public static long ofDollars(double dollars) {
+		return Math.round(dollars * CENTS_PER_DOLLAR);
+	}
+
+	/**
+	 * works out a percentage of an amount, for example 100 basis points is 1%
+	 */
+	public static long percentOf(long cents, long basisPoints, RoundingMode mode) {
+		return divide(cents * basisPoints, BASIS_POINTS_PER_WHOLE, mode);
+	}
+
+	/**
+	 * divides two whole numbers and rounds the answer the way that is asked for
+	 */
+	public static long divide(long numerator, long denominator, RoundingMode mode) {
+		if (denominator < 0) {
+			numerator = -numerator;
+			denominator = -denominator;
+		}
+		long quotient = numerator / denominator;
+		long remainder = numerator % denominator;
+		if (remainder == 0) {
+			return quotient;
+		}
+		// compare twice the remainder with the denominator to find out if we are below,
+		// at or above the half way point, without overflowing
+		long absRemainder = Math.abs(remainder);
+		int half = Long.compare(absRemainder, denominator - absRemainder);
+		boolean negative = remainder < 0;
+		boolean awayFromZero;
+		switch (mode) {
+		case UP:
+			awayFromZero = true;
+			break;
+		case DOWN:
+			awayFromZero = false;
+			break;
+		case CEILING:
+			awayFromZero = !negative;
+			break;
+		case FLOOR:
+			awayFromZero = negative;
+			break;
+		case HALF_UP:
+			awayFromZero = half >= 0;
+			break;
+		case HALF_DOWN:
+			awayFromZero = half > 0;
+			break;
+		case HALF_EVEN:
+			awayFromZero = half > 0 || (half == 0 && (quotient & 1) != 0);
+			break;
+		default:
+			throw new ArithmeticException("Rounding needed but the rounding mode is UNNECESSARY");
+		}
+		if (!awayFromZero) {
+			return quotient;
+		}
+		return negative ? quotient - 1 : quotient + 1;
+	}
+
+	/**
+	 * formats cents the way the app shows money, like $1,234.56
+	 */
+	public static String format(long cents) {
+		StringBuilder str = new StringBuilder(16);
+		appendTo(str, cents);
+		return str.toString();
+	}
+
+	/**
+	 * adds cents formatted like $1,234.56 to the end of the builder
+	 */
+	public static void appendTo(StringBuilder str, long cents) {
+		if (cents < 0) {
+			str.append('-');
+		}
+		str.append('$');
+		if (cents == Long.MIN_VALUE) {
+			// the only amount that can't be made positive
+			appendDollars(str, Long.MAX_VALUE / CENTS_PER_DOLLAR);
+			str.append(".08");
+			return;
+		}
+		cents = Math.abs(cents);
+		appendDollars(str, cents / CENTS_PER_DOLLAR);
+		long c = cents % CENTS_PER_DOLLAR;
+		str.append('.');
+		str.append((char) ('0' + c / 10));
+		str.append((char) ('0' + c % 10));
+	}
+
+	/**
+	 * adds cents as a plain number of dollars, like -1234.56, with no dollar sign or
+	 * commas (for files other programs read)
+	 */
+	public static void appendPlain(StringBuilder str, long cents) {
+		if (cents == Long.MIN_VALUE) {
+			str.append("-92233720368547758.08");
+			return;
+		}
+		if (cents < 0) {
+			str.append('-');
+			cents = -cents;
+		}
+		str.append(cents / CENTS_PER_DOLLAR);
+		long c = cents % CENTS_PER_DOLLAR;
+		str.append('.');
+		str.append((char) ('0' + c / 10));
+		str.append((char) ('0' + c % 10));
+	}
+
+	// adds the dollars with a comma between every three digits
+	private static void appendDollars(StringBuilder str, long dollars) {
+		if (dollars < 1000) {
+			str.append(dollars);
+			return;
+		}
+		appendDollars(str, dollars / 1000);
+		long group = dollars % 1000;
+		str.append(',');
+		if (group < 100) {
+			str.append('0');
+		}
+		if (group < 10) {
+			str.append('0');
+		}
+		str.append(group);
+	}
+
+	// rest/restScale is the part of a cent that was cut off. works out if the cents
+	// need to go up by one to round the way that is asked for
+	private static long roundingAdjustment(long cents, long rest, long restScale, RoundingMode mode) {
+		if (rest == 0) {
+			return 0;
+		}
+		int half = Long.compare(rest, restScale - rest);
+		switch (mode) {
+		case UP:
+		case CEILING:
+			return 1;
+		case DOWN:
+		case FLOOR:
+			return 0;
+		case HALF_UP:
+			return half >= 0 ? 1 : 0;
+		case HALF_DOWN:
+			return half > 0 ? 1 : 0;
+		case HALF_EVEN:
+			return half > 0 || (half == 0 && (cents & 1) != 0) ? 1 : 0;
+		default:
+			throw new ArithmeticException("Rounding needed but the rounding mode is UNNECESSARY");
+		}
+	}
+}
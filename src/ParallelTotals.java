@@ -0,0 +1,121 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Works out the running totals of a card from all the rows of its transactions, on
+ * several threads at once (with fork/join) when there are enough of them to be worth
+ * it. With fewer than the threshold, or on a machine with one core, it is a plain loop
+ * on the calling thread, so small cards don't pay for splitting the work up. The totals
+ * over all the cards of a wallet don't need this, the WalletSnapshot keeps them up to
+ * date as the cards change.
+ *
+ * The answers are exactly the same as the plain loop's. The sums are of whole cents,
+ * so the order they are added in doesn't matter, and when two halves each have a
+ * purchase of the same amount, the one from the first half is kept, the same as the
+ * loop keeps the first one it finds.
+ */
+public class ParallelTotals {
+
+	// going through a row only takes a few nanoseconds, so it takes a lot of rows before
+	// splitting them up pays off. each task does at least this many
+	static final int ROWS_PER_TASK = 1 << 16;
+
+	private ParallelTotals() {
+	}
+
+	/**
+	 * the running totals of a card's transactions, worked out from scratch. they are in
+	 * the order CreditCard.totals() has them: the fees, the rows of the largest purchase,
+	 * the most recent purchase and the most recent payment (-1 if there isn't one), and
+	 * then how much was spent on each type of purchase.
+	 *
+	 * nothing can be added to the transactions while this runs, but they can be read
+	 * from several threads at once
+	 */
+	public static long[] historyTotals(TransactionStore history) {
+		int rows = history.size();
+		if (!worthSplitting(rows, ROWS_PER_TASK)) {
+			return historyTotals(history, 0, rows);
+		}
+		return ForkJoinPool.commonPool().invoke(new HistoryTask(history, 0, rows));
+	}
+
+	private static boolean worthSplitting(int size, int perTask) {
+		return size > perTask && ForkJoinPool.getCommonPoolParallelism() > 1;
+	}
+
+	// the same as CreditCard.updateTotals does one row at a time
+	private static long[] historyTotals(TransactionStore history, int from, int to) {
+		long[] totals = emptyTotals();
+		for (int row = from; row < to; row++) {
+			switch (history.type(row)) {
+			case FEE:
+				totals[0] += history.amount(row);
+				break;
+			case PURCHASE:
+				totals[4 + history.purchaseType(row).ordinal()] += history.amount(row);
+				// the first purchase of the largest amount
+				if (history.amount(row) > (totals[1] < 0 ? 0 : history.amount((int) totals[1]))) {
+					totals[1] = row;
+				}
+				totals[2] = row;
+				break;
+			case PAYMENT:
+				totals[3] = row;
+				break;
+			}
+		}
+		return totals;
+	}
+
+	// puts the totals of the rows of a later half after the totals of an earlier half
+	private static long[] combine(TransactionStore history, long[] earlier, long[] later) {
+		earlier[0] += later[0];
+		if (later[1] >= 0 && (earlier[1] < 0 || history.amount((int) later[1]) > history.amount((int) earlier[1]))) {
+			earlier[1] = later[1];
+		}
+		if (later[2] >= 0) {
+			earlier[2] = later[2];
+		}
+		if (later[3] >= 0) {
+			earlier[3] = later[3];
+		}
+		for (int i = 4; i < earlier.length; i++) {
+			earlier[i] += later[i];
+		}
+		return earlier;
+	}
+
+	private static long[] emptyTotals() {
+		long[] totals = new long[4 + PurchaseType.values().length];
+		totals[1] = -1;
+		totals[2] = -1;
+		totals[3] = -1;
+		return totals;
+	}
+
+	private static class HistoryTask extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+		private final TransactionStore history;
+		private final int from;
+		private final int to;
+
+		HistoryTask(TransactionStore history, int from, int to) {
+			this.history = history;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (to - from <= ROWS_PER_TASK) {
+				return historyTotals(history, from, to);
+			}
+			int middle = (from + to) >>> 1;
+			HistoryTask earlier = new HistoryTask(history, from, middle);
+			earlier.fork();
+			long[] later = new HistoryTask(history, middle, to).compute();
+			return combine(history, earlier.join(), later);
+		}
+	}
+}
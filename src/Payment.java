@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.io.Serializable;
+import java.time.LocalDateTime;
 
 public class Payment extends Transaction implements Serializable{
 
@@ -9,8 +10,14 @@ public class Payment extends Transaction implements Serializable{
 	private PaymentType paymentType;
 	private BankAccount account;
 	
-	public Payment(double amount, PaymentType type, BankAccount account) throws IOException {
-		super(amount);
+	public Payment(long amountCents, PaymentType type, BankAccount account) throws IOException {
+		super(amountCents);
+		this.paymentType = type;
+		this.account = account;
+	}
+	//rebuilds a payment that was already recorded, keeping its original id and time
+	public Payment(long id, LocalDateTime dateAndTime, long amountCents, PaymentType type, BankAccount account) {
+		super(id, dateAndTime, amountCents);
 		this.paymentType = type;
 		this.account = account;
 	}
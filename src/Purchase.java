@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.io.Serializable;
+import java.time.LocalDateTime;
 
 public class Purchase extends Transaction implements Serializable{
 	
@@ -9,13 +10,24 @@ public class Purchase extends Transaction implements Serializable{
 	private PurchaseType purchaseType;
 	private Vendor vendor;
 	private Fee interestFee;
-	public Purchase(double amount, PurchaseType type, Vendor v, Fee f) throws IOException {
-		super(amount);
+	public Purchase(long amountCents, PurchaseType type, Vendor v, Fee f) throws IOException {
+		super(amountCents);
+		this.purchaseType = type;
+		this.vendor = v;
+		this.interestFee=f;
+	}
+	//rebuilds a purchase that was already recorded, keeping its original id and time
+	public Purchase(long id, LocalDateTime dateAndTime, long amountCents, PurchaseType type, Vendor v, Fee f) {
+		super(id, dateAndTime, amountCents);
 		this.purchaseType = type;
 		this.vendor = v;
 		this.interestFee=f;
 	}
 	
+	public Vendor getVendor() {
+		return vendor;
+	}
+
 	public Fee getInterestFee() {
 		return interestFee;
 	}
@@ -0,0 +1,91 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the late fee StatementEngine charges against a statement with a $25.00 minimum:
+ * none when the minimum is paid by the end of its due date, the part of the minimum that
+ * wasn't paid when only some of it was, and the whole minimum when nothing was paid in
+ * time. Every card gets the same $1,000.00 purchase in its first cycle, so all that
+ * differs between them is the payment.
+ *
+ * Run it with: java StatementCheck
+ *
+ * It exits with 1 if any check fails, and the build runs it in the test phase. It works
+ * in a temporary directory so it never uses up the real ids.
+ */
+public class StatementCheck {
+
+	private static final LocalDate ISSUED = LocalDate.of(2024, 1, 5);
+	// the first statement closes on 2024-02-05 and is due 25 days later
+	private static final LocalDate FIRST_CLOSE = ISSUED.plusMonths(1);
+	private static final LocalDate DUE = FIRST_CLOSE.plusDays(StatementEngine.DEFAULT_DAYS_TO_PAY);
+	private static final LocalDate SECOND_CLOSE = ISSUED.plusMonths(2);
+	private static final Vendor VENDOR = new Vendor("Grocer",
+			new Address("1 Main St", "Springfield", USState.IL, "62701"));
+
+	private static int failed;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("statement-check").toFile();
+		CreditCard.initializeIdCounter(WalletServer.counterFile(dir, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(WalletServer.counterFile(dir, "TransactionIdCounter.txt"));
+
+		StatementEngine engine = StatementEngine.defaults();
+		check(engine, "no payment", 0, null, 2500);
+		check(engine, "$10.00 of the $25.00 minimum paid", 1000, DUE, 1500);
+		check(engine, "$24.99 of the $25.00 minimum paid", 2499, DUE.minusDays(3), 1);
+		check(engine, "the whole minimum paid on the due date", 2500, DUE, 0);
+		check(engine, "more than the minimum paid", 50_000, DUE.minusDays(10), 0);
+		check(engine, "the whole minimum paid a day late", 2500, DUE.plusDays(1), 2500);
+
+		// a smaller late fee than the unpaid minimum is charged in full
+		check(new StatementEngine(StatementEngine.DEFAULT_APR_BASIS_POINTS, 500, StatementEngine.DEFAULT_DAYS_TO_PAY),
+				"$10.00 of the minimum paid, with a $5.00 late fee", 1000, DUE, 500);
+
+		if (failed > 0) {
+			System.out.println(failed + " CHECKS FAILED");
+			System.exit(1);
+		}
+		System.out.println("every check passed");
+	}
+
+	private static void check(StatementEngine engine, String what, long paid, LocalDate paidOn, long expectedLateFee)
+			throws Exception {
+		User user = new User("Statement", "Bank", "123");
+		CreditCard card = new CreditCard(ISSUED, ISSUED.plusYears(5), CreditCardType.VISA);
+		user.addCard(card);
+		List<StatementEngine.Statement> closed = new ArrayList<>();
+		engine.bill(card, ISSUED, closed);
+		card.restorePurchase(new Purchase(Transaction.reserveIds(1), ISSUED.plusDays(5).atTime(12, 0), 100_000,
+				PurchaseType.FOOD, VENDOR, new Fee(Transaction.reserveIds(1), ISSUED.plusDays(5).atTime(12, 0), 0,
+						FeeType.interest)));
+		engine.bill(card, FIRST_CLOSE, closed);
+		StatementEngine.Statement first = closed.get(closed.size() - 1);
+		if (first.getMinimumDue() != 2500 || !first.getDueDate().equals(DUE)) {
+			report(what + ": the first statement has a minimum of " + first.getMinimumDue() + " due "
+					+ first.getDueDate() + ", not 2500 due " + DUE, false);
+			return;
+		}
+		if (paid > 0) {
+			card.addPayment(new Payment(Transaction.reserveIds(1), paidOn.atTime(23, 0), paid, PaymentType.ONLINE,
+					user.getBankAccount()));
+		}
+		long balanceBefore = card.getCurrBalance();
+		engine.bill(card, SECOND_CLOSE, closed);
+		StatementEngine.Statement second = closed.get(closed.size() - 1);
+		long charged = card.getCurrBalance() - balanceBefore;
+		report(what + ": late fee " + second.getLateFee() + " (expected " + expectedLateFee + "), charged "
+				+ charged + " with interest " + second.getInterest(),
+				second.getLateFee() == expectedLateFee && charged == second.getInterest() + second.getLateFee());
+	}
+
+	private static void report(String what, boolean ok) {
+		System.out.println((ok ? "ok      " : "FAILED  ") + what);
+		if (!ok) {
+			failed++;
+		}
+	}
+}
@@ -0,0 +1,446 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes the billing cycles of cards and charges what is owed on top of the flat
+ * interest fee every purchase already has:
+ *
+ * - interest on the average daily balance of the cycle, at a yearly rate, unless the
+ *   whole balance of the last statement was paid by its due date
+ * - a late fee when less than the minimum of the last statement was paid by its due date
+ *
+ * Both are added to the card as Fees dated at the moment the cycle closed, so they are
+ * in the balance of the next cycle from its first day.
+ *
+ * Closing a cycle only goes through the transactions that were added since the last one
+ * closed, starting from the BillingCycle that is kept with the card. The balance is
+ * added up day by day as the rows go by, so a cycle takes a handful of longs however
+ * many transactions it had, and nothing is kept from one card to the next. A card that
+ * was never billed starts from its balance on the day it is first seen (or from its
+ * issue date, if it was issued in the cycle that is open), so nothing is charged for
+ * the time before.
+ *
+ * Run it every night over all the users of the server's data directory with:
+ *
+ * java StatementEngine data=wallet-data [date=2024-03-09] [threads=4] [loaded=1000]
+ *
+ * Only up to loaded wallets are kept in memory at a time, however many users there are.
+ * Without a data directory it bills the app's own user.
+ */
+public class StatementEngine {
+
+	// 23.99% a year
+	public static final long DEFAULT_APR_BASIS_POINTS = 2399;
+	public static final long DEFAULT_LATE_FEE_CENTS = 29 * Money.CENTS_PER_DOLLAR;
+	public static final int DEFAULT_DAYS_TO_PAY = 25;
+
+	// the minimum payment is 1% of the balance plus the fees of the cycle, but at least
+	// $25.00 (or the whole balance if that's less)
+	private static final long MINIMUM_PAYMENT_BASIS_POINTS = 100;
+	private static final long MINIMUM_PAYMENT_CENTS = 25 * Money.CENTS_PER_DOLLAR;
+	private static final long DAYS_PER_YEAR = 365;
+	private static final long MICROS_PER_DAY = 86_400_000_000L;
+
+	private final long aprBasisPoints;
+	private final long lateFeeCents;
+	private final int daysToPay;
+
+	/**
+	 * @param aprBasisPoints the yearly interest rate, 100 is 1%
+	 * @param lateFeeCents   the most a late fee can be. it is never more than the minimum
+	 *                       that wasn't paid
+	 * @param daysToPay      how many days after a cycle closes its minimum is due. it has
+	 *                       to be due before the next cycle closes, even after February
+	 */
+	public StatementEngine(long aprBasisPoints, long lateFeeCents, int daysToPay) {
+		if (aprBasisPoints < 0 || lateFeeCents < 0) {
+			throw new IllegalArgumentException("The interest rate and the late fee can't be negative");
+		}
+		if (daysToPay < 1 || daysToPay > 27) {
+			throw new IllegalArgumentException("A statement has to be due between 1 and 27 days after it closes");
+		}
+		this.aprBasisPoints = aprBasisPoints;
+		this.lateFeeCents = lateFeeCents;
+		this.daysToPay = daysToPay;
+	}
+
+	/**
+	 * 23.99% a year, a late fee of $29.00 and 25 days to pay
+	 */
+	public static StatementEngine defaults() {
+		return new StatementEngine(DEFAULT_APR_BASIS_POINTS, DEFAULT_LATE_FEE_CENTS, DEFAULT_DAYS_TO_PAY);
+	}
+
+	/**
+	 * what was worked out when a cycle closed. all the amounts are in cents
+	 */
+	public static class Statement {
+		private final String cardId;
+		private final LocalDate openedOn;
+		private final LocalDate closedOn;
+		private final long openingBalance;
+		private final long averageDailyBalance;
+		private final long interest;
+		private final long lateFee;
+		private final long balance;
+		private final long minimumDue;
+		private final LocalDate dueDate;
+
+		private Statement(String cardId, LocalDate openedOn, LocalDate closedOn, long openingBalance,
+				long averageDailyBalance, long interest, long lateFee, long balance, long minimumDue,
+				LocalDate dueDate) {
+			this.cardId = cardId;
+			this.openedOn = openedOn;
+			this.closedOn = closedOn;
+			this.openingBalance = openingBalance;
+			this.averageDailyBalance = averageDailyBalance;
+			this.interest = interest;
+			this.lateFee = lateFee;
+			this.balance = balance;
+			this.minimumDue = minimumDue;
+			this.dueDate = dueDate;
+		}
+
+		public String getCardId() {
+			return cardId;
+		}
+
+		// the first day of the cycle
+		public LocalDate getOpenedOn() {
+			return openedOn;
+		}
+
+		// the cycle ended at the start of this day
+		public LocalDate getClosedOn() {
+			return closedOn;
+		}
+
+		public long getOpeningBalance() {
+			return openingBalance;
+		}
+
+		public long getAverageDailyBalance() {
+			return averageDailyBalance;
+		}
+
+		public long getInterest() {
+			return interest;
+		}
+
+		public long getLateFee() {
+			return lateFee;
+		}
+
+		// what was owed when the cycle closed, with the interest and the late fee
+		public long getBalance() {
+			return balance;
+		}
+
+		public long getMinimumDue() {
+			return minimumDue;
+		}
+
+		public LocalDate getDueDate() {
+			return dueDate;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append("Card " + cardId + ", " + openedOn + " to " + closedOn.minusDays(1) + ": balance ");
+			Money.appendTo(str, balance);
+			str.append(", average daily balance ");
+			Money.appendTo(str, averageDailyBalance);
+			str.append(", interest ");
+			Money.appendTo(str, interest);
+			str.append(", late fee ");
+			Money.appendTo(str, lateFee);
+			str.append(", minimum ");
+			Money.appendTo(str, minimumDue);
+			str.append(" due " + dueDate);
+			return str.toString();
+		}
+	}
+
+	/**
+	 * closes every cycle of the card that ended by this day, oldest first, and charges
+	 * its interest and late fee. a card that was never billed gets its first cycle
+	 * opened. whoever calls this has to make sure nothing else is added to the card
+	 * meanwhile, like WalletService.closeStatements does
+	 *
+	 * @param closed the statements of the cycles that were closed are added to it
+	 * @return whether the billing of the card changed, so it needs saving
+	 */
+	public boolean bill(CreditCard card, LocalDate today, List<Statement> closed) throws IOException {
+		synchronized (card) {
+			boolean changed = false;
+			if (card.getBillingCycle() == null) {
+				card.setBillingCycle(firstCycle(card, today));
+				changed = true;
+			}
+			while (!today.isBefore(card.getBillingCycle().closesOn(card.getIssuanceDate()))) {
+				closed.add(close(card, card.getBillingCycle()));
+				changed = true;
+			}
+			return changed;
+		}
+	}
+
+	private static BillingCycle firstCycle(CreditCard card, LocalDate today) {
+		LocalDate issueDate = card.getIssuanceDate();
+		// the first cycle that closes after today
+		int cycleNumber = (int) Math.max(1, ChronoUnit.MONTHS.between(issueDate, today) + 1);
+		while (!issueDate.plusMonths(cycleNumber).isAfter(today)) {
+			cycleNumber++;
+		}
+		while (cycleNumber > 1 && issueDate.plusMonths(cycleNumber - 1).isAfter(today)) {
+			cycleNumber--;
+		}
+		if (cycleNumber == 1) {
+			// issued in this cycle, so all of its transactions are in it
+			return new BillingCycle(1, issueDate, 0, 0, 0, 0, 0, null);
+		}
+		int rows = card.history().size();
+		return new BillingCycle(cycleNumber, today, rows, rows, card.getCurrBalance(), 0, 0, null);
+	}
+
+	// has to be called holding the lock on the card
+	private Statement close(CreditCard card, BillingCycle cycle) throws IOException {
+		TransactionStore history = card.history();
+		LocalDate closesOn = cycle.closesOn(card.getIssuanceDate());
+		long startDay = cycle.getOpenedOn().toEpochDay();
+		long endDay = closesOn.toEpochDay();
+		long startMicros = startDay * MICROS_PER_DAY;
+		long endMicros = endDay * MICROS_PER_DAY;
+		// payments up to the end of the due date count towards the last statement
+		long dueEndMicros = cycle.getDueDate() == null ? Long.MIN_VALUE
+				: (cycle.getDueDate().toEpochDay() + 1) * MICROS_PER_DAY;
+
+		// the balance times the number of days it was owed for, added up over the cycle
+		long balance = cycle.getOpeningBalance();
+		long balanceDays = balance * (endDay - startDay);
+		long paidByDueDate = 0;
+		int size = history.size();
+		int nextFirstRow = size;
+		for (int row = cycle.getFirstRow(); row < size; row++) {
+			long micros = history.micros(row);
+			if (micros >= endMicros) {
+				// it belongs to a later cycle, which starts from the first such row
+				nextFirstRow = Math.min(nextFirstRow, row);
+				continue;
+			}
+			if (row < cycle.getScannedTo() && micros < startMicros) {
+				// it was looked at when the last cycle closed and was in that one
+				continue;
+			}
+			// a row that was added late, dated in a cycle that already closed, is counted
+			// from the first day of this one
+			long day = Math.max(startDay, Math.floorDiv(micros, MICROS_PER_DAY));
+			long amount = history.amount(row);
+			if (history.type(row) == TransactionType.PAYMENT) {
+				amount = -amount;
+				if (micros < dueEndMicros) {
+					paidByDueDate -= amount;
+				}
+			}
+			balance += amount;
+			balanceDays += amount * (endDay - day);
+		}
+		// a balance in the cardholder's favour doesn't earn them interest
+		balanceDays = Math.max(0, balanceDays);
+
+		long interest = 0;
+		if (paidByDueDate < cycle.getStatementBalance()) {
+			interest = Money.divide(Math.multiplyExact(balanceDays, aprBasisPoints),
+					DAYS_PER_YEAR * Money.BASIS_POINTS_PER_WHOLE, RoundingMode.HALF_EVEN);
+		}
+		long lateFee = 0;
+		if (paidByDueDate < cycle.getMinimumDue()) {
+			// no more than the part of the minimum that wasn't paid
+			lateFee = Math.min(lateFeeCents, cycle.getMinimumDue() - paidByDueDate);
+		}
+		addFee(card, closesOn, interest, FeeType.interest);
+		addFee(card, closesOn, lateFee, FeeType.LatePayment);
+
+		long statementBalance = balance + interest + lateFee;
+		long minimumDue = 0;
+		if (statementBalance > 0) {
+			minimumDue = Math.min(statementBalance,
+					Math.max(MINIMUM_PAYMENT_CENTS,
+							Money.percentOf(balance, MINIMUM_PAYMENT_BASIS_POINTS, RoundingMode.HALF_UP) + interest
+									+ lateFee));
+		}
+		LocalDate dueDate = closesOn.plusDays(daysToPay);
+		// the fees were added after size, so the next cycle picks them up as new rows.
+		// that's why they aren't in its opening balance
+		card.setBillingCycle(new BillingCycle(cycle.getCycleNumber() + 1, closesOn, nextFirstRow, size, balance,
+				statementBalance, minimumDue, dueDate));
+		long averageDailyBalance = Money.divide(balanceDays, endDay - startDay, RoundingMode.HALF_EVEN);
+		return new Statement(card.getCreditCardId(), cycle.getOpenedOn(), closesOn, cycle.getOpeningBalance(),
+				averageDailyBalance, interest, lateFee, statementBalance, minimumDue, dueDate);
+	}
+
+	private static void addFee(CreditCard card, LocalDate closesOn, long amount, FeeType type) throws IOException {
+		if (amount > 0) {
+			card.addFee(new Fee(Transaction.reserveIds(1), closesOn.atStartOfDay(), amount, type));
+		}
+	}
+
+	/**
+	 * adds up the statements of a nightly run. it is updated from several threads at once
+	 */
+	public static class Run {
+		private final LongAdder users = new LongAdder();
+		private final LongAdder failedUsers = new LongAdder();
+		private final LongAdder statements = new LongAdder();
+		private final LongAdder interestCents = new LongAdder();
+		private final LongAdder lateFees = new LongAdder();
+		private final LongAdder lateFeeCents = new LongAdder();
+		private long nanos;
+
+		void add(List<Statement> closed) {
+			users.increment();
+			for (Statement s : closed) {
+				statements.increment();
+				interestCents.add(s.getInterest());
+				if (s.getLateFee() > 0) {
+					lateFees.increment();
+					lateFeeCents.add(s.getLateFee());
+				}
+			}
+		}
+
+		void failed(String userId, Exception e) {
+			failedUsers.increment();
+			System.err.println("Could not bill " + userId + ": " + e);
+		}
+
+		public long getStatements() {
+			return statements.sum();
+		}
+
+		public long getFailedUsers() {
+			return failedUsers.sum();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append("Users billed: " + users.sum() + "\n");
+			str.append("Users that could not be billed: " + failedUsers.sum() + "\n");
+			str.append("Statements: " + statements.sum() + "\n");
+			str.append("Interest charged: " + Money.format(interestCents.sum()) + "\n");
+			str.append("Late fees: " + lateFees.sum() + ", " + Money.format(lateFeeCents.sum()) + "\n");
+			str.append(String.format("Took %.1f s%n", nanos / 1e9));
+			return str.toString();
+		}
+	}
+
+	/**
+	 * bills every user in the repository, a few at a time. users are read from the disk
+	 * one shard directory at a time and the repository only keeps up to its capacity of
+	 * wallets loaded, so the memory it takes doesn't grow with the number of users
+	 */
+	public Run billAll(UserRepository users, LocalDate today, int threads) throws IOException, InterruptedException {
+		Run run = new Run();
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		// don't read the user ids much further ahead than the wallets that are being billed
+		Semaphore inFlight = new Semaphore(threads * 2);
+		try {
+			Iterator<String> userIds = users.userIds();
+			while (userIds.hasNext()) {
+				String userId = userIds.next();
+				inFlight.acquire();
+				pool.execute(() -> {
+					try {
+						run.add(users.withWallet(userId, wallet -> wallet.closeStatements(this, today)));
+					} catch (IOException | RuntimeException e) {
+						run.failed(userId, e);
+					} finally {
+						inFlight.release();
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+		run.nanos = System.nanoTime() - start;
+		return run;
+	}
+
+	public static void main(String[] args) throws IOException, ClassNotFoundException, InterruptedException {
+		String dataDir = null;
+		LocalDate today = LocalDate.now();
+		int threads = Runtime.getRuntime().availableProcessors();
+		int loaded = UserRepository.DEFAULT_CAPACITY;
+		for (String arg : args) {
+			String[] parts = arg.split("=", 2);
+			if (parts.length < 2) {
+				throw new IllegalArgumentException("Options look like name=value: " + arg);
+			}
+			switch (parts[0]) {
+			case "data":
+				dataDir = parts[1];
+				break;
+			case "date":
+				today = LocalDate.parse(parts[1]);
+				break;
+			case "threads":
+				threads = Integer.parseInt(parts[1]);
+				break;
+			case "loaded":
+				loaded = Integer.parseInt(parts[1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		CreditCard.keepHistoryIn(System.getProperty("wallet.historyDir"));
+		StatementEngine engine = defaults();
+
+		if (dataDir == null) {
+			// the same files the app uses
+			CreditCard.initializeIdCounter();
+			Transaction.initializeIdCounter();
+			TransactionJournal persistence = new TransactionJournal("UserInfo.bin", "UserInfo.txt",
+					"UserJournal.log", 500);
+			User user = persistence.load();
+			if (user == null) {
+				System.out.println("There is no user yet. Run the app first to set one up.");
+				return;
+			}
+			WalletService wallet = new WalletService(user, persistence);
+			try {
+				wallet.expireCards();
+				List<Statement> closed = wallet.closeStatements(engine, today);
+				for (Statement s : closed) {
+					System.out.println(s);
+				}
+				System.out.println(closed.size() + " statements");
+			} finally {
+				wallet.close();
+			}
+			return;
+		}
+
+		// the same files the server uses
+		File data = new File(dataDir);
+		CreditCard.initializeIdCounter(WalletServer.counterFile(data, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(WalletServer.counterFile(data, "TransactionIdCounter.txt"));
+		try (UserRepository users = new UserRepository(new File(data, "users").getPath(), loaded)) {
+			System.out.print(engine.billAll(users, today, threads));
+		}
+	}
+}
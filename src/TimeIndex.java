@@ -0,0 +1,220 @@
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The rows of a card's transactions sorted by their date and time, so the transactions
+ * in a period can be found with a binary search instead of going through all of them.
+ *
+ * Rows are mostly added in time order already. The exception is the interest fee of a
+ * purchase, which is made a moment before the purchase but added right after it, so a
+ * new row nearly always goes at (or very near) the end. Rows with the same time stay in
+ * the order they were added.
+ *
+ * The index isn't thread safe. Whoever owns the transactions holds its lock while using
+ * it, and it catches up with the rows added since it was last used before every query.
+ */
+public class TimeIndex {
+
+	private final TransactionStore store;
+	// positions in time order -> rows
+	private int[] order = new int[16];
+	private int size;
+
+	public TimeIndex(TransactionStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * adds the rows that were added to the transactions since the last time
+	 */
+	public void catchUp() {
+		while (size < store.size()) {
+			insert(size);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the row at this position in time order
+	 */
+	public int row(int position) {
+		return order[position];
+	}
+
+	/**
+	 * @return the first position whose transaction is at or after this time, or size()
+	 *         if there isn't one
+	 */
+	public int firstAtOrAfter(long micros) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (store.micros(order[mid]) < micros) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the first position that comes after this row (which was at this time)
+	 */
+	public int firstAfter(long micros, int row) {
+		int position = firstAtOrAfter(micros);
+		// rows with the same time are in the order they were added
+		while (position < size && store.micros(order[position]) == micros && order[position] <= row) {
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * goes through the transactions from one time (included) up to another (not
+	 * included) in time order. it only holds the lock while it gets the next few of them,
+	 * so the card can be used while someone goes through a long history
+	 */
+	public Iterator<Transaction> between(Object lock, LocalDateTime from, LocalDateTime to) {
+		return new Iterator<Transaction>() {
+			private static final int PAGE_SIZE = 256;
+
+			private final long toMicros = TransactionColumns.toMicros(to);
+			// the last transaction that was handed out, so the next page starts after it
+			private long lastMicros = TransactionColumns.toMicros(from);
+			private int lastRow = -1;
+			private final ArrayList<Transaction> page = new ArrayList<>();
+			private int next;
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				if (next < page.size()) {
+					return true;
+				}
+				if (done) {
+					return false;
+				}
+				page.clear();
+				next = 0;
+				synchronized (lock) {
+					catchUp();
+					// the positions may have moved since the last page, so look for where we
+					// were again
+					int position = firstAfter(lastMicros, lastRow);
+					for (; position < size && page.size() < PAGE_SIZE; position++) {
+						int row = order[position];
+						long micros = store.micros(row);
+						if (micros >= toMicros) {
+							break;
+						}
+						page.add(store.get(row));
+						lastMicros = micros;
+						lastRow = row;
+					}
+					done = page.size() < PAGE_SIZE;
+				}
+				return !page.isEmpty();
+			}
+
+			@Override
+			public Transaction next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return page.get(next++);
+			}
+		};
+	}
+
+	/**
+	 * merges transactions that are each already in time order into one list in time
+	 * order, without reading them all in first. when two have the same time, the one
+	 * from the earlier list comes first
+	 */
+	public static <T extends Transaction> Iterator<T> merge(List<Iterator<T>> sources) {
+		// the next transaction of each list that isn't used up yet, earliest first
+		PriorityQueue<Head<T>> heads = new PriorityQueue<>();
+		for (int i = 0; i < sources.size(); i++) {
+			Iterator<T> source = sources.get(i);
+			if (source.hasNext()) {
+				heads.add(new Head<>(source.next(), i, source));
+			}
+		}
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+
+			@Override
+			public T next() {
+				Head<T> head = heads.poll();
+				if (head == null) {
+					throw new NoSuchElementException();
+				}
+				T t = head.transaction;
+				if (head.source.hasNext()) {
+					heads.add(new Head<>(head.source.next(), head.sourceNumber, head.source));
+				}
+				return t;
+			}
+		};
+	}
+
+	private static class Head<T extends Transaction> implements Comparable<Head<T>> {
+		final T transaction;
+		final int sourceNumber;
+		final Iterator<T> source;
+
+		Head(T transaction, int sourceNumber, Iterator<T> source) {
+			this.transaction = transaction;
+			this.sourceNumber = sourceNumber;
+			this.source = source;
+		}
+
+		@Override
+		public int compareTo(Head<T> other) {
+			int byTime = transaction.getTransactionDateAndTime().compareTo(other.transaction.getTransactionDateAndTime());
+			return byTime != 0 ? byTime : Integer.compare(sourceNumber, other.sourceNumber);
+		}
+	}
+
+	private void insert(int row) {
+		if (size == order.length) {
+			order = Arrays.copyOf(order, size * 2);
+		}
+		// after every row at the same time or earlier. that is nearly always the end, so
+		// look backwards from there for a few rows before doing a binary search
+		long micros = store.micros(row);
+		int position = size;
+		for (int steps = 0; steps < 8 && position > 0 && store.micros(order[position - 1]) > micros; steps++) {
+			position--;
+		}
+		if (position > 0 && store.micros(order[position - 1]) > micros) {
+			int low = 0;
+			int high = position;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (store.micros(order[mid]) <= micros) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			position = low;
+		}
+		System.arraycopy(order, position, order, position + 1, size - position);
+		order[position] = row;
+		size++;
+	}
+}
@@ -1,7 +1,5 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 
@@ -9,52 +7,62 @@ public abstract class Transaction implements Serializable {
 	// need this field for the serialization
 	private static final long serialVersionUID = 1L;
 
-	// static integer that all transactions will share and will be incremented for
-	// each card
-	private static int idCounter;
+	// all transactions share this allocator. it reserves ids in blocks of 10,000 so the
+	// counter file is only written once per block instead of once per transaction
+	private static IdAllocator ids;
 
-	// we need to set the id counter to what it was last time we ran the program
-	// it is therefore saved in a file. main will call this method to initialize it
+	// we need to start the ids after the last one given out the last time we ran the
+	// program. it is therefore saved in a file. main will call this method to initialize it
 	public static void initializeIdCounter() throws IOException {
-
-		BufferedReader input = new BufferedReader(new FileReader("TransactionIdCounter.txt"));
-		idCounter = Integer.parseInt(input.readLine());
-		input.close();
-
+		initializeIdCounter("TransactionIdCounter.txt");
 	}
 
+	// the same, but with the counter kept in a different file (benchmarks use this so
+	// they don't use up the real ids)
+	public static void initializeIdCounter(String counterFile) throws IOException {
+		ids = new IdAllocator(counterFile, 10000);
+	}
 
-	// every time a new transaction is created, besides for updating the idcounter,
-	// we need to update it in the file
-	private static void updateLastUsedIdInFile() throws IOException {
-		FileWriter output = new FileWriter("TransactionIdCounter.txt");
-		output.write(idCounter + "");
-		output.close();
-
+	// takes a run of ids in one go, for transactions that are made in bulk. the run is
+	// first, first+1, ... first+count-1 and the first one is returned
+	static long reserveIds(int count) throws IOException {
+		return ids.nextIds(count);
 	}
+
 	protected long transactionID;
 	protected LocalDateTime transactionDateAndTime;
 	protected TransactionType transactionType;
 
-	// how much money this transaction is
-	protected double amount;
-	public Transaction(double amount) throws IOException {
-		this.amount = amount;
+	// how much money this transaction is, in cents
+	protected long amountCents;
+	public Transaction(long amountCents) throws IOException {
+		this.amountCents = amountCents;
 		// automatically give this transaction the next available id
-		this.transactionID = ++idCounter;
-		updateLastUsedIdInFile();
+		this.transactionID = ids.nextId();
 
 		// the transaction date is whatever date the transaction is created
 		this.transactionDateAndTime = LocalDateTime.now();
+		this.transactionType = typeOfThisTransaction();
+	}
 
-		// set it to the correct transaction type based on which class this is an
-		// instance of. 
+	// used when rebuilding a transaction that already was given an id (for example when
+	// replaying the journal). it must not take a new id from the counter
+	protected Transaction(long transactionID, LocalDateTime transactionDateAndTime, long amountCents) {
+		this.amountCents = amountCents;
+		this.transactionID = transactionID;
+		this.transactionDateAndTime = transactionDateAndTime;
+		this.transactionType = typeOfThisTransaction();
+	}
+
+	// set it to the correct transaction type based on which class this is an
+	// instance of.
+	private TransactionType typeOfThisTransaction() {
 		if (this instanceof Purchase) {
-			this.transactionType = TransactionType.PURCHASE;
+			return TransactionType.PURCHASE;
 		} else if (this instanceof Fee) {
-			this.transactionType = TransactionType.FEE;
+			return TransactionType.FEE;
 		} else if (this instanceof Payment) {
-			this.transactionType = TransactionType.PAYMENT;
+			return TransactionType.PAYMENT;
 		} else {
 			//this exception wouldnt be thrown being that its an abstract class, but have it 
 			//there in case someone makes the class nonabstract or something like that.
@@ -62,8 +70,9 @@ public abstract class Transaction implements Serializable {
 					"The constructor transaction cannot be called. Must create a transaction using one of its children classes (either Fee, Purchase, or Payment");
 		}
 	}
-	public double getAmount() {
-		return this.amount;
+	// the amount in cents
+	public long getAmount() {
+		return this.amountCents;
 	}
 
 
@@ -87,15 +96,31 @@ public abstract class Transaction implements Serializable {
 		str.append(": Transaction ID: ");
 		str.append(transactionID);
 		str.append(" Amount: ");
-		str.append(String.format("$%,.2f", amount));
+		Money.appendTo(str, amountCents);
 		str.append(" Date: ");
 		str.append(transactionDateAndTime.toLocalDate());
 		str.append(" Time: ");
-		str.append(String.format("%02d", transactionDateAndTime.getHour()));
-		str.append(":");
-		str.append(String.format("%02d", transactionDateAndTime.getMinute()));
+		// two digits each, without going through String.format
+		int hour = transactionDateAndTime.getHour();
+		int minute = transactionDateAndTime.getMinute();
+		str.append((char) ('0' + hour / 10)).append((char) ('0' + hour % 10));
+		str.append(':');
+		str.append((char) ('0' + minute / 10)).append((char) ('0' + minute % 10));
 
 		return str.toString();
 	}
 
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		transactionID = fields.get("transactionID", 0L);
+		transactionDateAndTime = (LocalDateTime) fields.get("transactionDateAndTime", null);
+		transactionType = (TransactionType) fields.get("transactionType", null);
+		if (fields.defaulted("amountCents")) {
+			// transactions saved before amounts were kept in cents have a double amount
+			amountCents = Money.ofDollars(fields.get("amount", 0.0));
+		} else {
+			amountCents = fields.get("amountCents", 0L);
+		}
+	}
+
 }
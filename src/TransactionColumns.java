@@ -0,0 +1,319 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Stores the transactions of a card column by column in primitive arrays instead of
+ * keeping a Purchase, Payment or Fee object (with its vendor, address, date and so on)
+ * for every transaction. Row i of every column is the i-th transaction that was added.
+ * Transaction objects are only made when someone asks for one.
+ *
+ * A purchase is always added right before its interest fee, so the interest fee of the
+ * purchase in row i is in row i+1.
+ *
+ * Rows are only ever added at the end. When an array is full the rows are copied into
+ * a bigger one and the old one is left as it was, so a frozen view just keeps the arrays
+ * it was made with and reads the rows that were in them.
+ */
+public class TransactionColumns implements Serializable, TransactionStore {
+
+	// need this field for the serialization
+	private static final long serialVersionUID = 1L;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int INITIAL_TABLE_CAPACITY = 4;
+
+	private static final TransactionType[] TRANSACTION_TYPES = TransactionType.values();
+	private static final PurchaseType[] PURCHASE_TYPES = PurchaseType.values();
+	private static final FeeType[] FEE_TYPES = FeeType.values();
+	private static final PaymentType[] PAYMENT_TYPES = PaymentType.values();
+
+	private int size;
+	private long[] ids;
+	// date and time of the transaction in microseconds since 1970-01-01T00:00
+	private long[] micros;
+	// amounts in cents
+	private long[] cents;
+	// ordinal of the TransactionType
+	private byte[] types;
+	// ordinal of the PurchaseType, FeeType or PaymentType, depending on the type
+	private byte[] kinds;
+	// for purchases, where the vendor is in the vendor table. for payments, where the
+	// bank account is in the account table
+	private int[] refs;
+
+	// every vendor is only stored once no matter how many purchases were made there. the
+	// tables are only added to at the end too, like the columns
+	private Vendor[] vendors;
+	private int vendorCount;
+	private transient HashMap<Vendor, Integer> vendorRefs;
+	// payments nearly always come from the same one account
+	private BankAccount[] accounts;
+	private int accountCount;
+	// a frozen view of another store's columns, which can't be added to
+	private transient boolean frozen;
+
+	public TransactionColumns() {
+		allocate(INITIAL_CAPACITY);
+		this.vendors = new Vendor[INITIAL_TABLE_CAPACITY];
+		this.vendorRefs = new HashMap<>();
+		this.accounts = new BankAccount[INITIAL_TABLE_CAPACITY];
+	}
+
+	// puts back columns that were read from a file. the arrays are used as they are
+	TransactionColumns(long[] ids, long[] micros, long[] cents, byte[] types, byte[] kinds, int[] refs,
+			ArrayList<Vendor> vendors, ArrayList<BankAccount> accounts) {
+		this.size = ids.length;
+		this.ids = ids;
+		this.micros = micros;
+		this.cents = cents;
+		this.types = types;
+		this.kinds = kinds;
+		this.refs = refs;
+		if (size < INITIAL_CAPACITY) {
+			grow(INITIAL_CAPACITY);
+		}
+		setTables(vendors, accounts);
+	}
+
+	// shares the columns of a store as they are right now
+	private TransactionColumns(TransactionColumns from) {
+		this.size = from.size;
+		this.ids = from.ids;
+		this.micros = from.micros;
+		this.cents = from.cents;
+		this.types = from.types;
+		this.kinds = from.kinds;
+		this.refs = from.refs;
+		this.vendors = from.vendors;
+		this.vendorCount = from.vendorCount;
+		this.accounts = from.accounts;
+		this.accountCount = from.accountCount;
+		this.frozen = true;
+	}
+
+	@Override
+	public void add(Transaction t) {
+		if (frozen) {
+			throw new UnsupportedOperationException("Nothing can be added to a frozen view of the transactions");
+		}
+		int ref = -1;
+		byte kind;
+		if (t instanceof Purchase) {
+			Purchase p = (Purchase) t;
+			kind = (byte) p.getPurchaseType().ordinal();
+			ref = vendorRef(p.getVendor());
+		} else if (t instanceof Fee) {
+			kind = (byte) ((Fee) t).getFeeType().ordinal();
+		} else {
+			Payment p = (Payment) t;
+			kind = (byte) p.getPaymentType().ordinal();
+			ref = accountRef(p.getAccount());
+		}
+
+		if (size == ids.length) {
+			grow(ids.length * 2);
+		}
+		ids[size] = t.getTransactionID();
+		micros[size] = toMicros(t.getTransactionDateAndTime());
+		cents[size] = t.getAmount();
+		types[size] = (byte) t.getTransactionType().ordinal();
+		kinds[size] = kind;
+		refs[size] = ref;
+		size++;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long id(int row) {
+		return ids[row];
+	}
+
+	@Override
+	public long micros(int row) {
+		return micros[row];
+	}
+
+	@Override
+	public long amount(int row) {
+		return cents[row];
+	}
+
+	@Override
+	public TransactionType type(int row) {
+		return TRANSACTION_TYPES[types[row]];
+	}
+
+	@Override
+	public PurchaseType purchaseType(int row) {
+		return PURCHASE_TYPES[kinds[row]];
+	}
+
+	@Override
+	public Vendor vendor(int row) {
+		return vendors[refs[row]];
+	}
+
+	// the raw columns, for writing them out to a file
+
+	int typeOrdinal(int row) {
+		return types[row];
+	}
+
+	@Override
+	public int kindOrdinal(int row) {
+		return kinds[row];
+	}
+
+	// where the vendor or bank account of the row is in its table, or -1 for a fee
+	int ref(int row) {
+		return refs[row];
+	}
+
+	List<Vendor> vendorTable() {
+		return Arrays.asList(vendors).subList(0, vendorCount);
+	}
+
+	List<BankAccount> accountTable() {
+		return Arrays.asList(accounts).subList(0, accountCount);
+	}
+
+	@Override
+	public Transaction get(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("No transaction at row " + row);
+		}
+		LocalDateTime dateAndTime = toDateAndTime(micros[row]);
+		switch (TRANSACTION_TYPES[types[row]]) {
+		case PURCHASE:
+			return new Purchase(ids[row], dateAndTime, cents[row], PURCHASE_TYPES[kinds[row]], vendors[refs[row]],
+					(Fee) get(row + 1));
+		case FEE:
+			return new Fee(ids[row], dateAndTime, cents[row], FEE_TYPES[kinds[row]]);
+		default:
+			return new Payment(ids[row], dateAndTime, cents[row], PAYMENT_TYPES[kinds[row]], accounts[refs[row]]);
+		}
+	}
+
+	@Override
+	public TransactionStore frozen() {
+		return frozen ? this : new TransactionColumns(this);
+	}
+
+	public static long toMicros(LocalDateTime dateAndTime) {
+		return dateAndTime.toEpochSecond(ZoneOffset.UTC) * 1_000_000 + dateAndTime.getNano() / 1000;
+	}
+
+	public static LocalDateTime toDateAndTime(long micros) {
+		return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000),
+				Math.floorMod(micros, 1_000_000) * 1000, ZoneOffset.UTC);
+	}
+
+	private int vendorRef(Vendor v) {
+		Integer ref = vendorRefs.get(v);
+		if (ref == null) {
+			if (vendorCount == vendors.length) {
+				vendors = Arrays.copyOf(vendors, vendors.length * 2);
+			}
+			ref = vendorCount;
+			vendors[vendorCount++] = v;
+			vendorRefs.put(v, ref);
+		}
+		return ref;
+	}
+
+	private int accountRef(BankAccount account) {
+		// there's only ever a few accounts so a simple search is fine
+		for (int i = 0; i < accountCount; i++) {
+			if (accounts[i] == account) {
+				return i;
+			}
+		}
+		if (accountCount == accounts.length) {
+			accounts = Arrays.copyOf(accounts, accounts.length * 2);
+		}
+		accounts[accountCount] = account;
+		return accountCount++;
+	}
+
+	private void setTables(List<Vendor> vendorList, List<BankAccount> accountList) {
+		vendorCount = vendorList.size();
+		vendors = vendorList.toArray(new Vendor[Math.max(vendorCount, INITIAL_TABLE_CAPACITY)]);
+		accountCount = accountList.size();
+		accounts = accountList.toArray(new BankAccount[Math.max(accountCount, INITIAL_TABLE_CAPACITY)]);
+		vendorRefs = new HashMap<>();
+		for (int i = 0; i < vendorCount; i++) {
+			vendorRefs.put(vendors[i], i);
+		}
+	}
+
+	private void allocate(int capacity) {
+		ids = new long[capacity];
+		micros = new long[capacity];
+		cents = new long[capacity];
+		types = new byte[capacity];
+		kinds = new byte[capacity];
+		refs = new int[capacity];
+	}
+
+	private void grow(int capacity) {
+		ids = Arrays.copyOf(ids, capacity);
+		micros = Arrays.copyOf(micros, capacity);
+		cents = Arrays.copyOf(cents, capacity);
+		types = Arrays.copyOf(types, capacity);
+		kinds = Arrays.copyOf(kinds, capacity);
+		refs = Arrays.copyOf(refs, capacity);
+	}
+
+	// only the rows that are used are written, not the empty space at the end of the arrays
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.writeInt(size);
+		out.writeObject(Arrays.copyOf(ids, size));
+		out.writeObject(Arrays.copyOf(micros, size));
+		out.writeObject(Arrays.copyOf(cents, size));
+		out.writeObject(Arrays.copyOf(types, size));
+		out.writeObject(Arrays.copyOf(kinds, size));
+		out.writeObject(Arrays.copyOf(refs, size));
+		// the tables are written as lists, the way they always were
+		out.writeObject(new ArrayList<>(vendorTable()));
+		out.writeObject(new ArrayList<>(accountTable()));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		size = in.readInt();
+		int capacity = Math.max(size, INITIAL_CAPACITY);
+		ids = Arrays.copyOf((long[]) in.readObject(), capacity);
+		micros = Arrays.copyOf((long[]) in.readObject(), capacity);
+		Object amounts = in.readObject();
+		if (amounts instanceof double[]) {
+			// columns saved before amounts were kept in cents
+			double[] dollars = (double[]) amounts;
+			cents = new long[capacity];
+			for (int i = 0; i < dollars.length; i++) {
+				cents[i] = Money.ofDollars(dollars[i]);
+			}
+		} else {
+			cents = Arrays.copyOf((long[]) amounts, capacity);
+		}
+		types = Arrays.copyOf((byte[]) in.readObject(), capacity);
+		kinds = Arrays.copyOf((byte[]) in.readObject(), capacity);
+		refs = Arrays.copyOf((int[]) in.readObject(), capacity);
+		ArrayList<Vendor> vendorList = (ArrayList<Vendor>) in.readObject();
+		for (int i = 0; i < vendorList.size(); i++) {
+			vendorList.set(i, VendorRegistry.shared().intern(vendorList.get(i)));
+		}
+		setTables(vendorList, (ArrayList<BankAccount>) in.readObject());
+	}
+}
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+
+/**
+ * Writes the transactions of a card to a Writer as it goes, instead of putting all of
+ * them in one big string first. It reads straight from the columns the card keeps its
+ * transactions in and formats the numbers and dates itself, so it doesn't make a
+ * Transaction object or go through String.format for every row.
+ *
+ * The formats are:
+ * - CONSOLE, the same lines the app always showed
+ * - CSV, with a header line, for spreadsheets
+ * - JSON_LINES, one JSON object per line
+ */
+public class TransactionExporter {
+
+	public enum Format {
+		CONSOLE, CSV, JSON_LINES
+	}
+
+	// how many rows are formatted while holding the lock on the card, before they are
+	// written out without it
+	static final int ROWS_PER_PAGE = 256;
+
+	private static final PurchaseType[] PURCHASE_TYPES = PurchaseType.values();
+	private static final FeeType[] FEE_TYPES = FeeType.values();
+	private static final PaymentType[] PAYMENT_TYPES = PaymentType.values();
+
+	private final Writer out;
+	private final Format format;
+	// the rows of a page are put together here and then written in one go
+	private final StringBuilder buffer = new StringBuilder(ROWS_PER_PAGE * 80);
+	private boolean wroteHeader;
+
+	public TransactionExporter(Writer out, Format format) {
+		this.out = out;
+		this.format = format;
+	}
+
+	/**
+	 * writes the transactions on a card, starting at a row and writing at most this many
+	 *
+	 * @return how many transactions were written
+	 */
+	public int export(CreditCard card, int firstRow, int maxRows) throws IOException {
+		if (format == Format.CSV && !wroteHeader) {
+			out.write("id,type,kind,date_time,amount,vendor\n");
+			wroteHeader = true;
+		}
+		int written = 0;
+		int row = Math.max(firstRow, 0);
+		while (written < maxRows) {
+			int rows = card.formatTransactions(this, row, Math.min(ROWS_PER_PAGE, maxRows - written));
+			if (rows == 0) {
+				break;
+			}
+			out.append(buffer);
+			buffer.setLength(0);
+			row += rows;
+			written += rows;
+		}
+		out.flush();
+		return written;
+	}
+
+	/**
+	 * writes every transaction on a card
+	 */
+	public int export(CreditCard card) throws IOException {
+		return export(card, 0, Integer.MAX_VALUE);
+	}
+
+	// formats one row into the buffer. the card holds its lock while calling this
+	void append(TransactionStore store, int row) {
+		switch (format) {
+		case CONSOLE:
+			appendConsole(store, row);
+			break;
+		case CSV:
+			appendCsv(store, row);
+			break;
+		default:
+			appendJson(store, row);
+			break;
+		}
+	}
+
+	// the same as Transaction.toString, and the space and line break the app puts after it
+	private void appendConsole(TransactionStore store, int row) {
+		long micros = store.micros(row);
+		buffer.append(store.type(row));
+		buffer.append(": Transaction ID: ");
+		buffer.append(store.id(row));
+		buffer.append(" Amount: ");
+		Money.appendTo(buffer, store.amount(row));
+		buffer.append(" Date: ");
+		appendDate(buffer, micros);
+		buffer.append(" Time: ");
+		long secondOfDay = secondOfDay(micros);
+		appendTwoDigits(buffer, secondOfDay / 3600);
+		buffer.append(':');
+		appendTwoDigits(buffer, secondOfDay / 60 % 60);
+		buffer.append(" \n");
+	}
+
+	private void appendCsv(TransactionStore store, int row) {
+		buffer.append(store.id(row)).append(',');
+		buffer.append(store.type(row)).append(',');
+		buffer.append(kind(store, row)).append(',');
+		appendDateTime(buffer, store.micros(row));
+		buffer.append(',');
+		Money.appendPlain(buffer, store.amount(row));
+		buffer.append(',');
+		if (store.type(row) == TransactionType.PURCHASE) {
+			appendCsvField(buffer, store.vendor(row).getName());
+		}
+		buffer.append('\n');
+	}
+
+	private void appendJson(TransactionStore store, int row) {
+		buffer.append("{\"id\":").append(store.id(row));
+		buffer.append(",\"type\":\"").append(store.type(row));
+		buffer.append("\",\"kind\":\"").append(kind(store, row));
+		buffer.append("\",\"dateTime\":\"");
+		appendDateTime(buffer, store.micros(row));
+		buffer.append("\",\"amountCents\":").append(store.amount(row));
+		if (store.type(row) == TransactionType.PURCHASE) {
+			buffer.append(",\"vendor\":");
+			appendJsonString(buffer, store.vendor(row).getName());
+		}
+		buffer.append("}\n");
+	}
+
+	private static Enum<?> kind(TransactionStore store, int row) {
+		int kind = store.kindOrdinal(row);
+		switch (store.type(row)) {
+		case PURCHASE:
+			return PURCHASE_TYPES[kind];
+		case FEE:
+			return FEE_TYPES[kind];
+		default:
+			return PAYMENT_TYPES[kind];
+		}
+	}
+
+	// like 2024-03-09T14:05:59
+	private static void appendDateTime(StringBuilder str, long micros) {
+		appendDate(str, micros);
+		long secondOfDay = secondOfDay(micros);
+		str.append('T');
+		appendTwoDigits(str, secondOfDay / 3600);
+		str.append(':');
+		appendTwoDigits(str, secondOfDay / 60 % 60);
+		str.append(':');
+		appendTwoDigits(str, secondOfDay % 60);
+	}
+
+	// like 2024-03-09. works out the year, month and day from the number of days since
+	// 1970-01-01 the same way LocalDate does, without making one
+	private static void appendDate(StringBuilder str, long micros) {
+		long epochDay = Math.floorDiv(Math.floorDiv(micros, 1_000_000), 86_400);
+		// count from 0000-03-01 so the leap day is at the end of the year
+		long zeroDay = epochDay + 719_528 - 60;
+		long era = Math.floorDiv(zeroDay, 146_097);
+		long dayOfEra = zeroDay - era * 146_097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long marchMonth = (5 * dayOfYear + 2) / 153;
+		long day = dayOfYear - (153 * marchMonth + 2) / 5 + 1;
+		long month = marchMonth < 10 ? marchMonth + 3 : marchMonth - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		if (year < 0 || year > 9999) {
+			// LocalDate writes these with a sign and the year at its full width. no
+			// transaction is dated then, so it doesn't matter that this makes one
+			str.append(LocalDate.ofEpochDay(epochDay));
+			return;
+		}
+		if (year < 1000) {
+			str.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+		}
+		str.append(year);
+		str.append('-');
+		appendTwoDigits(str, month);
+		str.append('-');
+		appendTwoDigits(str, day);
+	}
+
+	private static long secondOfDay(long micros) {
+		return Math.floorMod(Math.floorDiv(micros, 1_000_000), 86_400);
+	}
+
+	private static void appendTwoDigits(StringBuilder str, long value) {
+		str.append((char) ('0' + value / 10));
+		str.append((char) ('0' + value % 10));
+	}
+
+	// in quotes if it has a comma, quote or line break in it, with quotes doubled
+	private static void appendCsvField(StringBuilder str, String value) {
+		if (value == null) {
+			return;
+		}
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			str.append(value);
+			return;
+		}
+		str.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') {
+				str.append('"');
+			}
+			str.append(c);
+		}
+		str.append('"');
+	}
+
+	private static void appendJsonString(StringBuilder str, String value) {
+		if (value == null) {
+			str.append("null");
+			return;
+		}
+		str.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				str.append('\\').append(c);
+			} else if (c < 0x20) {
+				str.append("\\u00");
+				str.append(Character.forDigit(c >> 4, 16));
+				str.append(Character.forDigit(c & 0xF, 16));
+			} else {
+				str.append(c);
+			}
+		}
+		str.append('"');
+	}
+}
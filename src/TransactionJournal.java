@@ -0,0 +1,553 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+/**
+ * Write ahead journal for the user. Instead of rewriting the whole user (with every
+ * card and every transaction) after each change, only the change itself is appended
+ * to the journal file. Every so often a full snapshot of the user is written and the
+ * journal is started over. On startup the user is rebuilt from the last snapshot plus
+ * whatever is in the journal.
+ *
+ * Every record is framed with its length and a CRC32C checksum of it. Replaying stops
+ * at the first frame that is cut off or doesn't match its checksum (the program stopped
+ * while writing it, or the disk lost part of it), and the journal is cut off there, so
+ * nothing after a damaged record is ever applied. Journals written before there were
+ * frames are still replayed.
+ *
+ * Records don't go straight to the file. They are handed to a GroupCommitWriter, which
+ * writes the records of all the threads making changes together and forces them to the
+ * disk as often as the durability says (every group by default). durable() gives a
+ * future that completes once everything recorded so far is on the disk.
+ *
+ * Snapshots are written with the WalletCodec, to an AtomicFile, so a crash while one is
+ * saved leaves the one before it. When a snapshot is saved the journal isn't cleared but
+ * kept as the previous journal (name.prev), so if the snapshot is ever found damaged the
+ * previous one plus both journals still add up to the user. A snapshot that was written with Java
+ * serialization (by an older version of the app) can still be read in, and is replaced
+ * by one in the new format as soon as it has been loaded.
+ */
+public class TransactionJournal implements WalletPersistence {
+
+	// the kinds of records that can be in the journal
+	private static final byte CARD_ADDED = 1;
+	private static final byte CARD_REMOVED = 2;
+	private static final byte STATUS_CHANGED = 3;
+	private static final byte PURCHASE = 4;
+	private static final byte PAYMENT = 5;
+	// amounts are kept in cents now. the kinds above have double amounts and are only
+	// read, so a journal written before the change can still be replayed
+	private static final byte CARD_ADDED_CENTS = 6;
+	private static final byte PURCHASE_CENTS = 7;
+	private static final byte PAYMENT_CENTS = 8;
+	// the first byte of a framed record. then its length, its checksum and the record
+	// itself, which starts with one of the kinds above
+	private static final byte FRAMED = 9;
+	private static final int FRAME_BYTES = 9;
+	// no record comes close to this, a longer frame is damaged
+	private static final int MAX_RECORD_BYTES = 1 << 20;
+
+	// the first two bytes of anything written by an ObjectOutputStream
+	private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+	// how often every journal forces its records to the disk
+	private static volatile GroupCommitWriter.Durability durability = GroupCommitWriter.Durability.everyCommit();
+
+	/**
+	 * how often the journals opened from now on force their records to the disk. every
+	 * commit unless it is changed
+	 */
+	public static void forceRecords(GroupCommitWriter.Durability every) {
+		durability = every;
+	}
+
+	// replaced as a whole on every save, so a crash while saving leaves the last one
+	private final AtomicFile snapshot;
+	// where older versions of the app kept their snapshot, or null if there's no such file
+	private final String legacySnapshotFile;
+	private final String journalFile;
+	// the records between the previous snapshot and the last one
+	private final String previousJournalFile;
+	private final int recordsBetweenSnapshots;
+
+	private User user;
+	// the record being written. it is handed to the writer when it is done
+	private final Record record = new Record();
+	private final DataOutputStream out = new DataOutputStream(record);
+	// null until the journal is loaded or saved, and after it is closed
+	private GroupCommitWriter writer;
+	// every record gets a sequence number. the snapshot remembers the last one it
+	// includes so that records that are already in the snapshot are never applied twice
+	private long lastSeq;
+	private int recordsSinceSnapshot;
+	// when the record being written was started, for the metrics
+	private long recordStartNanos;
+
+	public TransactionJournal(String snapshotFile, String journalFile, int recordsBetweenSnapshots) {
+		this(snapshotFile, null, journalFile, recordsBetweenSnapshots);
+	}
+
+	/**
+	 * @param legacySnapshotFile the file an older version of the app saved the user in.
+	 *                           it is only read if there's no snapshot yet, and is renamed
+	 *                           once its contents are saved in the new snapshot
+	 */
+	public TransactionJournal(String snapshotFile, String legacySnapshotFile, String journalFile,
+			int recordsBetweenSnapshots) {
+		this.snapshot = new AtomicFile(snapshotFile);
+		this.legacySnapshotFile = legacySnapshotFile;
+		this.journalFile = journalFile;
+		this.previousJournalFile = journalFile + ".prev";
+		this.recordsBetweenSnapshots = recordsBetweenSnapshots;
+	}
+
+	/**
+	 * rebuilds the user from the last snapshot and the journal
+	 *
+	 * @return the user, or null if nothing was ever saved
+	 */
+	@Override
+	public synchronized User load() throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		boolean fromLegacy = false;
+		boolean migrating = false;
+		// the last snapshot that was saved completely. if it is damaged the one before it is
+		// used, with the records that were in the journal between the two. it throws if
+		// there is one but none of it can be read, instead of starting over with a new user
+		InputStream saved = snapshot.readOrPrevious();
+		boolean wentBack = snapshot.wentBack();
+		if (wentBack && !new File(previousJournalFile).exists()) {
+			throw new IOException(snapshot + " is damaged, and the records that were saved in it after the "
+					+ "snapshot before it are gone");
+		}
+		if (saved == null) {
+			if (legacySnapshotFile == null || new File(legacySnapshotFile).length() == 0) {
+				return null;
+			}
+			saved = new BufferedInputStream(new FileInputStream(legacySnapshotFile));
+			fromLegacy = true;
+			migrating = true;
+		}
+
+		long snapshotSeq;
+		try (DataInputStream in = new DataInputStream(saved)) {
+			in.mark(2);
+			boolean javaSerialized = in.readUnsignedShort() == JAVA_SERIALIZATION_MAGIC;
+			in.reset();
+			if (javaSerialized) {
+				// a snapshot saved by an older version of the app. write it again in the
+				// new format below
+				migrating = true;
+				ObjectInputStream objectIn = new ObjectInputStream(in);
+				this.user = (User) objectIn.readObject();
+				// files saved before there was a journal only have the user in them
+				try {
+					snapshotSeq = objectIn.readLong();
+				} catch (EOFException e) {
+					snapshotSeq = 0;
+				}
+			} else {
+				this.user = WalletCodec.read(in);
+				snapshotSeq = in.readLong();
+			}
+		}
+		this.lastSeq = snapshotSeq;
+
+		int replayed = 0;
+		// the cards the journals removed, so a change recorded just after its card was
+		// removed can be told apart from a change to a card that was never there
+		HashSet<String> removedCards = new HashSet<>();
+		if (wentBack) {
+			replayed += replay(previousJournalFile, snapshotSeq, true, removedCards);
+		}
+		replayed += replay(journalFile, snapshotSeq, wentBack, removedCards);
+
+		// fold whatever we replayed into a fresh snapshot. this also throws away a half
+		// written record at the end of the journal if we crashed in the middle of one
+		if (migrating || wentBack || replayed > 0 || new File(journalFile).length() > 0) {
+			save(user);
+		} else {
+			writer = new GroupCommitWriter(journalFile, true, durability);
+		}
+
+		// the old file is kept (under another name) in case something went wrong, but it
+		// is never read again
+		if (fromLegacy) {
+			new File(legacySnapshotFile).renameTo(new File(legacySnapshotFile + ".migrated"));
+		}
+		WalletMetrics.shared().record(WalletMetrics.Operation.LOAD, start);
+		return user;
+	}
+
+	// applies the records of one journal that aren't in the snapshot yet. when going back
+	// to an older snapshot there must be no record missing between it and the journals
+	private int replay(String file, long snapshotSeq, boolean checkNoneMissing, Set<String> removedCards)
+			throws IOException {
+		if (!new File(file).exists()) {
+			return 0;
+		}
+		int replayed = 0;
+		// where the last whole record ends, or -1 after a record without a frame
+		long end = 0;
+		boolean damaged = false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				byte kind;
+				try {
+					kind = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				DataInputStream recordIn;
+				if (kind == FRAMED) {
+					byte[] framed = readFrame(in);
+					if (framed == null) {
+						damaged = true;
+						break;
+					}
+					if (end >= 0) {
+						end += FRAME_BYTES + framed.length;
+					}
+					recordIn = new DataInputStream(new ByteArrayInputStream(framed));
+					kind = recordIn.readByte();
+				} else if (kind >= CARD_ADDED && kind <= PAYMENT_CENTS) {
+					// written before records had frames
+					recordIn = in;
+					end = -1;
+				} else {
+					// not the start of a record, so the rest of the file is garbage
+					damaged = true;
+					break;
+				}
+				try {
+					long seq = recordIn.readLong();
+					String cardId = recordIn.readUTF();
+					Runnable apply = readRecord(kind, cardId, recordIn);
+					// records that are already part of the snapshot are skipped
+					if (seq > snapshotSeq) {
+						if (checkNoneMissing && seq != lastSeq + 1) {
+							throw new IOException("Records " + (lastSeq + 1) + " to " + (seq - 1)
+									+ " are missing from " + file + ", so " + snapshot + " can't be rebuilt");
+						}
+						try {
+							apply.run();
+						} catch (IllegalArgumentException e) {
+							// a change that was recorded right after its card was removed
+							// by another thread. the card is gone so there's nothing to do.
+							// anything else means the journal doesn't add up
+							if (!removedCards.contains(cardId)) {
+								throw new IOException("Record " + seq + " in " + file + " can't be applied to card "
+										+ cardId + ": " + e.getMessage(), e);
+							}
+						}
+						lastSeq = seq;
+						replayed++;
+					}
+					if (kind == CARD_REMOVED) {
+						removedCards.add(cardId);
+					}
+				} catch (EOFException e) {
+					if (recordIn != in) {
+						throw new IOException("A record in " + file + " matches its checksum but is cut short", e);
+					}
+					// the program stopped while this record was being written, so it never
+					// happened as far as the user is concerned
+					break;
+				}
+			}
+		}
+		if (damaged && end >= 0) {
+			// so nothing is ever read (or written) after the damaged record
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(end);
+				raf.getFD().sync();
+			}
+		}
+		return replayed;
+	}
+
+	// the record in a frame, or null if the frame is cut off or doesn't match its checksum
+	private static byte[] readFrame(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length <= 0 || length > MAX_RECORD_BYTES) {
+				return null;
+			}
+			byte[] framed = new byte[length];
+			in.readFully(framed);
+			CRC32C crc = new CRC32C();
+			crc.update(framed, 0, length);
+			return (int) crc.getValue() == checksum ? framed : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	// reads the rest of a record and returns what needs to be done to the user to apply
+	// it. the record is read in full before anything is applied so that a cut off
+	// record at the end of the file is never half applied
+	private Runnable readRecord(byte kind, String cardId, DataInputStream in) throws IOException {
+		switch (kind) {
+		case CARD_ADDED:
+		case CARD_ADDED_CENTS: {
+			LocalDate issueDate = LocalDate.ofEpochDay(in.readLong());
+			LocalDate expirationDate = LocalDate.ofEpochDay(in.readLong());
+			CreditCardType type = CreditCardType.values()[in.readByte()];
+			CreditCardStatus status = CreditCardStatus.values()[in.readByte()];
+			long limit = readAmount(kind == CARD_ADDED, in);
+			CreditCard card = new CreditCard(cardId, issueDate, expirationDate, type, status, limit);
+			return () -> user.addCard(card);
+		}
+		case CARD_REMOVED:
+			return () -> user.removeCard(cardId);
+		case STATUS_CHANGED: {
+			CreditCardStatus status = CreditCardStatus.values()[in.readByte()];
+			return () -> {
+				if (status == CreditCardStatus.LOST) {
+					user.markCardAsLost(cardId);
+				} else if (status == CreditCardStatus.CANCELLED) {
+					user.markCardAsCancelled(cardId);
+				} else if (status == CreditCardStatus.EXPIRED) {
+					user.markCardAsExpired(cardId);
+				}
+			};
+		}
+		case PURCHASE:
+		case PURCHASE_CENTS: {
+			long id = in.readLong();
+			LocalDateTime dateAndTime = readDateAndTime(in);
+			long amount = readAmount(kind == PURCHASE, in);
+			PurchaseType type = PurchaseType.values()[in.readByte()];
+			String vendorName = in.readUTF();
+			String street = in.readUTF();
+			String city = in.readUTF();
+			USState state = USState.values()[in.readByte()];
+			String zip = in.readUTF();
+			long feeId = in.readLong();
+			LocalDateTime feeDateAndTime = readDateAndTime(in);
+			long feeAmount = readAmount(kind == PURCHASE, in);
+			FeeType feeType = FeeType.values()[in.readByte()];
+
+			Fee fee = new Fee(feeId, feeDateAndTime, feeAmount, feeType);
+			Vendor vendor = VendorRegistry.shared().vendor(vendorName, street, city, state, zip);
+			Purchase purchase = new Purchase(id, dateAndTime, amount, type, vendor, fee);
+			// it was already accepted when it happened, so don't check the card again. a
+			// change on the same card from another thread may have been recorded first
+			return () -> user.restorePurchase(cardId, purchase);
+		}
+		case PAYMENT:
+		case PAYMENT_CENTS: {
+			long id = in.readLong();
+			LocalDateTime dateAndTime = readDateAndTime(in);
+			long amount = readAmount(kind == PAYMENT, in);
+			PaymentType type = PaymentType.values()[in.readByte()];
+			return () -> user.addPayment(cardId,
+					new Payment(id, dateAndTime, amount, type, user.getBankAccount()));
+		}
+		default:
+			throw new IOException("Unknown record in journal " + journalFile + ": " + kind);
+		}
+	}
+
+	/**
+	 * writes the whole user to the snapshot file and starts the journal over
+	 */
+	@Override
+	public synchronized void save(User u) throws IOException {
+		long start = System.nanoTime();
+		this.user = u;
+		// write this user to the file. it is on the disk when this returns, which it has to
+		// be before the journal is cleared
+		long bytes = snapshot.write(out -> {
+			WalletCodec.write(u, out);
+			out.writeLong(lastSeq);
+		});
+		WalletMetrics.shared().bytesWritten(WalletMetrics.Output.SNAPSHOT, bytes);
+
+		// everything in the journal is now in the snapshot, so a new one is started. the
+		// records that were still waiting to be forced are written first, so whoever is
+		// waiting for them hears they are safe. the old journal becomes the previous one,
+		// which is what goes with the previous snapshot
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+		File journal = new File(journalFile);
+		if (journal.exists()) {
+			Files.move(journal.toPath(), Paths.get(previousJournalFile), StandardCopyOption.ATOMIC_MOVE);
+		}
+		writer = new GroupCommitWriter(journalFile, false, durability);
+		// the records forced to the new file have to be found after a crash
+		AtomicFile.syncDirectory(journal);
+		recordsSinceSnapshot = 0;
+		WalletMetrics.shared().record(WalletMetrics.Operation.SAVE_SNAPSHOT, start);
+	}
+
+	@Override
+	public synchronized void cardAdded(CreditCard c) throws IOException {
+		startRecord(CARD_ADDED_CENTS, c.getCreditCardId());
+		out.writeLong(c.getIssuanceDate().toEpochDay());
+		out.writeLong(c.getExpirationDate().toEpochDay());
+		out.writeByte(c.getIssueCompany().ordinal());
+		out.writeByte(c.getStatus().ordinal());
+		out.writeLong(c.getCreditLimit());
+		endRecord();
+	}
+
+	@Override
+	public synchronized void cardRemoved(String cardId) throws IOException {
+		startRecord(CARD_REMOVED, cardId);
+		endRecord();
+	}
+
+	@Override
+	public synchronized void statusChanged(String cardId, CreditCardStatus status) throws IOException {
+		startRecord(STATUS_CHANGED, cardId);
+		out.writeByte(status.ordinal());
+		endRecord();
+	}
+
+	@Override
+	public synchronized void purchaseAdded(String cardId, Purchase p) throws IOException {
+		Fee fee = p.getInterestFee();
+		startRecord(PURCHASE_CENTS, cardId);
+		out.writeLong(p.getTransactionID());
+		writeDateAndTime(p.getTransactionDateAndTime());
+		out.writeLong(p.getAmount());
+		out.writeByte(p.getPurchaseType().ordinal());
+		out.writeUTF(p.getVendorName());
+		out.writeUTF(p.getVendorStreetAddress());
+		out.writeUTF(p.getVendorCity());
+		out.writeByte(p.getVendorState().ordinal());
+		out.writeUTF(p.getVendorZip());
+		out.writeLong(fee.getTransactionID());
+		writeDateAndTime(fee.getTransactionDateAndTime());
+		out.writeLong(fee.getAmount());
+		out.writeByte(fee.getFeeType().ordinal());
+		endRecord();
+	}
+
+	@Override
+	public synchronized void paymentAdded(String cardId, Payment p) throws IOException {
+		startRecord(PAYMENT_CENTS, cardId);
+		out.writeLong(p.getTransactionID());
+		writeDateAndTime(p.getTransactionDateAndTime());
+		out.writeLong(p.getAmount());
+		out.writeByte(p.getPaymentType().ordinal());
+		endRecord();
+	}
+
+	// the journal doesn't take the snapshot by itself. the user might be in the middle of
+	// another change that isn't recorded yet, so whoever is making the changes does it
+	@Override
+	public synchronized boolean saveDue() {
+		return recordsSinceSnapshot >= recordsBetweenSnapshots;
+	}
+
+	/**
+	 * @return a future that completes once every change recorded so far is forced to the
+	 *         disk
+	 */
+	@Override
+	public synchronized CompletableFuture<Void> durable() {
+		return writer == null ? CompletableFuture.completedFuture(null) : writer.lastRecord();
+	}
+
+	// writes what is still waiting to be written before closing the file
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	private void startRecord(byte kind, String cardId) throws IOException {
+		if (writer == null) {
+			throw new IllegalStateException("The journal has to be loaded or saved before recording changes");
+		}
+		recordStartNanos = System.nanoTime();
+		record.start();
+		out.writeByte(kind);
+		// only counted once the record is handed to the writer. a record that can't be
+		// written (too long, or the file failed) mustn't leave a gap in the numbers, the
+		// journal wouldn't load with one
+		out.writeLong(lastSeq + 1);
+		out.writeUTF(cardId);
+	}
+
+	private void endRecord() throws IOException {
+		// the writer copies it and writes it with the records of the other threads. the
+		// caller finds out when it is on the disk with durable()
+		record.frame();
+		writer.append(record);
+		lastSeq++;
+		recordsSinceSnapshot++;
+		WalletMetrics.shared().record(WalletMetrics.Operation.JOURNAL_RECORD, recordStartNanos);
+	}
+
+	private void writeDateAndTime(LocalDateTime dateAndTime) throws IOException {
+		out.writeLong(dateAndTime.toEpochSecond(ZoneOffset.UTC));
+		out.writeInt(dateAndTime.getNano());
+	}
+
+	private static long readAmount(boolean savedAsDouble, DataInputStream in) throws IOException {
+		return savedAsDouble ? Money.ofDollars(in.readDouble()) : in.readLong();
+	}
+
+	private static LocalDateTime readDateAndTime(DataInputStream in) throws IOException {
+		long seconds = in.readLong();
+		int nanos = in.readInt();
+		return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+	}
+
+	// a record with room for its frame at the start, which is filled in once the record
+	// is written
+	private static final class Record extends ByteArrayOutputStream {
+		Record() {
+			super(256);
+		}
+
+		void start() {
+			reset();
+			count = FRAME_BYTES;
+		}
+
+		void frame() {
+			int length = count - FRAME_BYTES;
+			CRC32C crc = new CRC32C();
+			crc.update(buf, FRAME_BYTES, length);
+			int checksum = (int) crc.getValue();
+			buf[0] = FRAMED;
+			putInt(1, length);
+			putInt(5, checksum);
+		}
+
+		private void putInt(int at, int value) {
+			buf[at] = (byte) (value >>> 24);
+			buf[at + 1] = (byte) (value >>> 16);
+			buf[at + 2] = (byte) (value >>> 8);
+			buf[at + 3] = (byte) value;
+		}
+	}
+}
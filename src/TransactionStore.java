@@ -0,0 +1,47 @@
+/**
+ * Where the transactions of a card are kept. Row i is the i-th transaction that was
+ * added to the card, and the interest fee of the purchase in row i is in row i+1.
+ *
+ * The reading methods only look at one field of a row, so going through the rows for
+ * totals never has to make a transaction object. Stores aren't thread safe, the card
+ * they belong to holds its lock while using them. Several threads can read from a store
+ * at the same time though, as long as nothing is added to it meanwhile, and frozen()
+ * gives a view that can be read while rows are being added.
+ */
+public interface TransactionStore {
+
+	void add(Transaction t);
+
+	int size();
+
+	long id(int row);
+
+	// date and time of the transaction in microseconds since 1970-01-01T00:00
+	long micros(int row);
+
+	// in cents
+	long amount(int row);
+
+	TransactionType type(int row);
+
+	PurchaseType purchaseType(int row);
+
+	// ordinal of the PurchaseType, FeeType or PaymentType, depending on the type
+	int kindOrdinal(int row);
+
+	Vendor vendor(int row);
+
+	/**
+	 * makes the transaction object for a row
+	 */
+	Transaction get(int row);
+
+	/**
+	 * a view of the rows there are right now, that stays the same however many rows are
+	 * added after it. rows are never changed once they are added, so the view shares
+	 * them with the store instead of copying them. it can be read from any thread without
+	 * holding the lock of the card, once it was handed over safely (like through a
+	 * volatile field). nothing can be added to the view itself
+	 */
+	TransactionStore frozen();
+}
@@ -1,26 +1,170 @@
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class User implements Serializable {
 
 	// need this field for the serialization
 	private static final long serialVersionUID = 1L;
 
-	private LinkedList<CreditCard> cards;
+	// the cards are still saved as a linked list, the same way they always were, so
+	// files saved before the index was added can still be read in
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("cards", LinkedList.class),
+			new ObjectStreamField("bankAccount", BankAccount.class),
+			new ObjectStreamField("name", String.class) };
+
+	// cards are indexed by their id so finding, adding and removing a card doesn't have
+	// to go through all of them
+	private transient CardIndex cards;
+	// guards the index itself. any number of threads can look up cards at the same time,
+	// adding or removing a card waits for them. the cards have their own locks
+	private transient ReentrantReadWriteLock cardsLock;
+	// the active cards, the one that expires first at the head, so finding the cards that
+	// are due to expire doesn't go through all of them. a card that was removed or isn't
+	// active any more is only dropped when it comes up. guarded by cardsLock
+	private transient PriorityQueue<CreditCard> byExpiration;
+	// all the cards as they were after the last change to any of them, with the totals
+	// over them. the reports read it without taking any lock and never hold up a
+	// purchase. see WalletSnapshot.
+	// a purchase doesn't put its card in it, that would make purchases on different cards
+	// take turns replacing it. the card is only marked as changed, and the next report
+	// puts the changed cards in before it reads it. only replaced holding snapshotLock
+	private transient volatile WalletSnapshot snapshot;
+	private transient ReentrantLock snapshotLock;
+	// the cards that changed since they were last put in the snapshot
+	private transient Set<CreditCard> changedCards;
+	// how many cards are in changedCards, or more for a moment. only goes down to 0 once
+	// the snapshot has the changes, so when it is 0 the snapshot is up to date
+	private transient AtomicInteger changedCount;
+	// how many cards were ever added, which is the order the next one is added in.
+	// guarded by cardsLock
+	private transient long cardsAdded;
 	private BankAccount bankAccount;
 	private String name;
 
 	public User(String name, String bankName, String acctNumber) {
 		this.name = name;
-		this.cards = new LinkedList<>();
+		this.cards = new CardIndex();
+		this.cardsLock = new ReentrantReadWriteLock();
+		this.byExpiration = newExpirationIndex();
+		this.snapshot = WalletSnapshot.empty();
+		this.snapshotLock = new ReentrantLock();
+		this.changedCards = ConcurrentHashMap.newKeySet();
+		this.changedCount = new AtomicInteger();
 		this.bankAccount = new BankAccount(bankName, acctNumber);
 	}
 
 	public void addCard(CreditCard c) {
-		this.cards.add(c);
+		cardsLock.writeLock().lock();
+		try {
+			CreditCard replaced = cards.get(c.getCreditCardId());
+			this.cards.add(c);
+			if (c.getStatus() == CreditCardStatus.ACTIVE) {
+				byExpiration.add(c);
+			}
+			if (replaced != null) {
+				// a card with the same id takes the place of the old one
+				int position;
+				long order;
+				synchronized (replaced) {
+					position = replaced.position();
+					order = replaced.addedOrder();
+					replaced.setOwner(null, -1, -1);
+				}
+				forget(replaced);
+				synchronized (c) {
+					c.setOwner(this, position, order);
+					cardChanged(c);
+				}
+			} else {
+				// holding the lock on the card, so it can't change before it is in the snapshot
+				synchronized (c) {
+					c.setOwner(this, cards.size() - 1, cardsAdded++);
+					snapshotLock.lock();
+					try {
+						snapshot = snapshot.withCardAdded(c.snapshot());
+					} finally {
+						snapshotLock.unlock();
+					}
+				}
+			}
+		} finally {
+			cardsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * the wallet as it was after the last change to any of its cards. it never changes,
+	 * so everything read from it goes together, and getting it is a single read
+	 */
+	public WalletSnapshot snapshot() {
+		if (changedCount.get() == 0) {
+			return snapshot;
+		}
+		snapshotLock.lock();
+		try {
+			// a card that changes again after it is taken out of the set goes back in, and
+			// is put in the snapshot by the next report
+			int done = 0;
+			WalletSnapshot wallet = snapshot;
+			for (CreditCard c : changedCards) {
+				if (changedCards.remove(c)) {
+					wallet = wallet.withCard(c.position(), c.snapshot());
+					done++;
+				}
+			}
+			snapshot = wallet;
+			changedCount.addAndGet(-done);
+			return wallet;
+		} finally {
+			snapshotLock.unlock();
+		}
+	}
+
+	// a card calls this, holding its own lock, every time it changes. the card already
+	// has its new snapshot, so whoever takes it out of the set sees the change.
+	// it is counted before it goes in the set. counted after, a report could take it out
+	// and subtract it first, and the count would be 0 for a moment while another card
+	// is still waiting to be put in the snapshot
+	void cardChanged(CreditCard c) {
+		changedCount.incrementAndGet();
+		if (!changedCards.add(c)) {
+			// it was still in the set, and was counted then
+			changedCount.decrementAndGet();
+		}
+	}
+
+	// drops a card that isn't in the wallet any more from the changed cards, so a card
+	// with the same id doesn't get its snapshot. the card can't change the set any more
+	private void forget(CreditCard c) {
+		snapshotLock.lock();
+		try {
+			if (changedCards.remove(c)) {
+				changedCount.decrementAndGet();
+			}
+		} finally {
+			snapshotLock.unlock();
+		}
 	}
 	public void addFee(String id, Fee f) {
 		getCardBasedOnId(id).addFee(f);
@@ -30,136 +174,153 @@ public class User implements Serializable {
 	}
 
 	public boolean addPurchase(String id, Purchase p) {
-		CreditCard card = getCardBasedOnId(id);
+		long start = System.nanoTime();
+		// the card checks its status and available credit and adds the purchase in one
+		// step, so purchases at the same time on the same card can't overspend
+		boolean accepted = getCardBasedOnId(id).authorize(p);
+		WalletMetrics.shared().record(WalletMetrics.Operation.AUTHORIZE, start);
+		return accepted;
+	}
 
-		if (!card.getStatus().equals(CreditCardStatus.ACTIVE) || p.getAmount() > card.getAvailCredit()) {
-			return false;
-		}
-		card.addPurchase(p);
-		return true;
+	// checks and adds a batch of purchases on one card, in order. returns which of them
+	// were accepted
+	public boolean[] addPurchases(String id, List<Purchase> purchases) {
+		return getCardBasedOnId(id).authorizeAll(purchases);
+	}
+
+	// adds a purchase that was already accepted before, without checking the card again
+	public void restorePurchase(String id, Purchase p) {
+		getCardBasedOnId(id).restorePurchase(p);
 	}
 
 	public void checkIfAnyCardsExpired() {
-		for (CreditCard c : cards) {
-			if (c.getExpirationDate().compareTo(LocalDate.now()) < 0) {
-				c.setStatus(CreditCardStatus.EXPIRED);
+		expireCardsDue(LocalDate.now());
+	}
+
+	/**
+	 * marks the active cards that expired before this day as expired. only the cards that
+	 * are due are looked at
+	 *
+	 * @return the cards that were marked expired
+	 */
+	public List<CreditCard> expireCardsDue(LocalDate today) {
+		ArrayList<CreditCard> expired = new ArrayList<>();
+		cardsLock.writeLock().lock();
+		try {
+			while (!byExpiration.isEmpty() && byExpiration.peek().getExpirationDate().compareTo(today) < 0) {
+				CreditCard c = byExpiration.poll();
+				// it may have been removed, or lost or cancelled, since it was added
+				if (cards.get(c.getCreditCardId()) == c && c.expireIfActive()) {
+					expired.add(c);
+				}
 			}
+		} finally {
+			cardsLock.writeLock().unlock();
 		}
+		return expired;
 	}
 
 	public boolean containsCard(String id) {
-		for (CreditCard c : cards) {
-			if (c.getCreditCardId().equals(id)) {
-				return true;
-			}
-		}
-		return false;
+		return findCard(id) != null;
 	}
 
 	public String creditCardsToString() {
 		StringBuilder str = new StringBuilder();
-		for (CreditCard c : cards) {
+		for (CreditCard c : cardsInOrder()) {
 			str.append("\t" + c.toString() + "\n");
 		}
 		return str.toString();
 	}
 
-	public double getAvailCredit(String id) {
-		return getCardBasedOnId(id).getAvailCredit();
+	// all the amounts the user reports are in cents
+	public long getAvailCredit(String id) {
+		return getCardBasedOnId(id).snapshot().getAvailCredit();
 	}
 
 
-	public double getCardBalance(String id) {
-		return getCardBasedOnId(id).getCurrBalance();
+	public CreditCardStatus getCardStatus(String id) {
+		return getCardBasedOnId(id).snapshot().getStatus();
+	}
+
+	public long getCardBalance(String id) {
+		return getCardBasedOnId(id).snapshot().getCurrBalance();
 	}
 	private CreditCard getCardBasedOnId(String id) {
-		for (CreditCard c : cards) {
-			if (id.equals(c.getCreditCardId())) {
-				return c;
-			}
+		CreditCard c = findCard(id);
+		if (c == null) {
+			throw new IllegalArgumentException("This card doesn't exist in this wallet");
 		}
-
-		throw new IllegalArgumentException("This card doesn't exist in this wallet");
-
+		return c;
 	}
 
+	// the totals over all the cards are kept up to date in the snapshot as the cards
+	// change, so these don't go through the cards
 	public Purchase getLargestPurchase() {
-		double largestPurchaseAmountFromAllCards = 0;
-		Purchase largestPurchaseOnAllCards = null;
-
-		for (CreditCard c : cards) {
-			if (c.getLargestPurchaseOnThisCard() == null) {
-				continue;
-			}
-			if (c.getLargestPurchaseOnThisCard().getAmount() > largestPurchaseAmountFromAllCards) {
-				largestPurchaseOnAllCards = c.getLargestPurchaseOnThisCard();
-				largestPurchaseAmountFromAllCards = c.getLargestPurchaseOnThisCard().getAmount();
-			}
-		}
-
-		return largestPurchaseOnAllCards == null ? null : largestPurchaseOnAllCards;
-
+		// if two cards have a largest purchase of the same amount, the one on the card that
+		// was added first is the largest
+		return snapshot().getLargestPurchase();
 	}
 
 	public Payment getMostRecentPayment() {
-		if (cards.size() == 0) {
-			return null;
-		}
-
-		Payment mostRecentPayment = null;
-		LocalDateTime dateAndTimeOfMostRecentPayment = LocalDateTime.MIN;
-		for (CreditCard c : cards) {
-			// if there is a most recent payment on this credit card
-			if (c.mostRecentPayment() != null) {
-				// if the date and time on this payment is later than the one on the most recent
-				// payment,
-				if (c.mostRecentPayment().getTransactionDateAndTime().compareTo(dateAndTimeOfMostRecentPayment) > 0) {
-					// make it the most recent payment
-					mostRecentPayment = c.mostRecentPayment();
-					dateAndTimeOfMostRecentPayment = c.mostRecentPayment().getTransactionDateAndTime();
-				}
-			}
-		}
+		return snapshot().getMostRecentPayment();
+	}
 
-		return mostRecentPayment;
+	/**
+	 * @return a copy of the cards in the order they were added
+	 */
+	public CreditCard[] getCards() {
+		return cardsInOrder();
+	}
+
+	public BankAccount getBankAccount() {
+		return this.bankAccount;
 	}
 
 	public String getName() {
 		return this.name;
 	}
 
-	public double getTotalSpentOnCertainCategoryOfExpense(PurchaseType p) {
-		double total = 0;
-		for (CreditCard c : cards) {
-			total += c.getTotalSpentOnCertainCategoryOfExpense(p);
-		}
-		return total;
+	public long getTotalSpentOnCertainCategoryOfExpense(PurchaseType p) {
+		return snapshot().getTotalSpentOnCertainCategoryOfExpense(p);
 	}
 
 	public void markCardAsCancelled(String id) {
 		getCardBasedOnId(id).markCancelled();
 	}
 
+	// only an active card can expire, a lost or cancelled one stays that way
+	public void markCardAsExpired(String id) {
+		getCardBasedOnId(id).expireIfActive();
+	}
+
 	public void markCardAsLost(String id) {
 		getCardBasedOnId(id).markLost();
 	}
 
 	public Purchase mostRecentPurchaseOnCard(String id) {
-		return getCardBasedOnId(id).mostRecentPurchase();
+		return getCardBasedOnId(id).snapshot().mostRecentPurchase();
 
 	}
 
 	public int numberOfCards() {
-		return cards.size();
+		cardsLock.readLock().lock();
+		try {
+			return cards.size();
+		} finally {
+			cardsLock.readLock().unlock();
+		}
 	}
 
 	public int numOfTransactionsOnCard(String id) {
 		return getCardBasedOnId(id).numOfTransactions();
 	}
 
-	public void payBill(String id, double amount, PaymentType type) throws IOException {
-
-		getCardBasedOnId(id).addPayment(new Payment(amount, type, bankAccount));
+	public Payment payBill(String id, long amountCents, PaymentType type) throws IOException {
+		long start = System.nanoTime();
+		Payment payment = new Payment(amountCents, type, bankAccount);
+		getCardBasedOnId(id).addPayment(payment);
+		WalletMetrics.shared().record(WalletMetrics.Operation.PAYMENT, start);
+		return payment;
 	}
 
 	/**
@@ -169,27 +330,172 @@ public class User implements Serializable {
 	 * @return if this card was able to be reomved or if no because it wasnt found
 	 */
 	public void removeCard(String id) {
-		cards.remove(getCardBasedOnId(id));
+		CreditCard removed;
+		cardsLock.writeLock().lock();
+		try {
+			removed = cards.remove(id);
+			if (removed != null) {
+				// once this is done the card can't change the snapshot any more
+				int position;
+				synchronized (removed) {
+					position = removed.position();
+					removed.setOwner(null, -1, -1);
+				}
+				forget(removed);
+				WalletSnapshot wallet;
+				snapshotLock.lock();
+				try {
+					wallet = snapshot.withoutCard(position, id);
+					snapshot = wallet;
+				} finally {
+					snapshotLock.unlock();
+				}
+				// the last card took its place
+				if (position < wallet.numberOfCards()) {
+					cards.get(wallet.card(position).getCreditCardId()).moveTo(position);
+				}
+			}
+		} finally {
+			cardsLock.writeLock().unlock();
+		}
+		if (removed == null) {
+			throw new IllegalArgumentException("This card doesn't exist in this wallet");
+		}
 	}
 
-	public double totalAvailCredit() {
-		double total = 0;
-		for (CreditCard c : cards) {
-			total += c.getAvailCredit();
+	public long totalAvailCredit() {
+		return snapshot().totalAvailCredit();
+	}
+
+	public long totalBalance() {
+		return snapshot().totalBalance();
+	}
+
+	/**
+	 * goes through the transactions on all the cards from one time (included) up to
+	 * another (not included), earliest first. they are read a few at a time from each
+	 * card as they are needed
+	 */
+	public Iterator<Transaction> transactionsBetween(LocalDateTime from, LocalDateTime to) {
+		ArrayList<Iterator<Transaction>> perCard = new ArrayList<>();
+		for (CreditCard c : cardsInOrder()) {
+			perCard.add(c.transactionsBetween(from, to));
 		}
-		return total;
+		return TimeIndex.merge(perCard);
+	}
+
+	public Iterator<Transaction> transactionsOnCardBetween(String id, LocalDateTime from, LocalDateTime to) {
+		return getCardBasedOnId(id).transactionsBetween(from, to);
 	}
 
-	public double totalBalance() {
-		double total = 0;
-		for (CreditCard c : cards) {
-			total += c.getCurrBalance();
+	/**
+	 * how much was spent on purchases on all the cards in each month, from one time
+	 * (included) up to another (not included)
+	 */
+	public SortedMap<YearMonth, Long> spendPerMonth(LocalDateTime from, LocalDateTime to) {
+		TreeMap<YearMonth, Long> spend = new TreeMap<>();
+		for (CreditCard c : cardsInOrder()) {
+			for (Map.Entry<YearMonth, Long> month : c.spendPerMonth(from, to).entrySet()) {
+				spend.merge(month.getKey(), month.getValue(), Long::sum);
+			}
 		}
+		return spend;
+	}
 
-		return total;
+	/**
+	 * the payments on all the cards from one time (included) up to another (not
+	 * included), earliest first
+	 */
+	public List<Payment> paymentsBetween(LocalDateTime from, LocalDateTime to) {
+		ArrayList<Iterator<Payment>> perCard = new ArrayList<>();
+		for (CreditCard c : cardsInOrder()) {
+			perCard.add(c.paymentsBetween(from, to).iterator());
+		}
+		ArrayList<Payment> payments = new ArrayList<>();
+		TimeIndex.merge(perCard).forEachRemaining(payments::add);
+		return payments;
 	}
 
 	public String transactionsOnCardToString(String id) {
 		return getCardBasedOnId(id).transactions();
 	}
+
+	public String transactionsOnCardToString(String id, int firstRow, int maxRows) {
+		return getCardBasedOnId(id).transactions(firstRow, maxRows);
+	}
+
+	/**
+	 * writes the transactions on a card, starting at a row and writing at most this many
+	 *
+	 * @return how many transactions were written
+	 */
+	public int exportTransactionsOnCard(String id, TransactionExporter exporter, int firstRow, int maxRows)
+			throws IOException {
+		return exporter.export(getCardBasedOnId(id), firstRow, maxRows);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		LinkedList<CreditCard> cardList = new LinkedList<>();
+		for (CreditCard c : cardsInOrder()) {
+			cardList.add(c);
+		}
+		fields.put("cards", cardList);
+		fields.put("bankAccount", bankAccount);
+		fields.put("name", name);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		this.bankAccount = (BankAccount) fields.get("bankAccount", null);
+		this.name = (String) fields.get("name", null);
+		// rebuild the index from the saved list of cards
+		this.cards = new CardIndex();
+		this.cardsLock = new ReentrantReadWriteLock();
+		this.byExpiration = newExpirationIndex();
+		for (CreditCard c : (LinkedList<CreditCard>) fields.get("cards", null)) {
+			cards.add(c);
+			if (c.getStatus() == CreditCardStatus.ACTIVE) {
+				byExpiration.add(c);
+			}
+		}
+		// nothing else can see the cards yet, so no locks are needed
+		CreditCard[] inOrder = cards.toArray();
+		CardSnapshot[] cardSnapshots = new CardSnapshot[inOrder.length];
+		for (int i = 0; i < inOrder.length; i++) {
+			inOrder[i].setOwner(this, i, i);
+			cardSnapshots[i] = inOrder[i].snapshot();
+		}
+		this.cardsAdded = inOrder.length;
+		this.snapshot = WalletSnapshot.of(cardSnapshots);
+		this.snapshotLock = new ReentrantLock();
+		this.changedCards = ConcurrentHashMap.newKeySet();
+		this.changedCount = new AtomicInteger();
+	}
+
+	private static PriorityQueue<CreditCard> newExpirationIndex() {
+		return new PriorityQueue<>(Comparator.comparing(CreditCard::getExpirationDate));
+	}
+
+	private CreditCard findCard(String id) {
+		cardsLock.readLock().lock();
+		try {
+			return cards.get(id);
+		} finally {
+			cardsLock.readLock().unlock();
+		}
+	}
+
+	// copies the cards out of the index so they can be gone through without holding the
+	// lock, even if a card is added or removed in the meantime
+	private CreditCard[] cardsInOrder() {
+		cardsLock.readLock().lock();
+		try {
+			return cards.toArray();
+		} finally {
+			cardsLock.readLock().unlock();
+		}
+	}
 }
@@ -0,0 +1,399 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the wallets of many users, each saved on its own and loaded only when it is
+ * needed. Every user has a directory of their own (with their snapshot and journal in
+ * it), and the directories are spread over a fixed number of shard directories so no
+ * one directory gets too big:
+ *
+ * root/3f/alice/UserInfo.bin, root/3f/alice/UserJournal.log, ...
+ *
+ * The wallets that were used most recently stay loaded, up to a fixed number. Every
+ * change is already in the user's journal as soon as it is made, so when a wallet is
+ * dropped from memory all that is left to do is write its snapshot.
+ *
+ * It is safe to call from many threads at the same time. Loading or saving a user only
+ * makes other users in the same lock stripe wait, never the whole repository.
+ */
+public class UserRepository implements AutoCloseable {
+
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	private static final int SHARDS = 256;
+	private static final int LOCK_STRIPES = 64;
+	private static final int RECORDS_BETWEEN_SNAPSHOTS = 500;
+
+	/**
+	 * a loaded wallet that won't be dropped from memory until the lease is closed
+	 */
+	public class Lease implements AutoCloseable {
+		private final Entry entry;
+		private boolean closed;
+
+		private Lease(Entry entry) {
+			this.entry = entry;
+		}
+
+		public WalletService wallet() {
+			if (closed) {
+				throw new IllegalStateException("This lease was already closed");
+			}
+			return entry.wallet;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				release(entry);
+			}
+		}
+	}
+
+	public interface WalletAction<T> {
+		T apply(WalletService wallet) throws IOException;
+	}
+
+	private static class Entry {
+		final String userId;
+		final WalletService wallet;
+		// how many leases there are on this wallet right now
+		int leases;
+
+		Entry(String userId, WalletService wallet) {
+			this.userId = userId;
+			this.wallet = wallet;
+		}
+	}
+
+	private final File root;
+	private final int capacity;
+	// the loaded wallets, least recently used first. guarded by its own lock
+	private final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true);
+	// a user is only ever loaded, created or written back while holding the lock of its
+	// stripe, so it can't be read from the disk while it is still being written. these
+	// are held while the files are read and forced to the disk, so they aren't monitors:
+	// a virtual thread waiting on the disk inside a synchronized block pins its carrier
+	private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+	private volatile boolean closed;
+
+	public UserRepository(String root) {
+		this(root, DEFAULT_CAPACITY);
+	}
+
+	public UserRepository(String root, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The repository has to be able to hold at least one user");
+		}
+		this.root = new File(root);
+		this.capacity = capacity;
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	public boolean exists(String userId) {
+		checkUserId(userId);
+		synchronized (loaded) {
+			if (loaded.containsKey(userId)) {
+				return true;
+			}
+		}
+		return new AtomicFile(snapshotFile(userId).getPath()).exists();
+	}
+
+	/**
+	 * adds a new user and loads their (empty) wallet
+	 *
+	 * @return a lease on the new wallet, which has to be closed when done with it
+	 */
+	public Lease create(String userId, String name, String bankName, String acctNumber) throws IOException {
+		checkOpen();
+		checkUserId(userId);
+		Entry entry;
+		ReentrantLock stripe = stripeOf(userId);
+		stripe.lock();
+		try {
+			if (exists(userId)) {
+				throw new IllegalArgumentException("There already is a user with the id " + userId);
+			}
+			File directory = directoryOf(userId);
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Could not create " + directory);
+			}
+			User user = new User(name, bankName, acctNumber);
+			TransactionJournal journal = journalOf(userId);
+			journal.save(user);
+			entry = add(userId, new WalletService(user, journal));
+		} finally {
+			stripe.unlock();
+		}
+		writeBackExtras();
+		return new Lease(entry);
+	}
+
+	/**
+	 * loads the wallet of a user if it isn't loaded already
+	 *
+	 * @return a lease on the wallet, which has to be closed when done with it. null if
+	 *         there is no user with this id
+	 */
+	public Lease open(String userId) throws IOException {
+		checkOpen();
+		checkUserId(userId);
+		Entry entry;
+		ReentrantLock stripe = stripeOf(userId);
+		stripe.lock();
+		try {
+			synchronized (loaded) {
+				entry = loaded.get(userId);
+				if (entry != null) {
+					entry.leases++;
+				}
+			}
+			if (entry == null) {
+				// only this user's own files are read
+				TransactionJournal journal = journalOf(userId);
+				User user;
+				try {
+					user = journal.load();
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Could not read the wallet of " + userId, e);
+				}
+				if (user == null) {
+					return null;
+				}
+				WalletService wallet = new WalletService(user, journal);
+				wallet.expireCards();
+				entry = add(userId, wallet);
+			}
+		} finally {
+			stripe.unlock();
+		}
+		writeBackExtras();
+		return new Lease(entry);
+	}
+
+	/**
+	 * loads the wallet of a user (if needed) and does something with it
+	 *
+	 * @throws IllegalArgumentException if there is no user with this id
+	 */
+	public <T> T withWallet(String userId, WalletAction<T> action) throws IOException {
+		Lease lease = open(userId);
+		if (lease == null) {
+			throw new IllegalArgumentException("There is no user with the id " + userId);
+		}
+		try {
+			return action.apply(lease.wallet());
+		} finally {
+			lease.close();
+		}
+	}
+
+	/**
+	 * marks the cards that are past their expiration date as expired, in every loaded
+	 * wallet. the others are checked when they are loaded
+	 *
+	 * @return how many cards were marked expired
+	 */
+	public int expireCards() throws IOException {
+		ArrayList<String> userIds;
+		synchronized (loaded) {
+			userIds = new ArrayList<>(loaded.keySet());
+		}
+		int expired = 0;
+		for (String userId : userIds) {
+			// it may have been dropped in the meantime, and then it doesn't need checking
+			Entry entry;
+			synchronized (loaded) {
+				entry = loaded.get(userId);
+				if (entry != null) {
+					entry.leases++;
+				}
+			}
+			if (entry != null) {
+				try {
+					expired += entry.wallet.expireCards();
+				} finally {
+					release(entry);
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * goes through the ids of every user that was saved, one shard directory at a time,
+	 * so only the names in one shard are in memory at once. users that are created while
+	 * it goes through them may or may not be included
+	 */
+	public Iterator<String> userIds() {
+		return new Iterator<String>() {
+			private int shard;
+			private String[] names = new String[0];
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == names.length && shard < SHARDS) {
+					String[] inShard = new File(root, String.format("%02x", shard++)).list();
+					names = inShard == null ? new String[0] : inShard;
+					next = 0;
+				}
+				return next < names.length;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return names[next++];
+			}
+		};
+	}
+
+	/**
+	 * @return how many wallets are loaded right now
+	 */
+	public int loadedCount() {
+		synchronized (loaded) {
+			return loaded.size();
+		}
+	}
+
+	/**
+	 * writes every loaded wallet back and drops them all from memory. wallets that still
+	 * have a lease on them are written back too
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		ArrayList<Entry> entries;
+		synchronized (loaded) {
+			entries = new ArrayList<>(loaded.values());
+		}
+		IOException failure = null;
+		for (Entry entry : entries) {
+			ReentrantLock stripe = stripeOf(entry.userId);
+			stripe.lock();
+			try {
+				synchronized (loaded) {
+					loaded.remove(entry.userId);
+				}
+				try {
+					entry.wallet.close();
+				} catch (IOException e) {
+					failure = e;
+				}
+			} finally {
+				stripe.unlock();
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// has to be called holding the stripe lock of the user
+	private Entry add(String userId, WalletService wallet) {
+		Entry entry = new Entry(userId, wallet);
+		entry.leases = 1;
+		synchronized (loaded) {
+			loaded.put(userId, entry);
+		}
+		return entry;
+	}
+
+	private void release(Entry entry) throws IOException {
+		synchronized (loaded) {
+			entry.leases--;
+		}
+		writeBackExtras();
+	}
+
+	// while there are more wallets loaded than there is room for, writes back the least
+	// recently used ones that nobody has a lease on and drops them
+	private void writeBackExtras() throws IOException {
+		while (true) {
+			Entry candidate = null;
+			synchronized (loaded) {
+				if (loaded.size() <= capacity) {
+					return;
+				}
+				Iterator<Entry> it = loaded.values().iterator();
+				while (it.hasNext() && candidate == null) {
+					Entry e = it.next();
+					if (e.leases == 0) {
+						candidate = e;
+					}
+				}
+			}
+			if (candidate == null) {
+				// everything is in use, so go over capacity for now
+				return;
+			}
+			ReentrantLock stripe = stripeOf(candidate.userId);
+			stripe.lock();
+			try {
+				boolean removed;
+				synchronized (loaded) {
+					// someone may have taken a lease on it (or dropped it) in the meantime
+					removed = candidate.leases == 0 && loaded.get(candidate.userId) == candidate;
+					if (removed) {
+						loaded.remove(candidate.userId);
+					}
+				}
+				if (removed) {
+					candidate.wallet.close();
+				}
+			} finally {
+				stripe.unlock();
+			}
+		}
+	}
+
+	private TransactionJournal journalOf(String userId) {
+		File directory = directoryOf(userId);
+		return new TransactionJournal(new File(directory, "UserInfo.bin").getPath(),
+				new File(directory, "UserJournal.log").getPath(), RECORDS_BETWEEN_SNAPSHOTS);
+	}
+
+	private File snapshotFile(String userId) {
+		return new File(directoryOf(userId), "UserInfo.bin");
+	}
+
+	private File directoryOf(String userId) {
+		return new File(new File(root, String.format("%02x", shardOf(userId))), userId);
+	}
+
+	private static int shardOf(String userId) {
+		// spread the bits of the hash so similar ids land in different shards
+		int h = userId.hashCode() * 0x9E3779B9;
+		return (h >>> 24) % SHARDS;
+	}
+
+	private ReentrantLock stripeOf(String userId) {
+		return stripes[Math.floorMod(userId.hashCode(), LOCK_STRIPES)];
+	}
+
+	// the id is used as a directory name, so only allow characters that are safe in one
+	private static void checkUserId(String userId) {
+		if (userId == null || userId.isEmpty() || userId.length() > 64 || !userId.matches("[A-Za-z0-9_-]+")) {
+			throw new IllegalArgumentException("A user id can only have letters, digits, _ and -: " + userId);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The repository was closed");
+		}
+	}
+}
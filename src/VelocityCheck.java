@@ -0,0 +1,135 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that VelocityScorer declines what it should and nothing else: too many
+ * purchases in the purchase window, too many of one type, and too much spent across too
+ * many states, including once a card has made more purchases than a window keeps. It
+ * hands the scorer the times itself, so it doesn't depend on how fast it runs.
+ *
+ * Run it with: java VelocityCheck
+ *
+ * It exits with 1 if any check fails, and the build runs it in the test phase. It works
+ * in a temporary directory so it never uses up the real ids.
+ */
+public class VelocityCheck {
+
+	private static int failed;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("velocity-check").toFile();
+		CreditCard.initializeIdCounter(WalletServer.counterFile(dir, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(WalletServer.counterFile(dir, "TransactionIdCounter.txt"));
+		Vendor illinois = new Vendor("Grocer", new Address("1 Main St", "Springfield", USState.IL, "62701"));
+		Vendor newYork = new Vendor("Deli", new Address("2 Broadway", "New York", USState.NY, "10001"));
+		Vendor california = new Vendor("Cafe", new Address("3 Market St", "San Francisco", USState.CA, "94103"));
+
+		// 10 purchases a minute, 5 of the same type, $1,000.00 an hour across 3 states
+		VelocityScorer scorer = VelocityScorer.defaults();
+
+		VelocityScorer.Window w = scorer.newWindow();
+		for (int i = 0; i < 10; i++) {
+			accept(scorer, w, purchase(100, PurchaseType.values()[i % 5], illinois), seconds(i));
+		}
+		check("the 11th purchase in a minute is declined", scorer.score(w,
+				purchase(100, PurchaseType.FOOD, illinois), seconds(10)) == WalletMetrics.Decline.TOO_MANY_PURCHASES);
+		check("a purchase is accepted once the first ones are a minute old",
+				scorer.score(w, purchase(100, PurchaseType.FOOD, illinois), seconds(61)) == null);
+
+		w = scorer.newWindow();
+		for (int i = 0; i < 5; i++) {
+			accept(scorer, w, purchase(100, PurchaseType.FOOD, illinois), seconds(i));
+		}
+		check("the 6th purchase of one type in a minute is declined",
+				scorer.score(w, purchase(100, PurchaseType.FOOD, illinois),
+						seconds(5)) == WalletMetrics.Decline.TOO_MANY_OF_ONE_TYPE);
+		check("a purchase of another type is still accepted",
+				scorer.score(w, purchase(100, PurchaseType.TRAVEL, illinois), seconds(5)) == null);
+
+		w = scorer.newWindow();
+		accept(scorer, w, purchase(40_000, PurchaseType.FOOD, illinois), seconds(0));
+		accept(scorer, w, purchase(40_000, PurchaseType.FOOD, newYork), seconds(100));
+		check("spending over the limit in two states is accepted",
+				scorer.score(w, purchase(40_000, PurchaseType.TRAVEL, newYork), seconds(200)) == null);
+		check("spending over the limit in a third state is declined",
+				scorer.score(w, purchase(40_000, PurchaseType.TRAVEL, california),
+						seconds(200)) == WalletMetrics.Decline.SPEND_ACROSS_STATES);
+		// a purchase counts in the minute it was made in, so it is only out of the hour
+		// a minute after it
+		check("spending in a third state is accepted once the first purchase is out of the hour",
+				scorer.score(w, purchase(40_000, PurchaseType.TRAVEL, california), seconds(3600 + 60)) == null);
+
+		// many small purchases across 3 states, far enough apart that the counts never
+		// decline them. more of them than a window keeps still count towards the spend:
+		// 33 purchases of $30.00 are $990.00, the 34th goes over $1,000.00
+		VelocityScorer slow = new VelocityScorer(10, 5, 1, 1000 * Money.CENTS_PER_DOLLAR, 3, 3600);
+		w = slow.newWindow();
+		Vendor[] vendors = { illinois, newYork, california };
+		int accepted = 0;
+		for (int i = 0; i < 40; i++) {
+			Purchase p = purchase(3000, PurchaseType.FOOD, vendors[i % 3]);
+			if (slow.score(w, p, seconds(2 * i)) != null) {
+				break;
+			}
+			slow.record(w, p, seconds(2 * i));
+			accepted++;
+		}
+		check("33 purchases of $30.00 across 3 states are accepted and the 34th is declined (accepted "
+				+ accepted + ")", accepted == 33);
+
+		// scoring is only on when asked for. a card with no scorer takes quick purchases,
+		// one with the default scorer declines the 11th
+		CreditCard.scorePurchasesWith(null);
+		check("a card that isn't scored takes 11 quick purchases", quickPurchasesAccepted(illinois, 11) == 11);
+		CreditCard.scorePurchasesWith(VelocityScorer.defaults());
+		try {
+			check("a scored card takes 10 of 11 quick purchases", quickPurchasesAccepted(illinois, 11) == 10);
+		} finally {
+			CreditCard.scorePurchasesWith(null);
+		}
+
+		if (failed > 0) {
+			System.out.println(failed + " CHECKS FAILED");
+			System.exit(1);
+		}
+		System.out.println("every check passed");
+	}
+
+	private static int quickPurchasesAccepted(Vendor vendor, int purchases) throws Exception {
+		CreditCard card = new CreditCard(LocalDate.now().minusYears(1), LocalDate.now().plusYears(5),
+				CreditCardType.VISA);
+		int accepted = 0;
+		for (int i = 0; i < purchases; i++) {
+			if (card.authorize(purchase(100, PurchaseType.values()[i % 5], vendor))) {
+				accepted++;
+			}
+		}
+		return accepted;
+	}
+
+	private static void accept(VelocityScorer scorer, VelocityScorer.Window w, Purchase p, long now) {
+		WalletMetrics.Decline decline = scorer.score(w, p, now);
+		if (decline != null) {
+			check("a purchase that should be accepted was declined (" + decline + ")", false);
+		}
+		scorer.record(w, p, now);
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok      " : "FAILED  ") + what);
+		if (!ok) {
+			failed++;
+		}
+	}
+
+	// times a little after the start, so no purchase lands on the edge of a slice
+	private static long seconds(long s) {
+		return TimeUnit.SECONDS.toNanos(s) + 1;
+	}
+
+	private static Purchase purchase(long amount, PurchaseType type, Vendor vendor) throws Exception {
+		return new Purchase(amount, type, vendor, new Fee(1, FeeType.interest));
+	}
+}
@@ -0,0 +1,183 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks a purchase against the purchases that were just made on the same card before
+ * it is accepted, and declines it if they come too fast or from too many places:
+ *
+ * - more than a number of purchases on the card in a window of time
+ * - more than a number of purchases of one PurchaseType in that window
+ * - spending more than an amount in a (usually longer) window, at vendors in at least a
+ *   number of different states
+ *
+ * Every card keeps its recent purchases in a Window of a fixed size, so the memory a
+ * card takes doesn't grow however much it is used. The counts look at the last
+ * Window.CAPACITY purchases, which is as many as maxPurchases can be. The spend across
+ * states can take in any number of purchases, so it is kept as running totals instead:
+ * the state window is cut into BUCKETS slices, and each slice has the cents spent and the
+ * states seen in it. A purchase counts in the slice it was made in, so one made up to a
+ * slice before the state window started can still count towards the limit. Scoring goes
+ * through at most CAPACITY purchases and BUCKETS slices and doesn't make any objects, so
+ * it adds well under a microsecond to authorizing a purchase.
+ *
+ * The card holds its lock while it scores and records a purchase, so a window is never
+ * used by two threads at once. The windows use System.nanoTime() and aren't saved, they
+ * start out empty when the program starts.
+ */
+public class VelocityScorer {
+
+	// how many slices the state window is cut into (a minute each for an hour)
+	static final int BUCKETS = 60;
+
+	private final int maxPurchases;
+	private final int maxPurchasesOfOneType;
+	private final long purchaseWindowNanos;
+	private final long maxSpendCentsAcrossStates;
+	private final int minStates;
+	private final long stateWindowNanos;
+	// how long one slice of the state window is
+	private final long bucketNanos;
+
+	/**
+	 * @param maxPurchases              how many purchases a card can make in the purchase
+	 *                                  window
+	 * @param maxPurchasesOfOneType     how many of them can be of the same type
+	 * @param purchaseWindowSeconds     how long the purchase window is
+	 * @param maxSpendCentsAcrossStates how much a card can spend in the state window when
+	 *                                  its purchases were in at least minStates states
+	 * @param minStates                 how many different states it takes for the spend
+	 *                                  limit to count
+	 * @param stateWindowSeconds        how long the state window is
+	 */
+	public VelocityScorer(int maxPurchases, int maxPurchasesOfOneType, long purchaseWindowSeconds,
+			long maxSpendCentsAcrossStates, int minStates, long stateWindowSeconds) {
+		if (maxPurchases < 1 || maxPurchases > Window.CAPACITY || maxPurchasesOfOneType < 1 || minStates < 1) {
+			throw new IllegalArgumentException("The limits have to be at least 1, and at most " + Window.CAPACITY
+					+ " purchases in a window");
+		}
+		this.maxPurchases = maxPurchases;
+		this.maxPurchasesOfOneType = maxPurchasesOfOneType;
+		this.purchaseWindowNanos = TimeUnit.SECONDS.toNanos(purchaseWindowSeconds);
+		this.maxSpendCentsAcrossStates = maxSpendCentsAcrossStates;
+		this.minStates = minStates;
+		this.stateWindowNanos = TimeUnit.SECONDS.toNanos(stateWindowSeconds);
+		this.bucketNanos = Math.max(1, stateWindowNanos / BUCKETS);
+	}
+
+	/**
+	 * 10 purchases a minute, 5 of them of the same type, and $1,000.00 an hour once the
+	 * purchases were in 3 or more states
+	 */
+	public static VelocityScorer defaults() {
+		return new VelocityScorer(10, 5, 60, 1000 * Money.CENTS_PER_DOLLAR, 3, 3600);
+	}
+
+	/**
+	 * the recent purchases of one card
+	 */
+	public static class Window {
+		static final int CAPACITY = 32;
+
+		// when each of the last purchases was accepted and the ordinal of its type. the
+		// newest is at next - 1, going backwards (and around) from there
+		private final long[] nanos = new long[CAPACITY];
+		private final byte[] types = new byte[CAPACITY];
+		private int next;
+		private int size;
+
+		// the slices of the state window, by their number (the time divided by the length
+		// of a slice) modulo their count. one more than BUCKETS, for the slice that is
+		// only partly in the window. the cents spent in each and the ordinals of the
+		// states of their vendors as bits
+		private final long[] bucket = new long[BUCKETS + 1];
+		private final long[] bucketCents = new long[BUCKETS + 1];
+		private final long[] bucketStates = new long[BUCKETS + 1];
+
+		private Window() {
+			// no slice has been used yet
+			Arrays.fill(bucket, Long.MIN_VALUE);
+		}
+
+		private void add(long now, long bucketNanos, Purchase p) {
+			nanos[next] = now;
+			types[next] = (byte) p.getPurchaseType().ordinal();
+			next = (next + 1) % CAPACITY;
+			size = Math.min(size + 1, CAPACITY);
+
+			long number = Math.floorDiv(now, bucketNanos);
+			int slot = Math.floorMod(number, bucket.length);
+			if (bucket[slot] != number) {
+				// what was in it is a whole state window old
+				bucket[slot] = number;
+				bucketCents[slot] = 0;
+				bucketStates[slot] = 0;
+			}
+			bucketCents[slot] += p.getAmount();
+			int state = stateOf(p);
+			if (state >= 0) {
+				bucketStates[slot] |= 1L << state;
+			}
+		}
+	}
+
+	public Window newWindow() {
+		return new Window();
+	}
+
+	/**
+	 * checks a purchase against the card's recent purchases
+	 *
+	 * @param now System.nanoTime() of when it is being authorized
+	 * @return why it should be declined, or null if it can go ahead
+	 */
+	public WalletMetrics.Decline score(Window window, Purchase p, long now) {
+		int type = p.getPurchaseType().ordinal();
+		int state = stateOf(p);
+		int purchases = 0;
+		int ofThisType = 0;
+		long spend = p.getAmount();
+		// the states as bits, one for each ordinal. there are fewer than 64 of them
+		long statesSeen = state < 0 ? 0 : 1L << state;
+
+		for (int i = 0, slot = window.next; i < window.size; i++) {
+			slot = (slot + Window.CAPACITY - 1) % Window.CAPACITY;
+			if (now - window.nanos[slot] >= purchaseWindowNanos) {
+				// everything older than this is out of the window
+				break;
+			}
+			purchases++;
+			if (window.types[slot] == type) {
+				ofThisType++;
+			}
+		}
+		long oldest = Math.floorDiv(now, bucketNanos) - BUCKETS;
+		for (int slot = 0; slot < window.bucket.length; slot++) {
+			if (window.bucket[slot] >= oldest) {
+				spend += window.bucketCents[slot];
+				statesSeen |= window.bucketStates[slot];
+			}
+		}
+
+		if (purchases >= maxPurchases) {
+			return WalletMetrics.Decline.TOO_MANY_PURCHASES;
+		}
+		if (ofThisType >= maxPurchasesOfOneType) {
+			return WalletMetrics.Decline.TOO_MANY_OF_ONE_TYPE;
+		}
+		if (spend > maxSpendCentsAcrossStates && Long.bitCount(statesSeen) >= minStates) {
+			return WalletMetrics.Decline.SPEND_ACROSS_STATES;
+		}
+		return null;
+	}
+
+	/**
+	 * adds a purchase that was accepted to the card's recent purchases
+	 */
+	public void record(Window window, Purchase p, long now) {
+		window.add(now, bucketNanos, p);
+	}
+
+	private static int stateOf(Purchase p) {
+		return p.getVendor() == null || p.getVendorState() == null ? -1 : p.getVendorState().ordinal();
+	}
+}
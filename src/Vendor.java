@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.Objects;
 
 public class Vendor  implements Serializable {
 	//need this field for the serialization
@@ -19,6 +20,9 @@ public class Vendor  implements Serializable {
 	public String getName() {
 		return name;
 	}
+	public Address getAddress() {
+		return address;
+	}
 	public String getStreetAddress() {
 		return address.getStreet();
 	}
@@ -31,4 +35,19 @@ public class Vendor  implements Serializable {
 	public String zip() {
 		return address.getZipcode();
 	}
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Vendor)) {
+			return false;
+		}
+		Vendor other = (Vendor) o;
+		return Objects.equals(name, other.name) && Objects.equals(address, other.address);
+	}
+	@Override
+	public int hashCode() {
+		return Objects.hash(name, address);
+	}
 }
@@ -0,0 +1,70 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands out one shared Vendor (and Address) for every vendor with the same name,
+ * street, city, state and zip, instead of a new one for every purchase made there.
+ *
+ * It only remembers the vendors that were used most recently, up to a fixed number, so
+ * it never grows without limit. A vendor that was forgotten still works, the next
+ * purchase there just gets a new shared instance.
+ */
+public class VendorRegistry {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final VendorRegistry SHARED = new VendorRegistry(DEFAULT_CAPACITY);
+
+	private final Map<Vendor, Vendor> vendors;
+	private final Map<Address, Address> addresses;
+
+	public VendorRegistry(int capacity) {
+		this.vendors = leastRecentlyUsed(capacity);
+		this.addresses = leastRecentlyUsed(capacity);
+	}
+
+	/**
+	 * the registry the whole app uses
+	 */
+	public static VendorRegistry shared() {
+		return SHARED;
+	}
+
+	public Vendor vendor(String name, String street, String city, USState state, String zip) {
+		return intern(new Vendor(name, new Address(street, city, state, zip)));
+	}
+
+	/**
+	 * @return the shared vendor that is the same as this one. if there isn't one yet,
+	 *         this one becomes the shared one
+	 */
+	public synchronized Vendor intern(Vendor v) {
+		if (v == null) {
+			return null;
+		}
+		Vendor shared = vendors.get(v);
+		if (shared == null) {
+			// vendors at the same address (different shops in one mall, say) share it too
+			Address address = v.getAddress();
+			Address sharedAddress = address == null ? null : addresses.putIfAbsent(address, address);
+			shared = sharedAddress == null || sharedAddress == address ? v : new Vendor(v.getName(), sharedAddress);
+			vendors.put(shared, shared);
+		}
+		return shared;
+	}
+
+	public synchronized int size() {
+		return vendors.size();
+	}
+
+	private static <T> Map<T, T> leastRecentlyUsed(int capacity) {
+		return new LinkedHashMap<T, T>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<T, T> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+}
@@ -0,0 +1,499 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Writes a user to a compact binary format and reads it back, instead of using Java
+ * serialization (which writes the class names and field names along with every object
+ * and has to use reflection to read them back in).
+ *
+ * The file starts with a magic number and a version. After that:
+ * - numbers are written as varints, so small numbers only take a byte or two
+ * - amounts are whole cents and enums are written as their ordinal
+ * - every vendor and bank account is written once, the first time it comes up. after
+ *   that it is only referred to by its number in the dictionary
+ * - the transactions of a card are written column by column. ids and timestamps are
+ *   written as the difference from the row before, which is nearly always small
+ * - if the transactions of a card are kept in files of their own, only how many there
+ *   are and the running totals of the card are written (since version 2)
+ * - every card has its billing cycle, if it was ever billed (since version 3)
+ */
+public class WalletCodec {
+
+	// "CCWB"
+	public static final int MAGIC = 0x43435742;
+	public static final int VERSION = 3;
+
+	// how the transactions of a card are saved
+	private static final int HISTORY_INLINE = 0;
+	private static final int HISTORY_MAPPED = 1;
+
+	private static final CreditCardType[] CARD_TYPES = CreditCardType.values();
+	private static final CreditCardStatus[] CARD_STATUSES = CreditCardStatus.values();
+	private static final USState[] STATES = USState.values();
+
+	// vendors and bank accounts get a number in the order they are first written. the
+	// user's own bank account is always number 0
+	private final ArrayList<Vendor> vendors = new ArrayList<>();
+	private final IdentityHashMap<Vendor, Integer> vendorNumbers = new IdentityHashMap<>();
+	private final ArrayList<BankAccount> accounts = new ArrayList<>();
+	private final IdentityHashMap<BankAccount, Integer> accountNumbers = new IdentityHashMap<>();
+
+	// the columns of a card are put together in this buffer and written (or read) in
+	// one go, instead of going through the stream one byte at a time
+	private byte[] block = new byte[256];
+	private int position;
+
+	// the version of the file being read
+	private final long version;
+
+	private WalletCodec(long version) {
+		this.version = version;
+	}
+
+	public static void write(User user, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		writeVarLong(out, VERSION);
+		new WalletCodec(VERSION).writeUser(user, out);
+	}
+
+	/**
+	 * @throws IOException if the data isn't in this format, was written by a newer
+	 *                     version or is cut off
+	 */
+	public static User read(DataInputStream in) throws IOException {
+		int magic = in.readInt();
+		if (magic != MAGIC) {
+			throw new IOException("Not a saved wallet");
+		}
+		long version = readVarLong(in);
+		if (version > VERSION) {
+			throw new IOException("The wallet was saved by a newer version of the app (format " + version + ")");
+		}
+		return new WalletCodec(version).readUser(in);
+	}
+
+	private void writeUser(User user, DataOutputStream out) throws IOException {
+		writeString(out, user.getName());
+		writeString(out, user.getBankAccount().getBankName());
+		writeString(out, user.getBankAccount().getAccountID());
+		accountNumbers.put(user.getBankAccount(), 0);
+		accounts.add(user.getBankAccount());
+
+		CreditCard[] cards = user.getCards();
+		writeVarLong(out, cards.length);
+		for (CreditCard c : cards) {
+			writeCard(c, out);
+		}
+	}
+
+	private User readUser(DataInputStream in) throws IOException {
+		String name = readString(in);
+		String bankName = readString(in);
+		String accountId = readString(in);
+		User user = new User(name, bankName, accountId);
+		accounts.add(user.getBankAccount());
+
+		int numberOfCards = readCount(in);
+		for (int i = 0; i < numberOfCards; i++) {
+			user.addCard(readCard(in));
+		}
+		return user;
+	}
+
+	private void writeCard(CreditCard c, DataOutputStream out) throws IOException {
+		// hold the lock on the card so its balance and its transactions match
+		synchronized (c) {
+			writeString(out, c.getCreditCardId());
+			writeZigZag(out, c.getIssuanceDate().toEpochDay());
+			writeZigZag(out, c.getExpirationDate().toEpochDay());
+			out.writeByte(c.getIssueCompany().ordinal());
+			out.writeByte(c.getStatus().ordinal());
+			writeZigZag(out, c.getCreditLimit());
+			writeZigZag(out, c.getCurrBalance());
+			writeBillingCycle(c.getBillingCycle(), out);
+			TransactionStore history = c.history();
+			if (history instanceof MappedTransactionLog) {
+				out.writeByte(HISTORY_MAPPED);
+				// the rows have to be on the disk before the snapshot says they are there
+				((MappedTransactionLog) history).force();
+				writeVarLong(out, history.size());
+				long[] totals = c.totals();
+				writeVarLong(out, totals.length);
+				for (long total : totals) {
+					writeZigZag(out, total);
+				}
+			} else {
+				out.writeByte(HISTORY_INLINE);
+				writeHistory((TransactionColumns) history, out);
+			}
+		}
+	}
+
+	private CreditCard readCard(DataInputStream in) throws IOException {
+		String id = readString(in);
+		LocalDate issueDate = LocalDate.ofEpochDay(readZigZag(in));
+		LocalDate expirationDate = LocalDate.ofEpochDay(readZigZag(in));
+		CreditCardType type = CARD_TYPES[readOrdinal(in, CARD_TYPES.length)];
+		CreditCardStatus status = CARD_STATUSES[readOrdinal(in, CARD_STATUSES.length)];
+		long limit = readZigZag(in);
+		long balance = readZigZag(in);
+		BillingCycle cycle = version < 3 ? null : readBillingCycle(in);
+		// version 1 always had the transactions in the file
+		int historyKind = version < 2 ? HISTORY_INLINE : in.readUnsignedByte();
+		CreditCard card;
+		if (historyKind == HISTORY_MAPPED) {
+			int rows = readCount(in);
+			int numberOfTotals = readCount(in);
+			if (numberOfTotals > 64) {
+				throw new IOException("Saved wallet has a broken card " + id);
+			}
+			long[] totals = new long[numberOfTotals];
+			for (int i = 0; i < totals.length; i++) {
+				totals[i] = readZigZag(in);
+			}
+			card = new CreditCard(id, issueDate, expirationDate, type, status, limit, balance,
+					CreditCard.openHistory(id, rows), totals);
+		} else if (historyKind == HISTORY_INLINE) {
+			card = new CreditCard(id, issueDate, expirationDate, type, status, limit, balance, readHistory(in), null);
+		} else {
+			throw new IOException("Unknown kind of transaction history in saved wallet: " + historyKind);
+		}
+		card.setBillingCycle(cycle);
+		return card;
+	}
+
+	// 0 if the card was never billed, otherwise 1 and the cycle. the due date is written
+	// one higher, so 0 can mean there is none
+	private static void writeBillingCycle(BillingCycle cycle, DataOutputStream out) throws IOException {
+		if (cycle == null) {
+			out.writeByte(0);
+			return;
+		}
+		out.writeByte(1);
+		writeVarLong(out, cycle.getCycleNumber());
+		writeZigZag(out, cycle.getOpenedOn().toEpochDay());
+		writeVarLong(out, cycle.getFirstRow());
+		writeVarLong(out, cycle.getScannedTo());
+		writeZigZag(out, cycle.getOpeningBalance());
+		writeZigZag(out, cycle.getStatementBalance());
+		writeZigZag(out, cycle.getMinimumDue());
+		writeZigZag(out, cycle.getDueDate() == null ? 0 : cycle.getDueDate().toEpochDay() + 1);
+	}
+
+	private static BillingCycle readBillingCycle(DataInputStream in) throws IOException {
+		int billed = in.readUnsignedByte();
+		if (billed == 0) {
+			return null;
+		} else if (billed != 1) {
+			throw new IOException("Saved wallet has a broken billing cycle");
+		}
+		int cycleNumber = readCount(in);
+		LocalDate openedOn = LocalDate.ofEpochDay(readZigZag(in));
+		int firstRow = readCount(in);
+		int scannedTo = readCount(in);
+		long openingBalance = readZigZag(in);
+		long statementBalance = readZigZag(in);
+		long minimumDue = readZigZag(in);
+		long dueDay = readZigZag(in);
+		return new BillingCycle(cycleNumber, openedOn, firstRow, scannedTo, openingBalance, statementBalance,
+				minimumDue, dueDay == 0 ? null : LocalDate.ofEpochDay(dueDay - 1));
+	}
+
+	private void writeHistory(TransactionColumns h, DataOutputStream out) throws IOException {
+		int size = h.size();
+		writeVarLong(out, size);
+
+		// the vendor and account tables of the card, as references into the dictionaries
+		writeVarLong(out, h.vendorTable().size());
+		for (Vendor v : h.vendorTable()) {
+			writeVendor(v, out);
+		}
+		writeVarLong(out, h.accountTable().size());
+		for (BankAccount a : h.accountTable()) {
+			writeAccount(a, out);
+		}
+
+		// a fee always comes right after its purchase and gets the next id, and the
+		// transactions are added in the order they happen, so the differences are small
+		position = 0;
+		long previous = 0;
+		for (int row = 0; row < size; row++) {
+			putZigZag(h.id(row) - previous);
+			previous = h.id(row);
+		}
+		previous = 0;
+		for (int row = 0; row < size; row++) {
+			putZigZag(h.micros(row) - previous);
+			previous = h.micros(row);
+		}
+		for (int row = 0; row < size; row++) {
+			putZigZag(h.amount(row));
+		}
+		for (int row = 0; row < size; row++) {
+			putByte(h.typeOrdinal(row));
+		}
+		for (int row = 0; row < size; row++) {
+			putByte(h.kindOrdinal(row));
+		}
+		// fees don't refer to anything and have -1, so everything is shifted up by one
+		for (int row = 0; row < size; row++) {
+			putVarLong(h.ref(row) + 1);
+		}
+		writeVarLong(out, position);
+		out.write(block, 0, position);
+	}
+
+	private TransactionColumns readHistory(DataInputStream in) throws IOException {
+		int size = readCount(in);
+
+		int numberOfVendors = readCount(in);
+		ArrayList<Vendor> vendorTable = new ArrayList<>(numberOfVendors);
+		for (int i = 0; i < numberOfVendors; i++) {
+			vendorTable.add(readVendor(in));
+		}
+		int numberOfAccounts = readCount(in);
+		ArrayList<BankAccount> accountTable = new ArrayList<>(numberOfAccounts);
+		for (int i = 0; i < numberOfAccounts; i++) {
+			accountTable.add(readAccount(in));
+		}
+
+		int length = readCount(in);
+		block = new byte[length];
+		in.readFully(block);
+		position = 0;
+		long[] ids = new long[size];
+		long previous = 0;
+		for (int row = 0; row < size; row++) {
+			previous += takeZigZag();
+			ids[row] = previous;
+		}
+		long[] micros = new long[size];
+		previous = 0;
+		for (int row = 0; row < size; row++) {
+			previous += takeZigZag();
+			micros[row] = previous;
+		}
+		long[] cents = new long[size];
+		for (int row = 0; row < size; row++) {
+			cents[row] = takeZigZag();
+		}
+		byte[] types = new byte[size];
+		byte[] kinds = new byte[size];
+		for (int row = 0; row < size; row++) {
+			types[row] = takeByte();
+		}
+		for (int row = 0; row < size; row++) {
+			kinds[row] = takeByte();
+		}
+		int[] refs = new int[size];
+		for (int row = 0; row < size; row++) {
+			refs[row] = (int) takeVarLong() - 1;
+		}
+		if (position != length) {
+			throw new IOException("Saved wallet has a broken list of transactions");
+		}
+		block = null;
+		return new TransactionColumns(ids, micros, cents, types, kinds, refs, vendorTable, accountTable);
+	}
+
+	// a vendor is written in full the first time, and after that only its number
+	private void writeVendor(Vendor v, DataOutputStream out) throws IOException {
+		Integer number = vendorNumbers.get(v);
+		if (number != null) {
+			writeVarLong(out, number + 1);
+			return;
+		}
+		writeVarLong(out, 0);
+		writeString(out, v.getName());
+		writeAddress(v, out);
+		vendorNumbers.put(v, vendors.size());
+		vendors.add(v);
+	}
+
+	private Vendor readVendor(DataInputStream in) throws IOException {
+		int number = readCount(in);
+		if (number > 0) {
+			return lookUp(vendors, number - 1);
+		}
+		String name = readString(in);
+		Vendor v = VendorRegistry.shared().intern(new Vendor(name, readAddress(in)));
+		vendors.add(v);
+		return v;
+	}
+
+	private static void writeAddress(Vendor v, DataOutputStream out) throws IOException {
+		writeString(out, v.getStreetAddress());
+		writeString(out, v.city());
+		// the state can be missing, so 0 means no state
+		writeVarLong(out, v.getState() == null ? 0 : v.getState().ordinal() + 1);
+		writeString(out, v.zip());
+	}
+
+	private static Address readAddress(DataInputStream in) throws IOException {
+		String street = readString(in);
+		String city = readString(in);
+		int state = (int) readVarLong(in);
+		if (state > STATES.length) {
+			throw new IOException("Unknown state in saved wallet: " + state);
+		}
+		String zip = readString(in);
+		return new Address(street, city, state == 0 ? null : STATES[state - 1], zip);
+	}
+
+	private void writeAccount(BankAccount a, DataOutputStream out) throws IOException {
+		Integer number = accountNumbers.get(a);
+		if (number != null) {
+			writeVarLong(out, number + 1);
+			return;
+		}
+		writeVarLong(out, 0);
+		writeString(out, a.getBankName());
+		writeString(out, a.getAccountID());
+		accountNumbers.put(a, accounts.size());
+		accounts.add(a);
+	}
+
+	private BankAccount readAccount(DataInputStream in) throws IOException {
+		int number = readCount(in);
+		if (number > 0) {
+			return lookUp(accounts, number - 1);
+		}
+		String bankName = readString(in);
+		BankAccount a = new BankAccount(bankName, readString(in));
+		accounts.add(a);
+		return a;
+	}
+
+	private static <T> T lookUp(ArrayList<T> dictionary, int number) throws IOException {
+		if (number >= dictionary.size()) {
+			throw new IOException("Saved wallet refers to entry " + number + " before it was written");
+		}
+		return dictionary.get(number);
+	}
+
+	// the same as the stream versions below, but into and out of the block
+
+	private void putByte(int b) {
+		if (position == block.length) {
+			block = Arrays.copyOf(block, block.length * 2);
+		}
+		block[position++] = (byte) b;
+	}
+
+	private void putVarLong(long value) {
+		// a long never takes more than 10 bytes
+		if (position + 10 > block.length) {
+			block = Arrays.copyOf(block, Math.max(block.length * 2, position + 10));
+		}
+		while ((value & ~0x7FL) != 0) {
+			block[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		block[position++] = (byte) value;
+	}
+
+	private void putZigZag(long value) {
+		putVarLong((value << 1) ^ (value >> 63));
+	}
+
+	private byte takeByte() throws IOException {
+		if (position >= block.length) {
+			throw new EOFException("Saved wallet has a broken list of transactions");
+		}
+		return block[position++];
+	}
+
+	private long takeVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = takeByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed number in saved wallet");
+	}
+
+	private long takeZigZag() throws IOException {
+		long value = takeVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	// seven bits at a time, lowest first. the top bit of each byte says if more follow
+	public static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	public static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed number in saved wallet");
+	}
+
+	// maps small negative numbers to small positive ones (0, -1, 1, -2 ... become
+	// 0, 1, 2, 3 ...) so they stay short as varints too
+	public static void writeZigZag(DataOutputStream out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	public static long readZigZag(DataInputStream in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	// the length goes first (plus one, so 0 can mean null) and then the UTF-8 bytes
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			writeVarLong(out, 0);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length + 1L);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = readCount(in);
+		if (length == 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length - 1];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// a count or a length. a broken file shouldn't make us allocate a huge array
+	private static int readCount(DataInputStream in) throws IOException {
+		long count = readVarLong(in);
+		if (count < 0 || count > Integer.MAX_VALUE - 8) {
+			throw new EOFException("Saved wallet is cut off or broken");
+		}
+		return (int) count;
+	}
+
+	private static int readOrdinal(DataInputStream in, int numberOfValues) throws IOException {
+		int ordinal = in.readUnsignedByte();
+		if (ordinal >= numberOfValues) {
+			throw new IOException("Unknown value in saved wallet: " + ordinal);
+		}
+		return ordinal;
+	}
+}
@@ -0,0 +1,189 @@
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes a lot of purchases at a WalletServer at the same time and shows how long they
+ * took. It starts its own server on a free port, in a temporary directory, so it never
+ * touches real users or uses up the real ids.
+ *
+ * Run it with: java WalletLoadTest [users=100] [cards=2] [requests=20000]
+ * [concurrency=1000]
+ *
+ * Afterwards it checks that the balance of every user is exactly what the accepted
+ * purchases add up to, so no purchase was lost or counted twice under load.
+ */
+public class WalletLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int users = 100;
+		int cards = 2;
+		int requests = 20_000;
+		int concurrency = 1000;
+		for (String arg : args) {
+			String[] parts = arg.split("=", 2);
+			switch (parts[0]) {
+			case "users":
+				users = Integer.parseInt(parts[1]);
+				break;
+			case "cards":
+				cards = Integer.parseInt(parts[1]);
+				break;
+			case "requests":
+				requests = Integer.parseInt(parts[1]);
+				break;
+			case "concurrency":
+				concurrency = Integer.parseInt(parts[1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+
+		File dir = Files.createTempDirectory("wallet-load").toFile();
+		CreditCard.initializeIdCounter(WalletServer.counterFile(dir, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(WalletServer.counterFile(dir, "TransactionIdCounter.txt"));
+		WalletServer server = new WalletServer(new UserRepository(new File(dir, "users").getPath()), 0);
+		server.start();
+		String base = "http://127.0.0.1:" + server.getPort() + "/users/";
+
+		HttpClient client = HttpClient.newBuilder().executor(WalletServer.threadPerRequestExecutor())
+				.connectTimeout(Duration.ofSeconds(10)).build();
+
+		// a few users, each with a few cards
+		String[][] cardIds = new String[users][cards];
+		for (int u = 0; u < users; u++) {
+			send(client, post(base + "user" + u + "?name=User%20" + u + "&bank=Bank&account=" + u));
+			for (int c = 0; c < cards; c++) {
+				String body = send(client,
+						post(base + "user" + u + "/cards?issued=2024-01-01&expires=2099-01-01&type=visa"));
+				cardIds[u][c] = body.replaceAll(".*\"card\":\"([^\"]*)\".*", "$1");
+			}
+		}
+
+		// warm up the server and the client before anything is timed
+		runPurchases(client, base, cardIds, Math.min(requests, 2000), concurrency);
+		long[] balancesBefore = new long[users];
+		for (int u = 0; u < users; u++) {
+			balancesBefore[u] = cents(send(client, get(base + "user" + u + "/balance")));
+		}
+
+		long start = System.nanoTime();
+		Result result = runPurchases(client, base, cardIds, requests, concurrency);
+		long elapsed = System.nanoTime() - start;
+
+		long[] latencies = Arrays.copyOf(result.latencies, result.latencies.length);
+		Arrays.sort(latencies);
+		System.out.printf("%d purchases, %d at a time, on %d users with %d cards each%n", requests, concurrency, users,
+				cards);
+		System.out.printf("accepted %d, declined %d, failed %d%n", result.accepted.get(), result.declined.get(),
+				result.failed.get());
+		System.out.printf("throughput %.0f requests/s%n", requests / (elapsed / 1e9));
+		System.out.printf("latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+				percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+				percentile(latencies, 99.9), latencies[latencies.length - 1] / 1e6);
+
+		// every accepted purchase is 1.00 plus a 1% interest fee
+		boolean consistent = true;
+		for (int u = 0; u < users; u++) {
+			long balance = cents(send(client, get(base + "user" + u + "/balance")));
+			if (balance - balancesBefore[u] != result.acceptedPerUser[u].get() * 101L) {
+				System.out.println("user" + u + " has a balance of " + balance + " cents, which doesn't add up");
+				consistent = false;
+			}
+		}
+		System.out.println(consistent ? "every balance adds up" : "SOME BALANCES DON'T ADD UP");
+
+		// what the server saw, from the inside. it includes the warm up
+		System.out.println();
+		System.out.print(send(client, get("http://127.0.0.1:" + server.getPort() + "/metrics")));
+
+		server.stop();
+	}
+
+	private static class Result {
+		final long[] latencies;
+		final AtomicInteger accepted = new AtomicInteger();
+		final AtomicInteger declined = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger[] acceptedPerUser;
+
+		Result(int requests, int users) {
+			latencies = new long[requests];
+			acceptedPerUser = new AtomicInteger[users];
+			for (int u = 0; u < users; u++) {
+				acceptedPerUser[u] = new AtomicInteger();
+			}
+		}
+	}
+
+	// sends the purchases without waiting for the answers, but never has more than
+	// concurrency of them waiting at a time
+	private static Result runPurchases(HttpClient client, String base, String[][] cardIds, int requests,
+			int concurrency) throws InterruptedException {
+		int users = cardIds.length;
+		Result result = new Result(requests, users);
+		Semaphore inFlight = new Semaphore(concurrency);
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[requests];
+		for (int i = 0; i < requests; i++) {
+			int user = i % users;
+			String card = cardIds[user][(i / users) % cardIds[user].length];
+			HttpRequest request = post(base + "user" + user + "/cards/" + card
+					+ "/purchases?amount=1.00&type=food&vendor=Load%20Test&city=Chicago&state=il");
+			int n = i;
+			inFlight.acquire();
+			long sent = System.nanoTime();
+			futures[i] = client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, e) -> {
+				result.latencies[n] = System.nanoTime() - sent;
+				inFlight.release();
+				if (e != null) {
+					result.failed.incrementAndGet();
+				} else if (response.statusCode() == 200) {
+					result.accepted.incrementAndGet();
+					result.acceptedPerUser[user].incrementAndGet();
+				} else if (response.statusCode() == 402) {
+					result.declined.incrementAndGet();
+				} else {
+					result.failed.incrementAndGet();
+				}
+				return null;
+			});
+		}
+		CompletableFuture.allOf(futures).join();
+		return result;
+	}
+
+	// in milliseconds
+	private static double percentile(long[] sorted, double percent) {
+		int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+	}
+
+	private static HttpRequest post(String uri) {
+		return HttpRequest.newBuilder(URI.create(uri)).POST(HttpRequest.BodyPublishers.noBody()).build();
+	}
+
+	private static HttpRequest get(String uri) {
+		return HttpRequest.newBuilder(URI.create(uri)).GET().build();
+	}
+
+	private static String send(HttpClient client, HttpRequest request) throws Exception {
+		HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() >= 300) {
+			throw new IllegalStateException(request.uri() + " answered " + response.statusCode() + ": " + response.body());
+		}
+		return response.body();
+	}
+
+	private static long cents(String json) {
+		return Long.parseLong(json.replaceAll("[^0-9-]", ""));
+	}
+}
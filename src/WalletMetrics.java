@@ -0,0 +1,162 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what happens on the hot paths of the wallet and how long it takes: purchases
+ * that were approved and declined (and why), how long authorizing, paying, saving,
+ * loading and writing to the journal or the id counter took, and how many bytes were
+ * written to the files. Everything is a LongAdder or a LatencyHistogram, so recording
+ * never takes a lock and it can stay on all the time.
+ *
+ * There is one set of metrics for the whole program, like there is one vendor registry.
+ * snapshot() takes a copy of all of them that can be shown or compared later.
+ */
+public class WalletMetrics {
+
+	public enum Operation {
+		// User.addPurchase, checking the card and adding the purchase
+		AUTHORIZE,
+		// User.payBill, making the payment and adding it to the card
+		PAYMENT,
+		// writing the whole user to the snapshot file
+		SAVE_SNAPSHOT,
+		// reading the snapshot and replaying the journal
+		LOAD,
+		// writing one change to the journal and handing it to the group commit writer
+		JOURNAL_RECORD,
+		// forcing a group of journal records to the disk
+		JOURNAL_FORCE,
+		// writing a new high water mark to an id counter file
+		ID_COUNTER_WRITE
+	}
+
+	public enum Decline {
+		CARD_NOT_ACTIVE, INSUFFICIENT_CREDIT,
+		// the ones VelocityScorer gives
+		TOO_MANY_PURCHASES, TOO_MANY_OF_ONE_TYPE, SPEND_ACROSS_STATES
+	}
+
+	public enum Output {
+		SNAPSHOT, JOURNAL, ID_COUNTER
+	}
+
+	private static final WalletMetrics SHARED = new WalletMetrics();
+
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+	private final LongAdder approved = new LongAdder();
+	private final LongAdder[] declined = new LongAdder[Decline.values().length];
+	private final LongAdder[] bytesWritten = new LongAdder[Output.values().length];
+
+	public WalletMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < declined.length; i++) {
+			declined[i] = new LongAdder();
+		}
+		for (int i = 0; i < bytesWritten.length; i++) {
+			bytesWritten[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * the metrics everything in the program records to
+	 */
+	public static WalletMetrics shared() {
+		return SHARED;
+	}
+
+	/**
+	 * records how long an operation took
+	 *
+	 * @param startNanos System.nanoTime() from when it started
+	 */
+	public void record(Operation operation, long startNanos) {
+		latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+	}
+
+	public void approved() {
+		approved.increment();
+	}
+
+	public void declined(Decline reason) {
+		declined[reason.ordinal()].increment();
+	}
+
+	public void bytesWritten(Output output, long bytes) {
+		bytesWritten[output.ordinal()].add(bytes);
+	}
+
+	public Snapshot snapshot() {
+		LatencyHistogram.Snapshot[] latencyCopies = new LatencyHistogram.Snapshot[latencies.length];
+		for (int i = 0; i < latencies.length; i++) {
+			latencyCopies[i] = latencies[i].snapshot();
+		}
+		long[] declinedCopies = new long[declined.length];
+		for (int i = 0; i < declined.length; i++) {
+			declinedCopies[i] = declined[i].sum();
+		}
+		long[] bytesCopies = new long[bytesWritten.length];
+		for (int i = 0; i < bytesWritten.length; i++) {
+			bytesCopies[i] = bytesWritten[i].sum();
+		}
+		return new Snapshot(latencyCopies, approved.sum(), declinedCopies, bytesCopies);
+	}
+
+	/**
+	 * all the metrics at one moment. the counts are each read on their own, so while
+	 * things are still happening two of them can be a few operations apart
+	 */
+	public static class Snapshot {
+		private final LatencyHistogram.Snapshot[] latencies;
+		private final long approved;
+		private final long[] declined;
+		private final long[] bytesWritten;
+
+		private Snapshot(LatencyHistogram.Snapshot[] latencies, long approved, long[] declined, long[] bytesWritten) {
+			this.latencies = latencies;
+			this.approved = approved;
+			this.declined = declined;
+			this.bytesWritten = bytesWritten;
+		}
+
+		public LatencyHistogram.Snapshot latency(Operation operation) {
+			return latencies[operation.ordinal()];
+		}
+
+		public long getApproved() {
+			return approved;
+		}
+
+		public long getDeclined(Decline reason) {
+			return declined[reason.ordinal()];
+		}
+
+		public long getBytesWritten(Output output) {
+			return bytesWritten[output.ordinal()];
+		}
+
+		/**
+		 * a table of everything, with the times in microseconds
+		 */
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder();
+			str.append(String.format("%-18s %10s %10s %10s %10s %10s %10s %10s%n", "operation (us)", "count", "mean",
+					"p50", "p90", "p99", "p99.9", "max"));
+			for (Operation operation : Operation.values()) {
+				LatencyHistogram.Snapshot l = latency(operation);
+				str.append(String.format("%-18s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", operation,
+						l.getCount(), l.getMeanNanos() / 1e3, l.percentile(50) / 1e3, l.percentile(90) / 1e3,
+						l.percentile(99) / 1e3, l.percentile(99.9) / 1e3, l.getMaxNanos() / 1e3));
+			}
+			str.append("purchases approved: " + approved + "\n");
+			for (Decline reason : Decline.values()) {
+				str.append("purchases declined, " + reason + ": " + getDeclined(reason) + "\n");
+			}
+			for (Output output : Output.values()) {
+				str.append("bytes written to " + output + ": " + getBytesWritten(output) + "\n");
+			}
+			return str.toString();
+		}
+	}
+}
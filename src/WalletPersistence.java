@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where a user's wallet is saved. The wallet service tells it about every change right
+ * after it happens, and it decides how (or whether) to write it down.
+ */
+public interface WalletPersistence {
+
+	/**
+	 * @return the saved user, or null if nothing was ever saved
+	 */
+	User load() throws IOException, ClassNotFoundException;
+
+	/**
+	 * saves the whole user
+	 */
+	void save(User user) throws IOException;
+
+	void cardAdded(CreditCard card) throws IOException;
+
+	void cardRemoved(String cardId) throws IOException;
+
+	void statusChanged(String cardId, CreditCardStatus status) throws IOException;
+
+	void purchaseAdded(String cardId, Purchase purchase) throws IOException;
+
+	void paymentAdded(String cardId, Payment payment) throws IOException;
+
+	/**
+	 * @return a future that completes once every change told to it so far is saved, so
+	 *         it won't be lost if the program or the machine stops
+	 */
+	CompletableFuture<Void> durable();
+
+	/**
+	 * @return true if enough changes piled up that the whole user should be saved again
+	 */
+	boolean saveDue();
+
+	void close() throws IOException;
+}
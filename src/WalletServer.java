@@ -0,0 +1,383 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.RoundingMode;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server on this machine that lets other programs (a load test, for
+ * example) use the wallets of the users in a UserRepository. Every request runs on a
+ * thread of its own, a virtual thread if the JVM has them.
+ *
+ * Requests that change something are POSTs, the parameters go in the query string:
+ *
+ * POST /users/{user}?name=&bank=&account=                      adds a user
+ * POST /users/{user}/cards?issued=2024-01-01&expires=2029-01-01&type=visa
+ * POST /users/{user}/cards/{card}/purchases?amount=12.34&type=food&vendor=&street=&city=&state=il&zip=
+ * POST /users/{user}/cards/{card}/payments?amount=12.34&method=online
+ * GET  /users/{user}/balance                                     total of all the cards
+ * GET  /users/{user}/available-credit
+ * GET  /users/{user}/cards/{card}/balance
+ * GET  /users/{user}/cards/{card}/available-credit
+ * GET  /users/{user}/cards/{card}/transactions?format=csv&offset=0&limit=100
+ * GET  /metrics                                                  counts and latencies, as text
+ *
+ * Answers are JSON, except for the transactions (which are in the format asked for)
+ * and the metrics.
+ * Amounts in answers are in cents. A purchase that was declined gets 402.
+ *
+ * Requests for the same user share one loaded wallet, and the wallet and its cards do
+ * their own locking, so purchases on different cards (or of different users) never
+ * wait for each other.
+ */
+public class WalletServer {
+
+	static {
+		// answers are small, and waiting to fill a packet (Nagle's algorithm) holds every
+		// one of them back by the 40ms the client waits before acknowledging. this has to
+		// be set before the first server is made
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final UserRepository users;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// marks the cards of the loaded wallets expired every midnight
+	private final ExpirySweeper expirySweeper;
+
+	/**
+	 * runs a server until the process is stopped
+	 *
+	 * java WalletServer [port] [data directory]
+	 *
+	 * the users and the id counters are kept in the data directory (wallet-data if it
+	 * isn't given). -Dwallet.historyDir=<directory> keeps card histories on disk,
+	 * -Dwallet.velocity=on declines purchases that come too fast or from too many states
+	 * and -Dwallet.durability sets how often the journals are forced to the disk, like
+	 * they do for the app
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		File dataDir = new File(args.length > 1 ? args[1] : "wallet-data");
+		if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+			throw new IOException("Could not create " + dataDir);
+		}
+		CreditCard.initializeIdCounter(counterFile(dataDir, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(counterFile(dataDir, "TransactionIdCounter.txt"));
+		CreditCard.keepHistoryIn(System.getProperty("wallet.historyDir"));
+		if ("on".equals(System.getProperty("wallet.velocity"))) {
+			CreditCard.scorePurchasesWith(VelocityScorer.defaults());
+		}
+		TransactionJournal.forceRecords(GroupCommitWriter.Durability.parse(System.getProperty("wallet.durability")));
+
+		WalletServer server = new WalletServer(new UserRepository(new File(dataDir, "users").getPath()), port);
+		// write every loaded wallet back when the process is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				server.stop();
+			} catch (IOException e) {
+				System.err.println("Could not save the wallets: " + e);
+			}
+		}));
+		server.start();
+		System.out.println("Listening on http://127.0.0.1:" + server.getPort() + "/users");
+	}
+
+	// the counter starts at 0 the first time the server runs in a directory
+	static String counterFile(File dataDir, String name) throws IOException {
+		String path = new File(dataDir, name).getPath();
+		AtomicFile file = new AtomicFile(path);
+		if (!file.exists()) {
+			file.write(out -> out.writeBytes("0"));
+		}
+		return path;
+	}
+
+	public WalletServer(UserRepository users, int port) throws IOException {
+		this.users = users;
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		this.executor = threadPerRequestExecutor();
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		this.expirySweeper = new ExpirySweeper(users::expireCards);
+	}
+
+	public void start() {
+		server.start();
+		expirySweeper.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * stops taking requests, waits up to a few seconds for the ones that are running and
+	 * writes back every loaded wallet
+	 */
+	public void stop() throws IOException {
+		server.stop(1);
+		expirySweeper.close();
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		users.close();
+	}
+
+	// a virtual thread for every request on a JVM that has them (21 and up), otherwise a
+	// normal thread for every request, reused once it is done
+	static ExecutorService threadPerRequestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String[] path = exchange.getRequestURI().getPath().split("/");
+			Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+			boolean post = exchange.getRequestMethod().equalsIgnoreCase("POST");
+			if (path.length == 2 && path[1].equals("metrics") && !post) {
+				sendText(exchange, WalletMetrics.shared().snapshot().toString());
+				return;
+			}
+			if (path.length < 3 || !path[1].equals("users")) {
+				send(exchange, 404, error("Unknown path"));
+				return;
+			}
+			String userId = path[2];
+
+			if (path.length == 3 && post) {
+				createUser(exchange, userId, params);
+			} else if (path.length == 4 && !post && path[3].equals("balance")) {
+				send(exchange, 200, amount(users.withWallet(userId, WalletService::totalBalance)));
+			} else if (path.length == 4 && !post && path[3].equals("available-credit")) {
+				send(exchange, 200, amount(users.withWallet(userId, WalletService::totalAvailableCredit)));
+			} else if (path.length == 4 && post && path[3].equals("cards")) {
+				issueCard(exchange, userId, params);
+			} else if (path.length == 6 && path[3].equals("cards")) {
+				handleCard(exchange, userId, path[4], path[5], post, params);
+			} else {
+				send(exchange, 404, error("Unknown path"));
+			}
+		} catch (IllegalArgumentException e) {
+			// no such user or card, or a parameter that doesn't make sense
+			failed(exchange, 400, error(e.getMessage()), e);
+		} catch (RuntimeException | IOException e) {
+			failed(exchange, 500, error(e.toString()), e);
+		}
+		exchange.close();
+	}
+
+	// answers with the error, unless part of the answer was sent already (a streamed
+	// export that failed half way). then there is no way to send another one, and closing
+	// the exchange would end the chunks as if the answer was whole, so the exception goes
+	// on to the server, which drops the connection and the client sees it was cut off
+	private static void failed(HttpExchange exchange, int status, String json, Exception e) throws IOException {
+		if (exchange.getResponseCode() != -1) {
+			if (e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw (RuntimeException) e;
+		}
+		try {
+			send(exchange, status, json);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleCard(HttpExchange exchange, String userId, String cardId, String action, boolean post,
+			Map<String, String> params) throws IOException {
+		if (post && action.equals("purchases")) {
+			long cents = amountParam(params);
+			PurchaseType type = enumParam(PurchaseType.class, params, "type");
+			// the journal needs every part of the address, so the ones that weren't given are
+			// left empty like they are when someone just presses enter in the app
+			Vendor vendor = VendorRegistry.shared().vendor(required(params, "vendor"),
+					params.getOrDefault("street", ""), params.getOrDefault("city", ""),
+					enumParam(USState.class, params, "state"), params.getOrDefault("zip", ""));
+			Purchase p = users.withWallet(userId, wallet -> wallet.authorize(cardId, cents, type, vendor));
+			if (p == null) {
+				send(exchange, 402, "{\"declined\":true}");
+			} else {
+				send(exchange, 200, "{\"transactionId\":" + p.getTransactionID() + "}");
+			}
+		} else if (post && action.equals("payments")) {
+			long cents = amountParam(params);
+			PaymentType method = enumParam(PaymentType.class, params, "method");
+			Payment p = users.withWallet(userId, wallet -> wallet.pay(cardId, cents, method));
+			send(exchange, 200, "{\"transactionId\":" + p.getTransactionID() + "}");
+		} else if (!post && action.equals("balance")) {
+			send(exchange, 200, amount(users.withWallet(userId, wallet -> wallet.balance(cardId))));
+		} else if (!post && action.equals("available-credit")) {
+			send(exchange, 200, amount(users.withWallet(userId, wallet -> wallet.availableCredit(cardId))));
+		} else if (!post && action.equals("transactions")) {
+			exportTransactions(exchange, userId, cardId, params);
+		} else {
+			send(exchange, 404, error("Unknown path"));
+		}
+	}
+
+	private void createUser(HttpExchange exchange, String userId, Map<String, String> params) throws IOException {
+		// the new wallet stays loaded until the answer is sent
+		UserRepository.Lease lease = users.create(userId, required(params, "name"), required(params, "bank"),
+				required(params, "account"));
+		try {
+			send(exchange, 201, "{\"user\":\"" + userId + "\"}");
+		} finally {
+			lease.close();
+		}
+	}
+
+	private void issueCard(HttpExchange exchange, String userId, Map<String, String> params) throws IOException {
+		LocalDate issued;
+		LocalDate expires;
+		try {
+			issued = LocalDate.parse(required(params, "issued"));
+			expires = LocalDate.parse(required(params, "expires"));
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("Dates have to look like 2024-01-31");
+		}
+		CreditCardType type = enumParam(CreditCardType.class, params, "type");
+		CreditCard card = users.withWallet(userId, wallet -> wallet.issueCard(issued, expires, type));
+		send(exchange, 201, "{\"card\":\"" + card.getCreditCardId() + "\"}");
+	}
+
+	// streams the transactions straight into the answer
+	private void exportTransactions(HttpExchange exchange, String userId, String cardId, Map<String, String> params)
+			throws IOException {
+		TransactionExporter.Format format = params.containsKey("format")
+				? enumParam(TransactionExporter.Format.class, params, "format")
+				: TransactionExporter.Format.JSON_LINES;
+		int offset = intParam(params, "offset", 0);
+		int limit = intParam(params, "limit", Integer.MAX_VALUE);
+		// everything that can be wrong with the request is checked before the headers go
+		// out, since after that there is no sending an error instead
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException("offset and limit can't be negative");
+		}
+		users.withWallet(userId, wallet -> {
+			if (!wallet.containsCard(cardId)) {
+				throw new IllegalArgumentException("This card doesn't exist in this wallet");
+			}
+			exchange.getResponseHeaders().set("Content-Type",
+					format == TransactionExporter.Format.CSV ? "text/csv" : "text/plain; charset=utf-8");
+			// 0 means the length isn't known up front, it is sent in chunks
+			exchange.sendResponseHeaders(200, 0);
+			Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+			wallet.exportTransactions(cardId, out, format, offset, limit);
+			out.close();
+			return null;
+		});
+	}
+
+	private static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static void sendText(HttpExchange exchange, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static String amount(long cents) {
+		return "{\"cents\":" + cents + "}";
+	}
+
+	private static String error(String message) {
+		StringBuilder str = new StringBuilder("{\"error\":\"");
+		String m = message == null ? "" : message;
+		for (int i = 0; i < m.length(); i++) {
+			char c = m.charAt(i);
+			if (c == '"' || c == '\\') {
+				str.append('\\');
+			}
+			str.append(c < 0x20 ? ' ' : c);
+		}
+		return str.append("\"}").toString();
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		HashMap<String, String> params = new HashMap<>();
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return params;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int equals = pair.indexOf('=');
+			String key = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return params;
+	}
+
+	private static String required(Map<String, String> params, String name) {
+		String value = params.get(name);
+		if (value == null || value.isEmpty()) {
+			throw new IllegalArgumentException("Missing parameter " + name);
+		}
+		return value;
+	}
+
+	private static long amountParam(Map<String, String> params) {
+		long cents = Money.parse(required(params, "amount"), RoundingMode.HALF_EVEN);
+		if (cents <= 0) {
+			throw new IllegalArgumentException("The amount has to be an amount of money more than $0.00");
+		}
+		return cents;
+	}
+
+	private static int intParam(Map<String, String> params, String name, int defaultValue) {
+		String value = params.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " has to be a number");
+		}
+	}
+
+	// matches the name of one of the values, ignoring case
+	private static <E extends Enum<E>> E enumParam(Class<E> type, Map<String, String> params, String name) {
+		String value = required(params, name);
+		for (E e : type.getEnumConstants()) {
+			if (e.name().equalsIgnoreCase(value)) {
+				return e;
+			}
+		}
+		throw new IllegalArgumentException("Unknown " + name + ": " + value);
+	}
+}
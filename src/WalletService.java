@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * All the things that can be done with a user's wallet, without any reading from the
+ * keyboard. Every change is made to the user and then handed to the persistence so it
+ * gets saved. The console app is just one way of calling this, code can call it
+ * directly too (for example to load test it).
+ *
+ * It is safe to call from many threads at the same time. A change only returns once the
+ * persistence says it is saved (see WalletPersistence.durable()), so when many threads
+ * make changes at the same time they wait for the same write to the disk.
+ */
+public class WalletService {
+
+	// the interest fee on every purchase, in basis points (100 is 1%)
+	public static final long INTEREST_BASIS_POINTS = 100;
+
+	private final User user;
+	private final WalletPersistence persistence;
+
+	// changes hold the read lock while they change the user and tell the persistence,
+	// so any number of them can happen at the same time. saving the whole user takes the
+	// write lock so it never catches a change that was made but not recorded yet
+	private final ReentrantReadWriteLock saveLock = new ReentrantReadWriteLock();
+	// whether the changes wait for the persistence to save them before they return
+	private volatile boolean waitUntilDurable = true;
+
+	public WalletService(User user, WalletPersistence persistence) {
+		this.user = user;
+		this.persistence = persistence;
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	/**
+	 * whether the changes wait until they are saved before they return, which they do
+	 * unless this is turned off. code that would rather go on and find out later can turn
+	 * it off and use durable()
+	 */
+	public void waitUntilDurable(boolean wait) {
+		this.waitUntilDurable = wait;
+	}
+
+	/**
+	 * @return a future that completes once every change made so far is saved
+	 */
+	public CompletableFuture<Void> durable() {
+		return persistence.durable();
+	}
+
+	/**
+	 * makes a purchase on a card, if the card is active and has enough credit
+	 *
+	 * @return the purchase, or null if it was declined
+	 */
+	public Purchase authorize(String cardId, long amountCents, PurchaseType type, Vendor vendor) throws IOException {
+		if (amountCents <= 0) {
+			throw new IllegalArgumentException("A purchase has to be for more than $0.00");
+		}
+		Fee interestFee = new Fee(Money.percentOf(amountCents, INTEREST_BASIS_POINTS, RoundingMode.HALF_EVEN),
+				FeeType.interest);
+		// purchases at the same vendor share one Vendor object
+		Purchase purchase = new Purchase(amountCents, type, VendorRegistry.shared().intern(vendor), interestFee);
+
+		CompletableFuture<Void> saved;
+		saveLock.readLock().lock();
+		try {
+			if (!user.addPurchase(cardId, purchase)) {
+				return null;
+			}
+			persistence.purchaseAdded(cardId, purchase);
+			saved = persistence.durable();
+		} finally {
+			saveLock.readLock().unlock();
+		}
+		saveIfDue();
+		awaitIfWaiting(saved);
+		return purchase;
+	}
+
+	/**
+	 * makes a batch of purchases that were already given their ids, card by card, and
+	 * then saves the whole user once instead of recording every purchase on its own.
+	 * nothing else can change the wallet while the batch is made
+	 *
+	 * @return for every card, which of its purchases were accepted. null for a card that
+	 *         isn't in the wallet
+	 */
+	public Map<String, boolean[]> authorizeBatch(Map<String, List<Purchase>> purchasesByCard) throws IOException {
+		HashMap<String, boolean[]> accepted = new HashMap<>();
+		saveLock.writeLock().lock();
+		try {
+			for (Map.Entry<String, List<Purchase>> card : purchasesByCard.entrySet()) {
+				if (user.containsCard(card.getKey())) {
+					accepted.put(card.getKey(), user.addPurchases(card.getKey(), card.getValue()));
+				}
+			}
+			persistence.save(user);
+		} finally {
+			saveLock.writeLock().unlock();
+		}
+		return accepted;
+	}
+
+	/**
+	 * pays off some of the balance on a card
+	 */
+	public Payment pay(String cardId, long amountCents, PaymentType type) throws IOException {
+		if (amountCents <= 0) {
+			throw new IllegalArgumentException("A payment has to be for more than $0.00");
+		}
+		Payment payment;
+		CompletableFuture<Void> saved;
+		saveLock.readLock().lock();
+		try {
+			payment = user.payBill(cardId, amountCents, type);
+			persistence.paymentAdded(cardId, payment);
+			saved = persistence.durable();
+		} finally {
+			saveLock.readLock().unlock();
+		}
+		saveIfDue();
+		awaitIfWaiting(saved);
+		return payment;
+	}
+
+	/**
+	 * adds a new card to the wallet
+	 */
+	public CreditCard issueCard(LocalDate issueDate, LocalDate expirationDate, CreditCardType type)
+			throws IOException {
+		if (expirationDate.compareTo(issueDate) < 0) {
+			throw new IllegalArgumentException("A card can't expire before it was issued");
+		}
+		CreditCard card = new CreditCard(issueDate, expirationDate, type);
+		CompletableFuture<Void> saved;
+		saveLock.readLock().lock();
+		try {
+			// recorded before anyone can see the card, so every change to it is recorded
+			// after it was added
+			persistence.cardAdded(card);
+			user.addCard(card);
+			saved = persistence.durable();
+		} finally {
+			saveLock.readLock().unlock();
+		}
+		saveIfDue();
+		awaitIfWaiting(saved);
+		return card;
+	}
+
+	public void removeCard(String cardId) throws IOException {
+		CompletableFuture<Void> saved;
+		saveLock.readLock().lock();
+		try {
+			user.removeCard(cardId);
+			persistence.cardRemoved(cardId);
+			saved = persistence.durable();
+		} finally {
+			saveLock.readLock().unlock();
+		}
+		saveIfDue();
+		awaitIfWaiting(saved);
+	}
+
+	public void reportLost(String cardId) throws IOException {
+		CompletableFuture<Void> saved;
+		saveLock.readLock().lock();
+		try {
+			user.markCardAsLost(cardId);
+			persistence.statusChanged(cardId, CreditCardStatus.LOST);
+			saved = persistence.durable();
+		} finally {
+			saveLock.readLock().unlock();
+		}
+		saveIfDue();
+		awaitIfWaiting(saved);
+	}
+
+	public void cancelCard(String cardId) throws IOException {
+		CompletableFuture<Void> saved;
+		saveLock.readLock().lock();
+		try {
+			user.markCardAsCancelled(cardId);
+			persistence.statusChanged(cardId, CreditCardStatus.CANCELLED);
+			saved = persistence.durable();
+		} finally {
+			saveLock.readLock().unlock();
+		}
+		saveIfDue();
+		awaitIfWaiting(saved);
+	}
+
+	/**
+	 * marks every active card that is past its expiration date as expired. only the cards
+	 * that are due are looked at, so it is cheap to call often
+	 *
+	 * @return how many cards were marked expired
+	 */
+	public int expireCards() throws IOException {
+		List<CreditCard> expired;
+		CompletableFuture<Void> saved;
+		saveLock.readLock().lock();
+		try {
+			expired = user.expireCardsDue(LocalDate.now());
+			for (CreditCard c : expired) {
+				persistence.statusChanged(c.getCreditCardId(), CreditCardStatus.EXPIRED);
+			}
+			saved = persistence.durable();
+		} finally {
+			saveLock.readLock().unlock();
+		}
+		if (!expired.isEmpty()) {
+			saveIfDue();
+			awaitIfWaiting(saved);
+		}
+		return expired.size();
+	}
+
+	/**
+	 * closes the billing cycles of every card that ended by this day and charges their
+	 * interest and late fees. like a batch of purchases, nothing else can change the
+	 * wallet meanwhile and the whole user is saved once at the end (if anything changed)
+	 *
+	 * @return the statements of the cycles that were closed
+	 */
+	public List<StatementEngine.Statement> closeStatements(StatementEngine engine, LocalDate today)
+			throws IOException {
+		ArrayList<StatementEngine.Statement> statements = new ArrayList<>();
+		saveLock.writeLock().lock();
+		try {
+			boolean changed = false;
+			for (CreditCard c : user.getCards()) {
+				changed |= engine.bill(c, today, statements);
+			}
+			if (changed) {
+				persistence.save(user);
+			}
+		} finally {
+			saveLock.writeLock().unlock();
+		}
+		return statements;
+	}
+
+	/**
+	 * saves the whole user
+	 */
+	public void save() throws IOException {
+		saveLock.writeLock().lock();
+		try {
+			persistence.save(user);
+		} finally {
+			saveLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * saves the whole user and closes the persistence and the files of the cards
+	 */
+	public void close() throws IOException {
+		saveLock.writeLock().lock();
+		try {
+			persistence.save(user);
+			persistence.close();
+			for (CreditCard c : user.getCards()) {
+				c.close();
+			}
+		} finally {
+			saveLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * all the cards and the totals over them as they were after the last change. reading
+	 * from it never holds up a purchase or a payment, and what it says never changes
+	 */
+	public WalletSnapshot snapshot() {
+		return user.snapshot();
+	}
+
+	// all the amounts are in cents
+	public long balance(String cardId) {
+		return user.getCardBalance(cardId);
+	}
+
+	public CreditCardStatus status(String cardId) {
+		return user.getCardStatus(cardId);
+	}
+
+	public long availableCredit(String cardId) {
+		return user.getAvailCredit(cardId);
+	}
+
+	public long totalBalance() {
+		return user.totalBalance();
+	}
+
+	public long totalAvailableCredit() {
+		return user.totalAvailCredit();
+	}
+
+	public long totalSpentOn(PurchaseType type) {
+		return user.getTotalSpentOnCertainCategoryOfExpense(type);
+	}
+
+	public Purchase largestPurchase() {
+		return user.getLargestPurchase();
+	}
+
+	public Payment mostRecentPayment() {
+		return user.getMostRecentPayment();
+	}
+
+	public Purchase mostRecentPurchase(String cardId) {
+		return user.mostRecentPurchaseOnCard(cardId);
+	}
+
+	public int numOfTransactions(String cardId) {
+		return user.numOfTransactionsOnCard(cardId);
+	}
+
+	public String transactionsToString(String cardId) {
+		return user.transactionsOnCardToString(cardId);
+	}
+
+	public String transactionsToString(String cardId, int firstRow, int maxRows) {
+		return user.transactionsOnCardToString(cardId, firstRow, maxRows);
+	}
+
+	/**
+	 * writes the transactions on a card to the writer as it goes, starting at a row and
+	 * writing at most this many
+	 *
+	 * @return how many transactions were written
+	 */
+	public int exportTransactions(String cardId, Writer out, TransactionExporter.Format format, int firstRow,
+			int maxRows) throws IOException {
+		return user.exportTransactionsOnCard(cardId, new TransactionExporter(out, format), firstRow, maxRows);
+	}
+
+	// transactions in a period. from is included, to isn't
+	public Iterator<Transaction> transactionsBetween(LocalDateTime from, LocalDateTime to) {
+		return user.transactionsBetween(from, to);
+	}
+
+	public Iterator<Transaction> transactionsBetween(String cardId, LocalDateTime from, LocalDateTime to) {
+		return user.transactionsOnCardBetween(cardId, from, to);
+	}
+
+	public SortedMap<YearMonth, Long> spendPerMonth(LocalDateTime from, LocalDateTime to) {
+		return user.spendPerMonth(from, to);
+	}
+
+	public List<Payment> paymentsBetween(LocalDateTime from, LocalDateTime to) {
+		return user.paymentsBetween(from, to);
+	}
+
+	public boolean containsCard(String cardId) {
+		return user.containsCard(cardId);
+	}
+
+	public int numberOfCards() {
+		return user.numberOfCards();
+	}
+
+	public String cardsToString() {
+		return user.creditCardsToString();
+	}
+
+	// waits for a change to be saved, unless the caller said not to. this is after the
+	// lock is let go, so other changes can join the same write meanwhile
+	private void awaitIfWaiting(CompletableFuture<Void> saved) throws IOException {
+		if (waitUntilDurable) {
+			GroupCommitWriter.await(saved);
+		}
+	}
+
+	private void saveIfDue() throws IOException {
+		if (!persistence.saveDue()) {
+			return;
+		}
+		saveLock.writeLock().lock();
+		try {
+			// another thread might have saved while we were waiting for the lock
+			if (persistence.saveDue()) {
+				persistence.save(user);
+			}
+		} finally {
+			saveLock.writeLock().unlock();
+		}
+	}
+}
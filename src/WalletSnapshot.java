@@ -0,0 +1,331 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * All the cards of a wallet at one moment, with the totals the app reports on over all
+ * of them. The user keeps the latest one and replaces it (never changes it) every time a
+ * card changes, so a reader gets a wallet that is consistent across all of its cards
+ * with a single read, and the totals it asks for are already worked out.
+ *
+ * The cards are kept in a tree with 32 children to a node, like the persistent vectors
+ * of functional languages. Replacing one card copies only the nodes on the way down to
+ * it (a single node of 32 for wallets of up to 32 cards, two for up to 1024 and so on),
+ * and the new version shares all the other nodes with the old one. The totals are
+ * updated by how much the card changed. A card is removed by moving the last card into
+ * its place, so that too only copies the nodes on the way down to the two of them. Only
+ * when the card with the largest purchase or the most recent payment is removed (which
+ * rarely happens) does it go through every card again.
+ */
+public final class WalletSnapshot implements Iterable<CardSnapshot> {
+
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	private static final WalletSnapshot EMPTY = new WalletSnapshot(new Object[0], 0, 0, 0, 0,
+			new long[PurchaseType.values().length], -1, -1);
+
+	// the leaves are arrays of CardSnapshots, the nodes above them arrays of nodes. every
+	// array is only as long as it needs to be
+	private final Object[] root;
+	private final int size;
+	// how far to shift a position to find its child in the root
+	private final int shift;
+
+	// all in cents
+	private final long totalBalance;
+	private final long totalAvailCredit;
+	private final long[] spentPerPurchaseType;
+	// positions of the cards with the largest purchase and the most recent payment, or -1.
+	// when two cards are just as good, the one that was added first wins (which isn't
+	// always the one at the lower position, once a card was removed)
+	private final int largestPurchaseCard;
+	private final int mostRecentPaymentCard;
+
+	private WalletSnapshot(Object[] root, int size, int shift, long totalBalance, long totalAvailCredit,
+			long[] spentPerPurchaseType, int largestPurchaseCard, int mostRecentPaymentCard) {
+		this.root = root;
+		this.size = size;
+		this.shift = shift;
+		this.totalBalance = totalBalance;
+		this.totalAvailCredit = totalAvailCredit;
+		this.spentPerPurchaseType = spentPerPurchaseType;
+		this.largestPurchaseCard = largestPurchaseCard;
+		this.mostRecentPaymentCard = mostRecentPaymentCard;
+	}
+
+	public static WalletSnapshot empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * a wallet with these cards, in this order
+	 */
+	public static WalletSnapshot of(CardSnapshot[] cards) {
+		WalletSnapshot wallet = EMPTY;
+		for (CardSnapshot c : cards) {
+			wallet = wallet.withCardAdded(c);
+		}
+		return wallet;
+	}
+
+	public int numberOfCards() {
+		return size;
+	}
+
+	public CardSnapshot card(int position) {
+		if (position < 0 || position >= size) {
+			throw new IndexOutOfBoundsException("No card at " + position);
+		}
+		Object[] node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			node = (Object[]) node[(position >>> level) & MASK];
+		}
+		return (CardSnapshot) node[position & MASK];
+	}
+
+	/**
+	 * @return null if the wallet has no card with this id
+	 */
+	public CardSnapshot findCard(String id) {
+		int position = positionOf(id, 0);
+		return position < 0 ? null : card(position);
+	}
+
+	/**
+	 * goes through the cards in the order they were added, except that a removed card's
+	 * place is taken by the card that was last
+	 */
+	@Override
+	public Iterator<CardSnapshot> iterator() {
+		return new Iterator<CardSnapshot>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public CardSnapshot next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				return card(next++);
+			}
+		};
+	}
+
+	// all the amounts are in cents
+
+	public long totalBalance() {
+		return totalBalance;
+	}
+
+	public long totalAvailCredit() {
+		return totalAvailCredit;
+	}
+
+	public long getTotalSpentOnCertainCategoryOfExpense(PurchaseType p) {
+		return spentPerPurchaseType[p.ordinal()];
+	}
+
+	/**
+	 * the largest purchase on any card, or null if there are none
+	 */
+	public Purchase getLargestPurchase() {
+		return largestPurchaseCard < 0 ? null : card(largestPurchaseCard).getLargestPurchaseOnThisCard();
+	}
+
+	/**
+	 * the latest of the most recent payments of the cards, or null if there are none
+	 */
+	public Payment getMostRecentPayment() {
+		return mostRecentPaymentCard < 0 ? null : card(mostRecentPaymentCard).mostRecentPayment();
+	}
+
+	/**
+	 * the same wallet with one more card at the end
+	 */
+	WalletSnapshot withCardAdded(CardSnapshot c) {
+		Object[] newRoot;
+		int newShift = shift;
+		if (size == 0) {
+			newRoot = new Object[] { c };
+		} else if (size == 1 << (shift + BITS)) {
+			// the tree is full, so it gets one level taller
+			newShift = shift + BITS;
+			newRoot = new Object[] { root, path(shift, c) };
+		} else {
+			newRoot = added(root, shift, size, c);
+		}
+		long[] spent = spentPerPurchaseType.clone();
+		for (PurchaseType p : PurchaseType.values()) {
+			spent[p.ordinal()] += c.getTotalSpentOnCertainCategoryOfExpense(p);
+		}
+		WalletSnapshot wallet = new WalletSnapshot(newRoot, size + 1, newShift, totalBalance + c.getCurrBalance(),
+				totalAvailCredit + c.getAvailCredit(), spent, largestPurchaseCard, mostRecentPaymentCard);
+		return wallet.withBestOf(size, c);
+	}
+
+	/**
+	 * the same wallet with a newer snapshot of one of its cards
+	 *
+	 * @return this wallet if it has no card with that id (it was removed)
+	 */
+	WalletSnapshot withCard(int hint, CardSnapshot c) {
+		int position = positionOf(c.getCreditCardId(), hint);
+		if (position < 0) {
+			return this;
+		}
+		CardSnapshot old = card(position);
+		long[] spent = spentPerPurchaseType;
+		if (c.spentPerPurchaseType() != old.spentPerPurchaseType()) {
+			spent = spent.clone();
+			for (PurchaseType p : PurchaseType.values()) {
+				spent[p.ordinal()] += c.getTotalSpentOnCertainCategoryOfExpense(p)
+						- old.getTotalSpentOnCertainCategoryOfExpense(p);
+			}
+		}
+		WalletSnapshot wallet = new WalletSnapshot(replaced(root, shift, position, c), size, shift,
+				totalBalance + c.getCurrBalance() - old.getCurrBalance(),
+				totalAvailCredit + c.getAvailCredit() - old.getAvailCredit(), spent, largestPurchaseCard,
+				mostRecentPaymentCard);
+		// a card's largest purchase and most recent payment only ever get larger and
+		// later, but if one went the other way all the cards have to be looked at again
+		if ((position == largestPurchaseCard && c.largestPurchaseAmount() < old.largestPurchaseAmount())
+				|| (position == mostRecentPaymentCard
+						&& c.mostRecentPaymentMicros() < old.mostRecentPaymentMicros())) {
+			return wallet.withBestFound();
+		}
+		return wallet.withBestOf(position, c);
+	}
+
+	/**
+	 * the same wallet without the card with this id. the last card takes its place
+	 */
+	WalletSnapshot withoutCard(int hint, String id) {
+		int position = positionOf(id, hint);
+		if (position < 0) {
+			return this;
+		}
+		if (size == 1) {
+			return EMPTY;
+		}
+		CardSnapshot old = card(position);
+		int lastPosition = size - 1;
+		CardSnapshot moved = card(lastPosition);
+		Object[] newRoot = position == lastPosition ? root : replaced(root, shift, position, moved);
+		newRoot = withoutLast(newRoot, shift, lastPosition);
+		int newShift = shift;
+		while (newShift > 0 && lastPosition <= 1 << newShift) {
+			// everything fits in the first child, so the tree gets one level shorter
+			newRoot = (Object[]) newRoot[0];
+			newShift -= BITS;
+		}
+		long[] spent = spentPerPurchaseType.clone();
+		for (PurchaseType p : PurchaseType.values()) {
+			spent[p.ordinal()] -= old.getTotalSpentOnCertainCategoryOfExpense(p);
+		}
+		int largest = largestPurchaseCard == lastPosition ? position : largestPurchaseCard;
+		int latest = mostRecentPaymentCard == lastPosition ? position : mostRecentPaymentCard;
+		WalletSnapshot wallet = new WalletSnapshot(newRoot, lastPosition, newShift,
+				totalBalance - old.getCurrBalance(), totalAvailCredit - old.getAvailCredit(), spent, largest, latest);
+		if (position == largestPurchaseCard || position == mostRecentPaymentCard) {
+			return wallet.withBestFound();
+		}
+		// ties go by the order the cards were added, which moving a card doesn't change
+		return wallet;
+	}
+
+	// where the card with this id is, looking at the hint first. -1 if it isn't here
+	private int positionOf(String id, int hint) {
+		if (hint >= 0 && hint < size && card(hint).getCreditCardId().equals(id)) {
+			return hint;
+		}
+		for (int i = 0; i < size; i++) {
+			if (card(i).getCreditCardId().equals(id)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// the card at this position might be the new best one
+	private WalletSnapshot withBestOf(int position, CardSnapshot c) {
+		int largest = largestPurchaseCard;
+		long amount = c.largestPurchaseAmount();
+		if (amount >= 0 && position != largest) {
+			long best = largest < 0 ? -1 : card(largest).largestPurchaseAmount();
+			if (amount > best || (amount == best && c.addedOrder() < card(largest).addedOrder())) {
+				largest = position;
+			}
+		}
+		int latest = mostRecentPaymentCard;
+		long micros = c.mostRecentPaymentMicros();
+		if (micros != Long.MIN_VALUE && position != latest) {
+			long best = latest < 0 ? Long.MIN_VALUE : card(latest).mostRecentPaymentMicros();
+			if (latest < 0 || micros > best
+					|| (micros == best && c.addedOrder() < card(latest).addedOrder())) {
+				latest = position;
+			}
+		}
+		if (largest == largestPurchaseCard && latest == mostRecentPaymentCard) {
+			return this;
+		}
+		return new WalletSnapshot(root, size, shift, totalBalance, totalAvailCredit, spentPerPurchaseType, largest,
+				latest);
+	}
+
+	// looks at every card for the best ones
+	private WalletSnapshot withBestFound() {
+		WalletSnapshot wallet = new WalletSnapshot(root, size, shift, totalBalance, totalAvailCredit,
+				spentPerPurchaseType, -1, -1);
+		for (int i = 0; i < size; i++) {
+			wallet = wallet.withBestOf(i, card(i));
+		}
+		return wallet;
+	}
+
+	// a copy of the node with the card at this position replaced
+	private static Object[] replaced(Object[] node, int level, int position, CardSnapshot c) {
+		Object[] copy = node.clone();
+		int index = (position >>> level) & MASK;
+		copy[index] = level == 0 ? c : replaced((Object[]) node[index], level - BITS, position, c);
+		return copy;
+	}
+
+	// a copy of the node with the card added at this position, which is right after the
+	// last one. the tree has room for it
+	private static Object[] added(Object[] node, int level, int position, CardSnapshot c) {
+		int index = (position >>> level) & MASK;
+		Object[] copy = Arrays.copyOf(node, Math.max(node.length, index + 1));
+		if (level == 0) {
+			copy[index] = c;
+		} else if (index < node.length) {
+			copy[index] = added((Object[]) node[index], level - BITS, position, c);
+		} else {
+			copy[index] = path(level - BITS, c);
+		}
+		return copy;
+	}
+
+	// a copy of the node without the card at this position, which is the last one. null if
+	// that leaves it empty
+	private static Object[] withoutLast(Object[] node, int level, int position) {
+		int index = (position >>> level) & MASK;
+		Object[] child = level == 0 ? null : withoutLast((Object[]) node[index], level - BITS, position);
+		if (child == null) {
+			return index == 0 ? null : Arrays.copyOf(node, index);
+		}
+		Object[] copy = node.clone();
+		copy[index] = child;
+		return copy;
+	}
+
+	// a new branch this many levels high, with only the card in it
+	private static Object[] path(int level, CardSnapshot c) {
+		return level == 0 ? new Object[] { c } : new Object[] { path(level - BITS, c) };
+	}
+}
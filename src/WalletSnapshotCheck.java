@@ -0,0 +1,245 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks the wallet snapshot against the cards it was made from:
+ *
+ * - when two cards are just as good, the one that was added first wins, also after a
+ *   card was removed and the last card took its place
+ * - after a long run of random adds, removals and purchases, the totals and the best
+ *   cards are what going through the cards again gives
+ * - readers see every purchase that was made before they read, and while purchases are
+ *   made on several cards at once the totals they see only ever go up
+ *
+ * Run it with: java WalletSnapshotCheck [steps=10000] [seed=1]
+ *
+ * It exits with 1 if any check fails, and the build runs it in the test phase. It works
+ * in a temporary directory so it never uses up the real ids.
+ */
+public class WalletSnapshotCheck {
+
+	private static final Vendor VENDOR = new Vendor("Grocer",
+			new Address("1 Main St", "Springfield", USState.IL, "62701"));
+
+	private static int failed;
+
+	public static void main(String[] args) throws Exception {
+		int steps = 10000;
+		long seed = 1;
+		for (String arg : args) {
+			String[] parts = arg.split("=", 2);
+			switch (parts[0]) {
+			case "steps":
+				steps = Integer.parseInt(parts[1]);
+				break;
+			case "seed":
+				seed = Long.parseLong(parts[1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		File dir = Files.createTempDirectory("snapshot-check").toFile();
+		CreditCard.initializeIdCounter(WalletServer.counterFile(dir, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(WalletServer.counterFile(dir, "TransactionIdCounter.txt"));
+
+		checkTiesAfterRemoval();
+		checkRandomChanges(steps, seed);
+		checkReadersWhilePurchasing();
+
+		if (failed > 0) {
+			System.out.println(failed + " CHECKS FAILED");
+			System.exit(1);
+		}
+		System.out.println("every check passed");
+	}
+
+	private static void checkTiesAfterRemoval() throws Exception {
+		User user = new User("Snapshot", "Bank", "123");
+		CreditCard a = newCard(user);
+		CreditCard b = newCard(user);
+		CreditCard c = newCard(user);
+		LocalDateTime noon = LocalDateTime.now().withHour(12).withMinute(0).withSecond(0).withNano(0);
+		user.addPurchase(a.getCreditCardId(), purchase(500));
+		user.addPurchase(c.getCreditCardId(), purchase(500));
+		user.addPayment(a.getCreditCardId(), payment(100, noon, user));
+		user.addPayment(c.getCreditCardId(), payment(100, noon, user));
+		check("a tie goes to the card added first", onCard(user.getLargestPurchase(), a)
+				&& onCard(user.getMostRecentPayment(), a));
+
+		// c takes the place of a, ahead of b. b was still added before it
+		user.removeCard(a.getCreditCardId());
+		check("the last card took the place of the one removed", c.position() == 0 && b.position() == 1);
+		check("after the removal the only card left with the largest amounts wins",
+				onCard(user.getLargestPurchase(), c) && onCard(user.getMostRecentPayment(), c));
+		user.addPurchase(b.getCreditCardId(), purchase(500));
+		user.addPayment(b.getCreditCardId(), payment(100, noon, user));
+		check("a tie after the removal goes to the card added first, not the one at the first position",
+				onCard(user.getLargestPurchase(), b) && onCard(user.getMostRecentPayment(), b));
+
+		// a card added now comes after both, wherever it ends up
+		CreditCard d = newCard(user);
+		user.addPurchase(d.getCreditCardId(), purchase(500));
+		check("a card added later loses the tie", onCard(user.getLargestPurchase(), b));
+	}
+
+	private static void checkRandomChanges(int steps, long seed) throws Exception {
+		User user = new User("Snapshot", "Bank", "123");
+		Random random = new Random(seed);
+		List<String> ids = new ArrayList<>();
+		Map<String, CreditCard> byId = new HashMap<>();
+		int bad = 0;
+		for (int step = 0; step < steps; step++) {
+			int op = random.nextInt(10);
+			// grows to many cards (more than one level of the tree) in the first half and
+			// shrinks in the second
+			if ((step < steps / 2 ? op < 6 : op < 1) || ids.isEmpty()) {
+				CreditCard card = newCard(user);
+				ids.add(card.getCreditCardId());
+				byId.put(card.getCreditCardId(), card);
+			} else if (op < 8) {
+				user.removeCard(ids.remove(random.nextInt(ids.size())));
+			} else {
+				// few amounts, so there are many ties
+				user.addPurchase(ids.get(random.nextInt(ids.size())), purchase(1 + random.nextInt(5)));
+			}
+
+			WalletSnapshot wallet = user.snapshot();
+			long balance = 0;
+			for (String id : ids) {
+				balance += byId.get(id).getCurrBalance();
+			}
+			CardSnapshot best = null;
+			int position = 0;
+			for (CardSnapshot card : wallet) {
+				if (byId.get(card.getCreditCardId()).position() != position++) {
+					bad++;
+				}
+				if (card.largestPurchaseAmount() >= 0 && (best == null
+						|| card.largestPurchaseAmount() > best.largestPurchaseAmount()
+						|| (card.largestPurchaseAmount() == best.largestPurchaseAmount()
+								&& card.addedOrder() < best.addedOrder()))) {
+					best = card;
+				}
+			}
+			Purchase largest = wallet.getLargestPurchase();
+			if (wallet.numberOfCards() != ids.size() || wallet.totalBalance() != balance
+					|| (best == null ? largest != null
+							: largest == null || largest.getTransactionID() != best.getLargestPurchaseOnThisCard()
+									.getTransactionID())) {
+				bad++;
+			}
+		}
+		check(steps + " random adds, removals and purchases, " + bad + " snapshots wrong", bad == 0);
+	}
+
+	private static void checkReadersWhilePurchasing() throws Exception {
+		int writers = 4;
+		int purchases = 2000;
+		User user = new User("Snapshot", "Bank", "123");
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < writers; i++) {
+			ids.add(newCard(user).getCreditCardId());
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(writers + 1);
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean done = new AtomicBoolean();
+		List<Future<Integer>> results = new ArrayList<>();
+		try {
+			for (String id : ids) {
+				results.add(pool.submit(() -> {
+					start.await();
+					int missed = 0;
+					for (int i = 0; i < purchases; i++) {
+						user.addPurchase(id, purchase(1));
+						// this thread's own purchase has to be in what it reads next
+						if (user.snapshot().findCard(id).getCurrBalance() < i + 1) {
+							missed++;
+						}
+					}
+					return missed;
+				}));
+			}
+			Future<Integer> reader = pool.submit(() -> {
+				start.await();
+				int wentDown = 0;
+				long last = 0;
+				while (!done.get()) {
+					long total = user.totalBalance();
+					if (total < last) {
+						wentDown++;
+					}
+					last = total;
+				}
+				return wentDown;
+			});
+			start.countDown();
+			int missed = 0;
+			for (Future<Integer> f : results) {
+				missed += f.get();
+			}
+			done.set(true);
+			check("every purchase is in the snapshot read right after it (" + missed + " missing)", missed == 0);
+			check("the total balance never went down while purchases were made (" + reader.get() + " times)",
+					reader.get() == 0);
+			check("the total balance is every purchase once they are done",
+					user.totalBalance() == (long) writers * purchases);
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private static CreditCard newCard(User user) throws Exception {
+		CreditCard card = new CreditCard(LocalDate.now().minusYears(1), LocalDate.now().plusYears(5),
+				CreditCardType.VISA);
+		user.addCard(card);
+		return card;
+	}
+
+	// no fee, so the balance is only the purchases
+	private static Purchase purchase(long amount) throws IOException {
+		LocalDateTime now = LocalDateTime.now();
+		return new Purchase(Transaction.reserveIds(1), now, amount, PurchaseType.FOOD, VENDOR,
+				new Fee(Transaction.reserveIds(1), now, 0, FeeType.interest));
+	}
+
+	private static Payment payment(long amount, LocalDateTime at, User user) throws IOException {
+		return new Payment(Transaction.reserveIds(1), at, amount, PaymentType.ONLINE, user.getBankAccount());
+	}
+
+	private static boolean onCard(Transaction t, CreditCard card) {
+		if (t == null) {
+			return false;
+		}
+		TransactionStore history = card.snapshot().history();
+		for (int row = 0; row < history.size(); row++) {
+			if (history.get(row).getTransactionID() == t.getTransactionID()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "ok      " : "FAILED  ") + what);
+		if (!ok) {
+			failed++;
+		}
+	}
+}
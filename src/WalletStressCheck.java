@@ -0,0 +1,189 @@
+import java.io.File;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes purchases on one card from many threads at once, round after round, and checks
+ * the card came out exactly as if the same purchases had been made one after another:
+ * the card never goes over its limit, and it accepts as many purchases and ends up with
+ * the same balance as a card that took them one at a time. Some threads authorize the
+ * purchases one by one and others hand them in as batches, so both ways of taking the
+ * lock on the card are raced against each other.
+ *
+ * Every purchase in a round is for the same amount, so how many of them fit doesn't
+ * depend on the order they come in. The amount changes from round to round.
+ *
+ * Run it with: java WalletStressCheck [threads=32] [purchases=200] [rounds=20] [seed=1]
+ *
+ * It exits with 1 if any round doesn't add up or a purchase throws, so nobody has to
+ * read what it prints: the build runs it in the test phase (mvn test) and fails when it
+ * does. It works in a temporary directory so it never uses up the real ids.
+ */
+public class WalletStressCheck {
+
+	// how many purchases a thread that uses batches hands in at once
+	private static final int BATCH = 8;
+
+	public static void main(String[] args) throws Exception {
+		int threads = 32;
+		int purchases = 200;
+		int rounds = 20;
+		long seed = 1;
+		for (String arg : args) {
+			String[] parts = arg.split("=", 2);
+			switch (parts[0]) {
+			case "threads":
+				threads = Integer.parseInt(parts[1]);
+				break;
+			case "purchases":
+				purchases = Integer.parseInt(parts[1]);
+				break;
+			case "rounds":
+				rounds = Integer.parseInt(parts[1]);
+				break;
+			case "seed":
+				seed = Long.parseLong(parts[1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+
+		File dir = Files.createTempDirectory("wallet-stress").toFile();
+		CreditCard.initializeIdCounter(WalletServer.counterFile(dir, "CreditCardIdCounter.txt"));
+		Transaction.initializeIdCounter(WalletServer.counterFile(dir, "TransactionIdCounter.txt"));
+		Vendor vendor = new Vendor("Grocer", new Address("1 Main St", "Springfield", USState.IL, "62701"));
+
+		Random random = new Random(seed);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		int failed = 0;
+		try {
+			for (int round = 0; round < rounds; round++) {
+				// from $1.00 to $50.00, so some rounds fill the card with a few purchases
+				// and others with hundreds
+				long amount = 100 + random.nextInt(4901);
+				Result together = runTogether(pool, threads, purchases, amount, vendor);
+				Result alone = runAlone(threads * purchases, amount, vendor);
+
+				String problem = null;
+				if (together.accepted * amount > together.limit) {
+					problem = "went over its limit";
+				} else if (together.accepted != alone.accepted) {
+					problem = "accepted " + together.accepted + " purchases, one at a time it accepts "
+							+ alone.accepted;
+				} else if (together.balance != alone.balance) {
+					problem = "has a balance of " + together.balance + " cents, one at a time it is "
+							+ alone.balance;
+				}
+				System.out.printf("round %d: %d threads x %d purchases of %d cents, accepted %d (one at a time %d)%s%n",
+						round, threads, purchases, amount, together.accepted, alone.accepted,
+						problem == null ? "" : " - the card " + problem);
+				if (problem != null) {
+					failed++;
+				}
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+
+		if (failed > 0) {
+			System.out.println(failed + " OF " + rounds + " ROUNDS DON'T ADD UP");
+			System.exit(1);
+		}
+		System.out.println("every round adds up");
+	}
+
+	// what a card looked like after a round
+	private static final class Result {
+		final int accepted;
+		final long balance;
+		final long limit;
+
+		Result(int accepted, CreditCard card) {
+			this.accepted = accepted;
+			this.balance = card.getCurrBalance();
+			this.limit = card.getCreditLimit();
+		}
+	}
+
+	private static Result runTogether(ExecutorService pool, int threads, int purchases, long amount, Vendor vendor)
+			throws Exception {
+		User user = newUser();
+		CreditCard card = user.getCards()[0];
+		String cardId = card.getCreditCardId();
+		WalletService service = new WalletService(user, new InMemoryPersistence());
+
+		AtomicInteger accepted = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> results = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			boolean batches = t % 2 == 1;
+			results.add(pool.submit(() -> {
+				start.await();
+				if (batches) {
+					for (int i = 0; i < purchases; i += BATCH) {
+						List<Purchase> batch = new ArrayList<>();
+						for (int j = i; j < Math.min(purchases, i + BATCH); j++) {
+							batch.add(purchase(amount, vendor));
+						}
+						for (boolean ok : user.addPurchases(cardId, batch)) {
+							if (ok) {
+								accepted.incrementAndGet();
+							}
+						}
+					}
+				} else {
+					for (int i = 0; i < purchases; i++) {
+						if (service.authorize(cardId, amount, PurchaseType.FOOD, vendor) != null) {
+							accepted.incrementAndGet();
+						}
+					}
+				}
+				return null;
+			}));
+		}
+		start.countDown();
+		for (Future<?> f : results) {
+			f.get();
+		}
+		return new Result(accepted.get(), card);
+	}
+
+	private static Result runAlone(int purchases, long amount, Vendor vendor) throws Exception {
+		User user = newUser();
+		CreditCard card = user.getCards()[0];
+		WalletService service = new WalletService(user, new InMemoryPersistence());
+		int accepted = 0;
+		for (int i = 0; i < purchases; i++) {
+			if (service.authorize(card.getCreditCardId(), amount, PurchaseType.FOOD, vendor) != null) {
+				accepted++;
+			}
+		}
+		return new Result(accepted, card);
+	}
+
+	private static User newUser() throws Exception {
+		User user = new User("Stress", "Bank", "123");
+		user.addCard(new CreditCard(LocalDate.now().minusYears(1), LocalDate.now().plusYears(5),
+				CreditCardType.VISA));
+		return user;
+	}
+
+	// the same purchase authorize() makes, with the same interest fee
+	private static Purchase purchase(long amount, Vendor vendor) throws Exception {
+		Fee fee = new Fee(Money.percentOf(amount, WalletService.INTEREST_BASIS_POINTS, RoundingMode.HALF_EVEN),
+				FeeType.interest);
+		return new Purchase(amount, PurchaseType.FOOD, vendor, fee);
+	}
+}